@@ -0,0 +1,71 @@
+package com.thingtrack.benchmarks;
+
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.thingtrack.export.IsoDateFormatter;
+import com.thingtrack.transport.SyntheticMeterTrace;
+
+/**
+ * Cost of the ISO dates written by the export, one per measure.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExportDateFormatBenchmark {
+	@Param({ "1000" })
+	public int records;
+
+	private long[] timestamps;
+
+	@Setup
+	public void setup() {
+		SyntheticMeterTrace trace = MeterReports.trace(records);
+
+		timestamps = new long[records];
+		for (int i = 0; i < records; i++)
+			timestamps[i] = trace.getTimestamp(i);
+	}
+
+	/**
+	 * The format created on every export, like the parser does.
+	 */
+	@Benchmark
+	public void simpleDateFormat(Blackhole blackhole) {
+		DateFormat isoDateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mmZ");
+		isoDateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+		for (int i = 0; i < timestamps.length; i++)
+			blackhole.consume(isoDateFormat.format(new Date(timestamps[i])));
+	}
+
+	/**
+	 * The cached formatter of the streaming export.
+	 */
+	@Benchmark
+	public void isoDateFormatter(Blackhole blackhole) {
+		IsoDateFormatter formatter = new IsoDateFormatter();
+
+		for (int i = 0; i < timestamps.length; i++)
+			blackhole.consume(formatter.format(timestamps[i]));
+	}
+}
@@ -0,0 +1,126 @@
+package com.thingtrack.benchmarks;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.thingtrack.analytics.GlycaemicSummary;
+import com.thingtrack.export.JsonStreamWriter;
+import com.thingtrack.parser.MeasureSeries;
+import com.thingtrack.transport.SyntheticMeterTrace;
+
+/**
+ * JSON serialization of a whole session, the document of the parser export
+ * written to a channel discarding the bytes, so neither the file system nor
+ * the fsync is timed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonExportBenchmark {
+	/**
+	 * A channel counting the bytes written, and dropping them.
+	 */
+	private static class DiscardingChannel implements WritableByteChannel {
+		private long written;
+
+		@Override
+		public int write(ByteBuffer src) {
+			int length = src.remaining();
+			src.position(src.limit());
+			written += length;
+
+			return length;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	@Param({ "100", "10000" })
+	public int records;
+
+	private String serial;
+	private long clock;
+	private MeasureSeries series;
+	private GlycaemicSummary summary;
+
+	@Setup
+	public void setup() {
+		SyntheticMeterTrace trace = MeterReports.trace(records);
+
+		serial = trace.getSerial();
+		clock = trace.getTimestamp(0);
+		series = new MeasureSeries();
+		summary = new GlycaemicSummary();
+
+		// newest first, like the download
+		for (int i = 0; i < records; i++) {
+			int value = trace.getValue(i);
+
+			if (value == 1) {
+				series.add(trace.getTimestamp(i), 0, MeasureSeries.FLAG_ZERO);
+				summary.addLow(trace.getTimestamp(i));
+			} else {
+				series.add(trace.getTimestamp(i), value, (byte) 0);
+				summary.add(trace.getTimestamp(i), value);
+			}
+		}
+	}
+
+	/**
+	 * The bytes written are returned, so the serialization is never dropped.
+	 */
+	@Benchmark
+	public long export() throws IOException {
+		DiscardingChannel channel = new DiscardingChannel();
+		JsonStreamWriter json = new JsonStreamWriter(channel);
+
+		json.beginObject();
+		json.name("swver").value("1.43");
+		json.name("serlnum").value(serial);
+		json.name("ptname").value("BENCHMARK");
+		json.name("ptid").value("benchmark");
+		json.name("date").date(clock);
+		json.name("complete").value(true);
+
+		json.name("summary");
+		summary.write(json);
+
+		json.name("measures").beginArray();
+		for (int i = 0; i < series.size(); i++) {
+			json.beginObject();
+			json.name("date").date(series.getTimestamp(i));
+			json.name("value").value(series.getValue(i));
+			json.endObject();
+		}
+		json.endArray();
+
+		json.endObject();
+		json.close();
+
+		return channel.written;
+	}
+}
@@ -0,0 +1,80 @@
+package com.thingtrack.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.thingtrack.transport.SyntheticMeterTrace;
+
+/**
+ * Fixtures of the benchmarks: the 64 bytes reports a FreeStyle Optium Neo
+ * sends for a response, generated by the synthetic meter.
+ */
+public final class MeterReports {
+	/** Report size of the meter */
+	public static final int SIZE = 64;
+
+	/** Header size of a report: message type and payload length */
+	private static final int HEADER_SIZE = 2;
+
+	/** Message type of the text responses */
+	private static final byte TEXT_TYPE = 0x06;
+
+	/** Clock of the synthetic meter, fixed so every run decodes the same data */
+	public static final long CLOCK = 1483228800000L;
+
+	private MeterReports() {
+	}
+
+	/**
+	 * Create a synthetic meter with a history of the given size.
+	 */
+	public static SyntheticMeterTrace trace(int historySize) {
+		return new SyntheticMeterTrace("CBGB123-X4567", historySize, CLOCK, 42L);
+	}
+
+	/**
+	 * Split the response of a command in direct report buffers, like the
+	 * ones read from the IN endpoint.
+	 */
+	public static List<ByteBuffer> reports(SyntheticMeterTrace trace, String command) throws IOException {
+		List<ByteBuffer> reports = new ArrayList<ByteBuffer>();
+		byte[] payload = new byte[SIZE - HEADER_SIZE];
+
+		InputStream response = trace.respond(command);
+		try {
+			int length;
+			while ((length = response.read(payload, 0, payload.length)) > 0) {
+				ByteBuffer report = ByteBuffer.allocateDirect(SIZE);
+				report.put(TEXT_TYPE).put((byte) length).put(payload, 0, length);
+				report.clear();
+
+				reports.add(report);
+			}
+		} finally {
+			response.close();
+		}
+
+		return reports;
+	}
+
+	/**
+	 * Get the text of the response of a command.
+	 */
+	public static String text(SyntheticMeterTrace trace, String command) throws IOException {
+		StringBuilder text = new StringBuilder();
+
+		InputStream response = trace.respond(command);
+		try {
+			int b;
+			while ((b = response.read()) >= 0)
+				text.append((char) b);
+		} finally {
+			response.close();
+		}
+
+		return text.toString();
+	}
+}
@@ -0,0 +1,79 @@
+package com.thingtrack.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.thingtrack.parser.ReportFramer;
+
+/**
+ * Raw report decoding and "CMD OK" detection of the responses. The framer is
+ * compared with the String decoding of every report the parser did before.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReportDecodeBenchmark {
+	/** A single report response and a result dump */
+	@Param({ "$serlnum?", "$result?" })
+	public String command;
+
+	private List<ByteBuffer> reports;
+
+	private final ReportFramer framer = new ReportFramer();
+
+	@Setup
+	public void setup() throws Exception {
+		reports = MeterReports.reports(MeterReports.trace(100), command);
+	}
+
+	@Benchmark
+	public int framer(Blackhole blackhole) {
+		framer.reset(null);
+
+		for (int i = 0; i < reports.size(); i++) {
+			if (!framer.frame(reports.get(i), MeterReports.SIZE))
+				break;
+		}
+
+		blackhole.consume(framer.isTerminated());
+
+		return framer.getLines().getLineCount();
+	}
+
+	@Benchmark
+	public int stringDecode(Blackhole blackhole) {
+		int count = 0;
+
+		for (int i = 0; i < reports.size(); i++) {
+			ByteBuffer report = reports.get(i);
+			report.clear();
+
+			String data = StandardCharsets.US_ASCII.decode(report).toString();
+			blackhole.consume(data);
+			count++;
+
+			if (data.contains("CMD OK"))
+				break;
+		}
+
+		return count;
+	}
+}
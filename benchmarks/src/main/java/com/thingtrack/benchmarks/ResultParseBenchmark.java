@@ -0,0 +1,98 @@
+package com.thingtrack.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.thingtrack.parser.MeasureSeries;
+import com.thingtrack.parser.ResultRecordDecoder;
+import com.thingtrack.parser.ResultRecordHandler;
+
+/**
+ * Result record parsing of a whole dump. The streaming decoder is compared
+ * with the split and SimpleDateFormat parsing of the lines done before.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResultParseBenchmark {
+	@Param({ "100", "10000", "100000" })
+	public int records;
+
+	private List<ByteBuffer> reports;
+	private String[] lines;
+
+	private final MeasureSeries series = new MeasureSeries();
+
+	private final ResultRecordHandler collector = new ResultRecordHandler() {
+		@Override
+		public boolean onRecord(long timestamp, float value) {
+			if (value == 1)
+				series.add(timestamp, 0, MeasureSeries.FLAG_ZERO);
+			else
+				series.add(timestamp, value, (byte) 0);
+
+			return true;
+		}
+	};
+
+	@Setup
+	public void setup() throws Exception {
+		reports = MeterReports.reports(MeterReports.trace(records), "$result?");
+		lines = MeterReports.text(MeterReports.trace(records), "$result?").split("\r\n");
+	}
+
+	@Benchmark
+	public MeasureSeries decoder() {
+		series.clear();
+
+		ResultRecordDecoder decoder = new ResultRecordDecoder(collector);
+		for (int i = 0; i < reports.size(); i++) {
+			ByteBuffer report = reports.get(i);
+
+			decoder.decode(report, 2, report.get(1) & 0xff);
+		}
+
+		return series;
+	}
+
+	@Benchmark
+	public List<Object[]> splitAndFormat() throws ParseException {
+		SimpleDateFormat resultFormat = new SimpleDateFormat("MM-dd-yy HH:mm");
+		List<Object[]> measures = new ArrayList<Object[]>();
+
+		for (String line : lines) {
+			String[] tokens = line.split(",");
+			if (tokens.length <= 8)
+				continue;
+
+			Date date = resultFormat.parse(tokens[2] + "-" + tokens[3] + "-" + tokens[4] + " " + tokens[5] + ":" + tokens[6]);
+			float value = Float.parseFloat(tokens[8]);
+			if (value == 1)
+				value = 0;
+
+			measures.add(new Object[] { date, value });
+		}
+
+		return measures;
+	}
+}
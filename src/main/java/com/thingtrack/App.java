@@ -1,6 +1,16 @@
 package com.thingtrack;
 
+import java.io.File;
 import java.io.IOException;
+import java.net.URL;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.Logger;
 import org.usb4java.Context;
@@ -11,7 +21,22 @@ import org.usb4java.HotplugCallbackHandle;
 import org.usb4java.LibUsb;
 import org.usb4java.LibUsbException;
 
-import com.thingtrack.parser.FreeStyleOptiumNeoParser;
+import com.thingtrack.capture.TrafficRecorder;
+import com.thingtrack.daemon.ServiceStatus;
+import com.thingtrack.delivery.DeliveryPipeline;
+import com.thingtrack.delivery.DeliverySpool;
+import com.thingtrack.delivery.HttpSink;
+import com.thingtrack.metrics.MetricsReporter;
+import com.thingtrack.metrics.SyncMetrics;
+import com.thingtrack.parser.AbstractUsbParser;
+import com.thingtrack.parser.DriverRegistry;
+import com.thingtrack.query.QueryHttpServer;
+import com.thingtrack.query.QueryService;
+import com.thingtrack.session.SessionScheduler;
+import com.thingtrack.store.DedupIndexStore;
+import com.thingtrack.store.MeasureLogStore;
+import com.thingtrack.store.MeterMetadataStore;
+import com.thingtrack.store.SyncStateStore;
 
 import joptsimple.OptionParser;
 import joptsimple.OptionSet;
@@ -21,16 +46,103 @@ public class App {
 	private static final String DEF_PATH = "./";
 	
     // Default wait milliseconds from send command to receive response
-	private static final int DEF_WAIT = 1000;
+	static final int DEF_WAIT = 1000;
+	
+	// Default command pacing: adaptive or fixed
+	private static final String DEF_PACING = "adaptive";
+	
+	// Default number of pipelined transfers reading the result dump
+	static final int DEF_DEPTH = 4;
+	
+	// Default number of concurrent download sessions
+	static final int DEF_THREADS = 4;
+	
+	// Default export format: json, binary or both
+	private static final String DEF_FORMAT = "json";
+	
+	// State directory, inside the export path
+	private static final String STATE_DIR = ".glukose";
+	
+	// Measure logs directory, inside the state directory
+	private static final String LOG_DIR = "log";
+	
+	// Dedup indexes directory, inside the state directory
+	private static final String DEDUP_DIR = "dedup";
+	
+	// Rollups directory, inside the state directory
+	private static final String ROLLUP_DIR = "rollup";
+	
+	// Default max wait milliseconds for the device to be ready after claiming it
+	static final int DEF_READY = 5000;
+	
+	// Default seconds between two metrics snapshots in the log, 0 disables them
+	private static final int DEF_SNAPSHOT = 300;
+	
+	// Spool of the batches not delivered, inside the state directory
+	private static final String SPOOL_DIR = "spool";
+	
+	// Max finished sessions waiting for the delivery
+	private static final int DELIVERY_CAPACITY = 64;
+	
+	// Max readings of a delivery batch
+	private static final int DELIVERY_BATCH = 1000;
+	
+	// Max milliseconds a finished session waits for its delivery batch
+	private static final long DELIVERY_WINDOW = 5000;
+	
+	// Timeout milliseconds of the delivery sink
+	private static final int DELIVERY_TIMEOUT = 10000;
+	
+	// Status file of the daemon mode, inside the state directory
+	private static final String STATUS_FILE = "status";
+	
+	// Default retries of a usb report read before the session is partial
+	static final int DEF_RETRIES = 3;
+	
+	// Default hours the cached meter metadata is used before it is read again
+	static final int DEF_METADATA_REFRESH = 24;
+	
+	// Number of usb transfers kept by a new capture file
+	private static final int CAPTURE_SLOTS = 65536;
+	
+	// Max wait milliseconds for the running sessions and the delivery on exit, together
+	private static final long SHUTDOWN_TIMEOUT = 60000;
 	
 	// assumes the current class is called logger 
 	private final static Logger logger = Logger.getLogger(App.class);
 	
-    private static FreeStyleOptiumNeoParser freeStyleOptiumNeoParser = 
-    		new FreeStyleOptiumNeoParser((short)0x1a61, (short)0x3850);
+    // Meter drivers, indexed by vendor and product ids
+    private static DriverRegistry drivers;
+    
+    private static SessionScheduler scheduler;
+    private static QueryHttpServer queryServer;
+    private static MetricsReporter metricsReporter;
+    private static TrafficRecorder recorder;
+    private static EventHandlingThread eventThread;
+    private static HotplugCallbackHandle callbackHandle;
+    private static ServiceStatus status;
+    private static DeliveryPipeline delivery;
+    
+    // Released when the service is stopped
+    private static final CountDownLatch stopped = new CountDownLatch(1);
     
     public static String path;
     public static Integer wait;
+    public static Integer readyTimeout;
+    public static Integer threads;
+    public static boolean adaptive;
+    public static Integer depth;
+    public static boolean resync;
+    public static Integer reportRetries;
+    public static boolean verbose;
+    public static boolean jsonExport;
+    public static boolean binaryExport;
+    public static SyncStateStore syncState;
+    public static MeasureLogStore measureLogs;
+    public static DedupIndexStore dedupIndexes;
+    public static MeterMetadataStore metadataCache;
+    public static long metadataRefresh;
+    public static QueryService queryService;
     
 	/**
      * This is the event handling thread. libusb doesn't start threads by its
@@ -74,33 +186,48 @@ public class App {
                 throw new LibUsbException("Unable to read device descriptor", result);
             }                
                             
-            System.out.format("%s: %04x:%04x%n",
-                event == LibUsb.HOTPLUG_EVENT_DEVICE_ARRIVED ? "Connected" : "Disconnected",
-                descriptor.idVendor(), descriptor.idProduct());
+            // most of the devices on the hub are not meters, skip them quietly
+            AbstractUsbParser driver = drivers.find(descriptor.idVendor(), descriptor.idProduct());
+            if (driver == null) {
+            	if (logger.isDebugEnabled())
+            		logger.debug(String.format("Not a meter: %04x:%04x", descriptor.idVendor(), descriptor.idProduct()));
+            	
+            	return 0;
+            }
+                            
+            if (verbose)
+            	System.out.format("%s: %04x:%04x%n",
+            		event == LibUsb.HOTPLUG_EVENT_DEVICE_ARRIVED ? "Connected" : "Disconnected",
+            		descriptor.idVendor(), descriptor.idProduct());
             
-            logger.info(String.format("%s: %04x:%04x%n", event == LibUsb.HOTPLUG_EVENT_DEVICE_ARRIVED ? "Connected" : "Disconnected",
-                        descriptor.idVendor(), descriptor.idProduct()));                        
+            logger.info(String.format("%s: %04x:%04x", event == LibUsb.HOTPLUG_EVENT_DEVICE_ARRIVED ? "Connected" : "Disconnected",
+                        descriptor.idVendor(), descriptor.idProduct()));
             
-            // execute Free Style Optium Neo Glucometer device
-            if (descriptor.idVendor() == freeStyleOptiumNeoParser.getVendorId() &&
-            	descriptor.idProduct() == freeStyleOptiumNeoParser.getProductId() &&
-            	event == 1) {
-            		// export data from device
-            		freeStyleOptiumNeoParser.execute(context, device, event, userData);
-            		
-            		// export json data to file
-            		freeStyleOptiumNeoParser.export("");
-            }
+            // queue a session with a new parser of the meter driver, the download
+            // runs on a session thread so the event thread is never blocked
+            if (event == LibUsb.HOTPLUG_EVENT_DEVICE_ARRIVED)
+            	scheduler.submit(device, driver.newSession());
              
             return 0;
         }
     }
     
+    /**
+     * Open the stores of the export path, the sessions need them.
+     */
+    static void openStores() throws IOException {
+    	syncState = new SyncStateStore(new File(path, STATE_DIR));
+    	measureLogs = new MeasureLogStore(new File(new File(path, STATE_DIR), LOG_DIR));
+    	dedupIndexes = new DedupIndexStore(new File(new File(path, STATE_DIR), DEDUP_DIR), measureLogs);
+    	metadataCache = new MeterMetadataStore(new File(path, STATE_DIR));
+    	queryService = new QueryService(measureLogs, new File(new File(path, STATE_DIR), ROLLUP_DIR), TimeZone.getDefault());
+    }
+    
     public static void main( String[] args ) throws IOException, InterruptedException {
     	logger.info("Starting LibUsb ...");
     	
-    	// parse path export argument: -p: export path
-    	OptionParser parser = new OptionParser( "p::w::" );    	
+    	// parse path export argument: -p: export path, -w: wait, -t: concurrent sessions, -m: pacing, -a: transfers, -r: full resync, -f: export format, -q: query port, -s: metrics snapshot interval, -i: ready wait, -v: verbose, -c: usb capture file, -d: daemon mode and status file, -u: delivery sink url, -k: metadata refresh hours, -e: report retries
+    	OptionParser parser = new OptionParser( "p::w::t::m::a::rf::q::s::i::vc::d::u::k::e::" );    	
     	OptionSet options = parser.parse(args);
     	
     	if (options.has("p"))  		    	
@@ -113,6 +240,139 @@ public class App {
     	else
     		wait = DEF_WAIT;
     	
+    	if (options.has("i"))
+    		readyTimeout = Integer.parseInt(options.valueOf("i").toString());
+    	else
+    		readyTimeout = DEF_READY;
+    	
+    	if (options.has("t"))  		    	
+    		threads = Integer.parseInt(options.valueOf("t").toString());    	
+    	else
+    		threads = DEF_THREADS;
+    	
+    	String pacing;
+    	if (options.has("m"))
+    		pacing = options.valueOf("m").toString();
+    	else
+    		pacing = DEF_PACING;
+    	
+    	adaptive = !"fixed".equals(pacing);
+    	
+    	if (options.has("a"))
+    		depth = Integer.parseInt(options.valueOf("a").toString());
+    	else
+    		depth = DEF_DEPTH;
+    	
+    	resync = options.has("r");
+    	
+    	if (options.has("e"))
+    		reportRetries = Integer.parseInt(options.valueOf("e").toString());
+    	else
+    		reportRetries = DEF_RETRIES;
+    	
+    	// the software version and the patient are read from the meter once per refresh interval
+    	int refreshHours;
+    	if (options.has("k"))
+    		refreshHours = Integer.parseInt(options.valueOf("k").toString());
+    	else
+    		refreshHours = DEF_METADATA_REFRESH;
+    	
+    	metadataRefresh = TimeUnit.HOURS.toMillis(refreshHours);
+    	
+    	String format;
+    	if (options.has("f"))
+    		format = options.valueOf("f").toString();
+    	else
+    		format = DEF_FORMAT;
+    	
+    	jsonExport = !"binary".equals(format);
+    	binaryExport = "binary".equals(format) || "both".equals(format);
+    	
+    	// the session progress and the payloads are only printed in verbose mode
+    	verbose = options.has("v");
+    	
+    	// the daemon mode never reads the console and publishes its state in a status file
+    	boolean daemon = options.has("d");
+    	if (daemon) {
+    		File statusFile;
+    		if (options.valueOf("d") != null)
+    			statusFile = new File(options.valueOf("d").toString());
+    		else
+    			statusFile = new File(new File(path, STATE_DIR), STATUS_FILE);
+    		
+    		status = new ServiceStatus(statusFile);
+    	}
+    	else
+    		status = new ServiceStatus(null);
+    	
+    	status.setState(ServiceStatus.State.STARTING);
+    	
+    	// open the stores and load the drivers while libusb starts, the hotplug
+    	// events are queued as soon as the drivers are loaded
+    	final Integer queryPort = options.has("q") ? Integer.valueOf(options.valueOf("q").toString()) : null;
+    	final URL sinkUrl = options.has("u") ? new URL(options.valueOf("u").toString()) : null;
+    	
+    	scheduler = new SessionScheduler(threads);
+    	
+    	ExecutorService startup = Executors.newFixedThreadPool(2);
+    	Future<DriverRegistry> driversLoaded = startup.submit(new Callable<DriverRegistry>() {
+    		@Override
+    		public DriverRegistry call() {
+    			// load the meter drivers listed as services
+    			return DriverRegistry.load();
+    		}
+    	});
+    	
+    	Future<Void> storesOpened = startup.submit(new Callable<Void>() {
+    		@Override
+    		public Void call() throws IOException {
+    			openStores();
+    			
+    			// the delivery to a downstream sink is optional
+    			if (sinkUrl != null) {
+    				DeliverySpool spool = new DeliverySpool(new File(new File(path, STATE_DIR), SPOOL_DIR));
+    				delivery = new DeliveryPipeline(new HttpSink(sinkUrl, DELIVERY_TIMEOUT), spool,
+    						DELIVERY_CAPACITY, DELIVERY_BATCH, DELIVERY_WINDOW);
+    				delivery.start();
+    				
+    				scheduler.setDelivery(delivery);
+    			}
+    			
+    			// the local query endpoint is optional
+    			if (queryPort != null) {
+    				queryServer = new QueryHttpServer(queryService, queryPort);
+    				queryServer.setStatus(status);
+    				queryServer.start();
+    			}
+    			
+    			return null;
+    		}
+    	});
+    	
+    	startup.shutdown();
+    	
+    	// the metrics are always recorded, the snapshots are optional
+    	SyncMetrics.getInstance().register();
+    	
+    	int snapshot;
+    	if (options.has("s"))
+    		snapshot = Integer.parseInt(options.valueOf("s").toString());
+    	else
+    		snapshot = DEF_SNAPSHOT;
+    	
+    	metricsReporter = new MetricsReporter(SyncMetrics.getInstance());
+    	if (snapshot > 0)
+    		metricsReporter.start(snapshot);
+    	
+    	// the sessions queued before the stores are opened wait for them
+    	scheduler.setStartup(storesOpened);
+    	
+    	// record the raw usb traffic of the sessions
+    	if (options.has("c")) {
+    		recorder = new TrafficRecorder(new File(options.valueOf("c").toString()), CAPTURE_SLOTS);
+    		scheduler.setRecorder(recorder);
+    	}
+    	
     	// Initialize the libusb context
         int result = LibUsb.init(null);
         
@@ -131,36 +391,121 @@ public class App {
         }
         
         // Start the event handling thread
-        EventHandlingThread thread = new EventHandlingThread();
-        thread.start();        
+        eventThread = new EventHandlingThread();
+        eventThread.start();
         
-        // Register the hotplug callback
-        HotplugCallbackHandle callbackHandle = new HotplugCallbackHandle();
+        // SIGTERM and Ctrl-C drain the running sessions before exit
+        Runtime.getRuntime().addShutdownHook(new Thread("glukose-shutdown") {
+        	@Override
+        	public void run() {
+        		shutdown();
+        	}
+        });
+        
+        try {
+        	drivers = driversLoaded.get();
+        } catch (ExecutionException e) {
+        	logger.fatal("Unable to load the meter drivers", e.getCause());
+        	System.exit(1);
+        }
+        
+        if (drivers.size() == 0)
+        	logger.warn("No meter drivers found in the class path");
+        
+        // Register the hotplug callback, the meters already connected are
+        // enumerated right now and queued like the new ones
+        HotplugCallbackHandle handle = new HotplugCallbackHandle();
         result = LibUsb.hotplugRegisterCallback(null,
             LibUsb.HOTPLUG_EVENT_DEVICE_ARRIVED | LibUsb.HOTPLUG_EVENT_DEVICE_LEFT,
             LibUsb.HOTPLUG_ENUMERATE,
             LibUsb.HOTPLUG_MATCH_ANY,
             LibUsb.HOTPLUG_MATCH_ANY,
             LibUsb.HOTPLUG_MATCH_ANY,
-            new Callback(), null, callbackHandle);
+            new Callback(), null, handle);
         
         if (result != LibUsb.SUCCESS) {
         	logger.error("LibUsbException", new LibUsbException("Unable to register hotplug callback", result));        	
             throw new LibUsbException("Unable to register hotplug callback", result);
         }
         
+        callbackHandle = handle;
+        
+        // the queued sessions fail if the stores cannot be opened, stop the service
+        try {
+        	storesOpened.get();
+        } catch (ExecutionException e) {
+        	logger.fatal("Unable to open the stores at " + path, e.getCause());
+        	System.exit(1);
+        }
+        
+        // ready once every startup task succeeded
+        status.setState(ServiceStatus.State.READY);
+        
+        if (daemon) {
+        	// run until the service is stopped by a signal
+        	stopped.await();
+        	
+        	return;
+        }
+        
         // Our faked application. Hit enter key to exit the application.
         System.out.println("Hit enter to exit ...");
         System.in.read();
-
-        // Unregister the hotplug callback and stop the event handling thread
-        thread.abort();
-        LibUsb.hotplugDeregisterCallback(null, callbackHandle);
-        thread.join();
-        
-        // Deinitialize the libusb context
-        LibUsb.exit(null);
         
-        logger.info("Exit LibUsb ...");
+        shutdown();
+    }
+    
+    /**
+     * Stop the service: stop handling the hotplug events, wait for the running
+     * sessions and close the stores. Called once, on exit or by the shutdown hook.
+     */
+    private static synchronized void shutdown() {
+    	if (status.getState() == ServiceStatus.State.STOPPING || status.getState() == ServiceStatus.State.STOPPED)
+    		return;
+    	
+    	status.setState(ServiceStatus.State.STOPPING);
+    	
+    	try {
+    		// Unregister the hotplug callback and wait for the running sessions
+    		if (callbackHandle != null)
+    			LibUsb.hotplugDeregisterCallback(null, callbackHandle);
+    		
+    		long deadline = System.currentTimeMillis() + SHUTDOWN_TIMEOUT;
+    		
+    		if (!scheduler.shutdown(SHUTDOWN_TIMEOUT))
+    			logger.warn("Some download sessions did not finish before exit");
+    		
+    		// deliver or spool the readings of the finished sessions, in the time left
+    		if (delivery != null)
+    			delivery.stop(Math.max(deadline - System.currentTimeMillis(), 0));
+    		
+    		if (queryServer != null)
+    			queryServer.stop();
+    		
+    		metricsReporter.stop();
+    		
+    		if (measureLogs != null)
+    			measureLogs.close();
+    		
+    		if (recorder != null)
+    			recorder.close();
+    		
+    		// Stop the event handling thread
+    		eventThread.abort();
+    		eventThread.join();
+    		
+    		// Deinitialize the libusb context
+    		LibUsb.exit(null);
+    	} catch (InterruptedException e) {
+    		logger.warn("Interrupted while stopping the service");
+    		Thread.currentThread().interrupt();
+    	} catch (IOException e) {
+    		logger.error("Unable to close the stores", e);
+    	} finally {
+    		status.setState(ServiceStatus.State.STOPPED);
+    		stopped.countDown();
+    	}
+    	
+    	logger.info("Exit LibUsb ...");
     }
 }
@@ -0,0 +1,484 @@
+package com.thingtrack;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.log4j.Logger;
+
+import com.thingtrack.metrics.LatencyHistogram;
+import com.thingtrack.metrics.SyncMetrics;
+import com.thingtrack.parser.AbstractUsbParser;
+import com.thingtrack.parser.DriverRegistry;
+import com.thingtrack.parser.FreeStyleOptiumNeoParser;
+import com.thingtrack.session.SessionScheduler;
+import com.thingtrack.transport.MeterTrace;
+import com.thingtrack.transport.RecordedMeterTrace;
+import com.thingtrack.transport.ReportBufferPool;
+import com.thingtrack.transport.ReportReader;
+import com.thingtrack.transport.SimulatedMeterTransport;
+import com.thingtrack.transport.SyntheticMeterTrace;
+import com.thingtrack.transport.UsbTransport;
+
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+
+/**
+ * Soak and load test of the service without usb hardware: a hub of simulated
+ * meters plugged at random, with exponential times between the arrivals. The
+ * arrivals go the way of the hotplug callback, the driver is looked up by the
+ * usb ids in the {@link DriverRegistry} and a new session is queued in the
+ * {@link SessionScheduler}, so the meters are downloaded by the real parser
+ * and exported to the real stores.
+ * <p>
+ * Every interval a report is logged: the sessions per minute, the percentiles
+ * of the time from the plug to the end of the export, the heap, the
+ * allocation rate, the collections and the open file handles, so a leak shows
+ * as a drift over a long run. The exit code is 1 if any session failed or was
+ * partial.
+ * <p>
+ * The meters answer a synthetic history, or replay a trace recorded from a
+ * real meter (see {@link RecordedMeterTrace}), each under its own serial
+ * number.
+ */
+public class LoadTest {
+	// assumes the current class is called logger
+	private final static Logger logger = Logger.getLogger(LoadTest.class);
+
+	// Default number of meters of the hub
+	private static final int DEF_METERS = 30;
+
+	// Default meters plugged per minute
+	private static final double DEF_RATE = 30;
+
+	// Default measures in every meter
+	private static final int DEF_HISTORY = 500;
+
+	// Default milliseconds from a command to its response
+	private static final int DEF_LATENCY = 20;
+
+	// Default minutes of the run
+	private static final int DEF_DURATION = 60;
+
+	// Default seconds between two reports
+	private static final int DEF_INTERVAL = 60;
+
+	// Milliseconds from the plug to the first command answered
+	private static final int STARTUP_DELAY = 300;
+
+	// Meter clock advance between two plugs, two new measures of the synthetic meters
+	private static final long CLOCK_ADVANCE = 8 * 60 * 60 * 1000L;
+
+	// Max wait milliseconds for the running sessions at the end
+	private static final long SHUTDOWN_TIMEOUT = 60000;
+
+	private static final long MB = 1024 * 1024;
+
+	private final int historySize;
+	private final int latency;
+
+	private final SessionScheduler scheduler;
+	private final AbstractUsbParser driver;
+
+	/** The trace replayed by every meter, null for the synthetic histories */
+	private RecordedMeterTrace recorded;
+
+	/** 1 while the meter is plugged, until its session ends */
+	private final AtomicIntegerArray plugged;
+	private final long[] clocks;
+
+	private final Random random = new Random();
+
+	private final AtomicLong plugs = new AtomicLong();
+	private final AtomicLong busy = new AtomicLong();
+
+	/** Plug to export times, of the whole run and of the current interval */
+	private final LatencyHistogram latencies = new LatencyHistogram();
+	private final AtomicReference<LatencyHistogram> intervalLatencies = new AtomicReference<LatencyHistogram>(new LatencyHistogram());
+
+	/** State of the interval rates, only used by the reporter */
+	private long intervalStart = System.nanoTime();
+	private long intervalSessions;
+	private final Map<Long, Long> threadAllocations = new HashMap<Long, Long>();
+
+	/**
+	 * A recorded trace answered under the serial number of a meter, so the
+	 * meters replaying it do not share their stores.
+	 */
+	private static class ReplayedTrace implements MeterTrace {
+		private final MeterTrace trace;
+		private final String serial;
+
+		ReplayedTrace(MeterTrace trace, String serial) {
+			this.trace = trace;
+			this.serial = serial;
+		}
+
+		@Override
+		public InputStream respond(String command) throws IOException {
+			if ("$serlnum?".equals(command))
+				return new ByteArrayInputStream((serial + "\r\nCKSM:00000000\r\nCMD OK\r\n").getBytes(StandardCharsets.US_ASCII));
+
+			return trace.respond(command);
+		}
+	}
+
+	/**
+	 * A plugged meter. The session disposes the transport when it ends, the
+	 * meter is unplugged then.
+	 */
+	private class PluggedMeter implements UsbTransport {
+		private final int meter;
+		private final UsbTransport transport;
+		private final long pluggedAt = System.nanoTime();
+		private boolean disposed;
+
+		PluggedMeter(int meter, UsbTransport transport) {
+			this.meter = meter;
+			this.transport = transport;
+		}
+
+		@Override
+		public void open() {
+			transport.open();
+		}
+
+		@Override
+		public void close() {
+			transport.close();
+		}
+
+		@Override
+		public void dispose() {
+			if (disposed)
+				return;
+
+			disposed = true;
+			transport.dispose();
+
+			long elapsed = System.nanoTime() - pluggedAt;
+			latencies.record(elapsed);
+			intervalLatencies.get().record(elapsed);
+
+			plugged.set(meter, 0);
+		}
+
+		@Override
+		public int controlTransfer(byte requestType, byte request, short value, short index, ByteBuffer data, long timeout) {
+			return transport.controlTransfer(requestType, request, value, index, data, timeout);
+		}
+
+		@Override
+		public int bulkTransfer(byte endpoint, ByteBuffer data, IntBuffer transferred, long timeout) {
+			return transport.bulkTransfer(endpoint, data, transferred, timeout);
+		}
+
+		@Override
+		public int clearHalt(byte endpoint) {
+			return transport.clearHalt(endpoint);
+		}
+
+		@Override
+		public ReportReader openReader(byte endpoint, ReportBufferPool pool, int depth) {
+			return transport.openReader(endpoint, pool, depth);
+		}
+	}
+
+	/**
+	 * @param meters
+	 *            The meters of the hub.
+	 * @param historySize
+	 *            The measures in every meter.
+	 * @param latency
+	 *            The milliseconds from a command to its response.
+	 * @param scheduler
+	 *            The scheduler of the sessions.
+	 * @param drivers
+	 *            The meter drivers.
+	 */
+	public LoadTest(int meters, int historySize, int latency, SessionScheduler scheduler, DriverRegistry drivers) {
+		this.historySize = historySize;
+		this.latency = latency;
+		this.scheduler = scheduler;
+
+		// the simulated meters are FreeStyle Optium Neo
+		this.driver = drivers.find(FreeStyleOptiumNeoParser.VENDOR_ID, FreeStyleOptiumNeoParser.PRODUCT_ID);
+		if (driver == null)
+			throw new IllegalStateException("No driver of the simulated meters in the class path");
+
+		this.plugged = new AtomicIntegerArray(meters);
+		this.clocks = new long[meters];
+
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < meters; i++)
+			clocks[i] = now;
+	}
+
+	/**
+	 * Plug a meter not plugged yet, picked at random.
+	 *
+	 * @return false if all the meters are plugged.
+	 */
+	private boolean plug() {
+		int meters = plugged.length();
+		int start = random.nextInt(meters);
+
+		for (int i = 0; i < meters; i++) {
+			int meter = (start + i) % meters;
+			if (!plugged.compareAndSet(meter, 0, 1))
+				continue;
+
+			// every plug the meter has new measures
+			clocks[meter] += CLOCK_ADVANCE;
+
+			String serial = String.format("SIM%04d", meter);
+			MeterTrace trace = recorded != null ? new ReplayedTrace(recorded, serial) : new SyntheticMeterTrace(serial, historySize, clocks[meter], meter);
+			SimulatedMeterTransport transport = new SimulatedMeterTransport(trace);
+			transport.setLatency(latency);
+			transport.setStartupDelay(STARTUP_DELAY);
+
+			// the path of the hotplug callback with a simulated device, a new
+			// device key every plug like a meter plugged in any port of the hub
+			scheduler.submit("sim-" + meter + "." + plugs.incrementAndGet(), new PluggedMeter(meter, transport), driver.newSession());
+
+			return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Replay a recorded trace in every meter instead of a synthetic history.
+	 */
+	public void setTrace(RecordedMeterTrace trace) {
+		this.recorded = trace;
+	}
+
+	/**
+	 * Plug meters until the end of the run.
+	 *
+	 * @param rate
+	 *            The meters plugged per minute.
+	 * @param duration
+	 *            The milliseconds of the run.
+	 */
+	public void run(double rate, long duration) throws InterruptedException {
+		long end = System.currentTimeMillis() + duration;
+
+		while (true) {
+			// exponential times between the arrivals
+			long pause = (long) (-Math.log(1 - random.nextDouble()) * 60000 / rate);
+
+			long remaining = end - System.currentTimeMillis();
+			if (pause >= remaining)
+				break;
+
+			Thread.sleep(pause);
+
+			if (!plug())
+				busy.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Heap used by the live objects and the garbage not collected yet.
+	 */
+	private static long getHeapUsed() {
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+	}
+
+	/**
+	 * Bytes allocated by the live threads since the last call, -1 if the
+	 * JVM does not measure the allocations.
+	 */
+	private long getAllocated() {
+		if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean))
+			return -1;
+
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		if (!threads.isThreadAllocatedMemorySupported() || !threads.isThreadAllocatedMemoryEnabled())
+			return -1;
+
+		long[] ids = threads.getAllThreadIds();
+		long[] allocated = threads.getThreadAllocatedBytes(ids);
+
+		long total = 0;
+		Map<Long, Long> current = new HashMap<Long, Long>();
+		for (int i = 0; i < ids.length; i++) {
+			if (allocated[i] < 0)
+				continue;
+
+			Long before = threadAllocations.get(ids[i]);
+			total += allocated[i] - (before == null ? 0 : before);
+
+			current.put(ids[i], allocated[i]);
+		}
+
+		// the threads ended since the last call are forgotten
+		threadAllocations.clear();
+		threadAllocations.putAll(current);
+
+		return total;
+	}
+
+	/**
+	 * Open file handles of the process, -1 if unknown.
+	 */
+	private static long getOpenFiles() {
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+
+		if (os instanceof com.sun.management.UnixOperatingSystemMXBean)
+			return ((com.sun.management.UnixOperatingSystemMXBean) os).getOpenFileDescriptorCount();
+
+		return -1;
+	}
+
+	private static String getCollections() {
+		long count = 0;
+		long time = 0;
+
+		for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+			count += Math.max(collector.getCollectionCount(), 0);
+			time += Math.max(collector.getCollectionTime(), 0);
+		}
+
+		return count + " (" + time + " ms)";
+	}
+
+	/**
+	 * Describe the interval since the last report and start a new one.
+	 */
+	public synchronized String report() {
+		SyncMetrics metrics = SyncMetrics.getInstance();
+
+		long now = System.nanoTime();
+		double seconds = Math.max(now - intervalStart, 1) / 1e9;
+
+		long sessions = metrics.getSessions();
+		long allocated = getAllocated();
+
+		LatencyHistogram interval = intervalLatencies.getAndSet(new LatencyHistogram());
+
+		String report = String.format("sessions/min=%.1f total=%d failed=%d partial=%d active=%d plugs=%d busy=%d " +
+				"latency p50=%.0fms p90=%.0fms p99=%.0fms max=%.0fms heap=%dMB alloc=%sMB/s gc=%s files=%d",
+				(sessions - intervalSessions) * 60 / seconds, sessions, metrics.getFailedSessions(), metrics.getPartialSessions(),
+				scheduler.getActiveSessions(), plugs.get(), busy.get(),
+				interval.getQuantileMillis(0.50), interval.getQuantileMillis(0.90), interval.getQuantileMillis(0.99), interval.getMaxMillis(),
+				getHeapUsed() / MB, allocated < 0 ? "?" : String.format("%.1f", allocated / seconds / MB), getCollections(), getOpenFiles());
+
+		intervalStart = now;
+		intervalSessions = sessions;
+
+		return report;
+	}
+
+	/**
+	 * Describe the whole run.
+	 */
+	public String summary() {
+		SyncMetrics metrics = SyncMetrics.getInstance();
+
+		return String.format("%d sessions, %d failed, %d partial, %d plugs with all the meters busy, latency p50=%.0fms p90=%.0fms p99=%.0fms max=%.0fms",
+				metrics.getSessions(), metrics.getFailedSessions(), metrics.getPartialSessions(), busy.get(),
+				latencies.getQuantileMillis(0.50), latencies.getQuantileMillis(0.90), latencies.getQuantileMillis(0.99), latencies.getMaxMillis());
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		// -p: export path, -n: meters, -r: plugs per minute, -h: measures per meter, -l: response latency, -t: concurrent sessions, -d: minutes, -s: report interval, -c: recorded trace
+		OptionParser parser = new OptionParser("p::n::r::h::l::t::d::s::c::");
+		OptionSet options = parser.parse(args);
+
+		if (options.has("p"))
+			App.path = options.valueOf("p").toString();
+		else
+			App.path = Files.createTempDirectory("glukose-loadtest").toString();
+
+		int meters = options.has("n") ? Integer.parseInt(options.valueOf("n").toString()) : DEF_METERS;
+		double rate = options.has("r") ? Double.parseDouble(options.valueOf("r").toString()) : DEF_RATE;
+		int historySize = options.has("h") ? Integer.parseInt(options.valueOf("h").toString()) : DEF_HISTORY;
+		int latency = options.has("l") ? Integer.parseInt(options.valueOf("l").toString()) : DEF_LATENCY;
+		int duration = options.has("d") ? Integer.parseInt(options.valueOf("d").toString()) : DEF_DURATION;
+		int interval = options.has("s") ? Integer.parseInt(options.valueOf("s").toString()) : DEF_INTERVAL;
+
+		// the service defaults, without console output
+		App.wait = App.DEF_WAIT;
+		App.readyTimeout = App.DEF_READY;
+		App.threads = options.has("t") ? Integer.parseInt(options.valueOf("t").toString()) : App.DEF_THREADS;
+		App.adaptive = true;
+		App.depth = App.DEF_DEPTH;
+		App.reportRetries = App.DEF_RETRIES;
+		App.metadataRefresh = TimeUnit.HOURS.toMillis(App.DEF_METADATA_REFRESH);
+		App.jsonExport = true;
+
+		App.openStores();
+		SyncMetrics.getInstance().register();
+
+		SessionScheduler scheduler = new SessionScheduler(App.threads);
+		final LoadTest test = new LoadTest(meters, historySize, latency, scheduler, DriverRegistry.load());
+
+		if (options.has("c")) {
+			File trace = new File(options.valueOf("c").toString());
+			test.setTrace(RecordedMeterTrace.load(trace));
+
+			logger.info("The meters replay the trace " + trace);
+		}
+
+		logger.info(String.format("Load test of %d meters, %.1f plugs per minute, %d measures, %d ms latency, %d sessions, %d minutes, exports in %s",
+				meters, rate, historySize, latency, App.threads, duration, new File(App.path).getAbsolutePath()));
+
+		ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "glukose-loadtest");
+				thread.setDaemon(true);
+
+				return thread;
+			}
+		});
+
+		reporter.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				String report = test.report();
+
+				System.out.println(report);
+				logger.info(report);
+			}
+		}, interval, interval, TimeUnit.SECONDS);
+
+		try {
+			test.run(rate, TimeUnit.MINUTES.toMillis(duration));
+
+			if (!scheduler.shutdown(SHUTDOWN_TIMEOUT))
+				logger.warn("Some download sessions did not finish before the end");
+		} finally {
+			reporter.shutdownNow();
+			App.measureLogs.close();
+		}
+
+		String summary = test.summary();
+		System.out.println(summary);
+		logger.info(summary);
+
+		SyncMetrics metrics = SyncMetrics.getInstance();
+		System.exit(metrics.getFailedSessions() + metrics.getPartialSessions() > 0 ? 1 : 0);
+	}
+}
@@ -0,0 +1,438 @@
+package com.thingtrack;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.thingtrack.export.AtomicFile;
+import com.thingtrack.export.BinaryExportFormat;
+import com.thingtrack.export.BinaryExportReader;
+import com.thingtrack.export.BinaryExportWriter;
+import com.thingtrack.export.JsonExportReader;
+import com.thingtrack.export.JsonStreamWriter;
+import com.thingtrack.parser.FreeStyleOptiumNeoParser;
+import com.thingtrack.parser.MeasureSeries;
+import com.thingtrack.store.DedupIndex;
+import com.thingtrack.store.LongHashSet;
+import com.thingtrack.store.MeasureLogStore;
+
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+
+/**
+ * Batch mode: rebuilds the consolidated dataset of every meter from a tree
+ * of exports, applying the current parsing rules again. The exports are
+ * parsed in parallel on a work stealing pool, the readings are merged per
+ * serial number dropping the duplicates, and one consolidated export per
+ * meter is written, sorted by time.
+ */
+public class Reprocess {
+	// assumes the current class is called logger
+	private final static Logger logger = Logger.getLogger(Reprocess.class);
+
+	// Default output directory, inside the export path
+	private static final String DEF_OUTPUT = "consolidated";
+
+	// Default export format: json, binary or both
+	private static final String DEF_FORMAT = "json";
+
+	// Max files parsed by a task before it is split
+	private static final int FILES_PER_TASK = 8;
+
+	// Seconds between two progress reports
+	private static final int PROGRESS_INTERVAL = 5;
+
+	/**
+	 * The merged readings of a meter.
+	 */
+	private static class Dataset {
+		private final String serial;
+		private final MeasureSeries measures = new MeasureSeries();
+		private final LongHashSet keys = new LongHashSet();
+
+		/** Metadata of the newest export */
+		private long clock = Long.MIN_VALUE;
+		private String swver;
+		private String ptname;
+		private String ptid;
+
+		private int files;
+
+		Dataset(String serial) {
+			this.serial = serial;
+		}
+
+		/**
+		 * Merge the readings of an export.
+		 *
+		 * @return The duplicates dropped.
+		 */
+		synchronized int merge(long clock, String swver, String ptname, String ptid, MeasureSeries series) {
+			files++;
+
+			if (clock >= this.clock) {
+				this.clock = clock;
+				this.swver = swver;
+				this.ptname = ptname;
+				this.ptid = ptid;
+			}
+
+			int duplicates = 0;
+			for (int i = 0; i < series.size(); i++) {
+				float value = FreeStyleOptiumNeoParser.normalize(series.getValue(i));
+
+				if (!keys.add(DedupIndex.key(series.getTimestamp(i), value))) {
+					duplicates++;
+					continue;
+				}
+
+				measures.add(series.getTimestamp(i), value, value == 0 ? MeasureSeries.FLAG_ZERO : 0);
+			}
+
+			return duplicates;
+		}
+	}
+
+	private final File output;
+	private final boolean jsonOutput;
+	private final boolean binaryOutput;
+
+	private final ConcurrentHashMap<String, Dataset> datasets = new ConcurrentHashMap<String, Dataset>();
+
+	private final AtomicLong filesDone = new AtomicLong();
+	private final AtomicLong filesFailed = new AtomicLong();
+	private final AtomicLong bytesRead = new AtomicLong();
+	private final AtomicLong readings = new AtomicLong();
+	private final AtomicLong duplicates = new AtomicLong();
+
+	/** Nanoseconds spent parsing, summed over the workers */
+	private final AtomicLong parseNanos = new AtomicLong();
+
+	public Reprocess(File output, boolean jsonOutput, boolean binaryOutput) {
+		this.output = output;
+		this.jsonOutput = jsonOutput;
+		this.binaryOutput = binaryOutput;
+	}
+
+	/**
+	 * Parse a range of the exports, splitting it while it is too large so the
+	 * idle workers can steal the halves.
+	 */
+	private class ParseTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final List<Path> files;
+		private final int from;
+		private final int to;
+
+		ParseTask(List<Path> files, int from, int to) {
+			this.files = files;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > FILES_PER_TASK) {
+				int middle = (from + to) >>> 1;
+				invokeAll(new ParseTask(files, from, middle), new ParseTask(files, middle, to));
+
+				return;
+			}
+
+			for (int i = from; i < to; i++)
+				parse(files.get(i));
+		}
+	}
+
+	private void parse(Path path) {
+		long start = System.nanoTime();
+
+		try {
+			File file = path.toFile();
+			bytesRead.addAndGet(file.length());
+
+			if (file.getName().endsWith(BinaryExportFormat.EXTENSION)) {
+				BinaryExportReader reader = new BinaryExportReader(file);
+				try {
+					merge(reader.getSerlnum(), reader.getClock(), reader.getSwver(), reader.getPtname(), reader.getPtid(), reader.read());
+				} finally {
+					reader.close();
+				}
+			}
+			else {
+				JsonExportReader reader = new JsonExportReader(file);
+				merge(reader.getSerlnum(), reader.getClock(), reader.getSwver(), reader.getPtname(), reader.getPtid(), reader.getMeasures());
+			}
+		} catch (IOException e) {
+			filesFailed.incrementAndGet();
+			logger.warn("Export " + path + " skipped: " + e.getMessage());
+		} catch (RuntimeException e) {
+			// a bad file never stops the run
+			filesFailed.incrementAndGet();
+			logger.warn("Export " + path + " skipped", e);
+		} finally {
+			filesDone.incrementAndGet();
+			parseNanos.addAndGet(System.nanoTime() - start);
+		}
+	}
+
+	private void merge(String serial, long clock, String swver, String ptname, String ptid, MeasureSeries series) {
+		Dataset dataset = datasets.get(serial);
+		if (dataset == null) {
+			Dataset created = new Dataset(serial);
+
+			dataset = datasets.putIfAbsent(serial, created);
+			if (dataset == null)
+				dataset = created;
+		}
+
+		readings.addAndGet(series.size());
+		duplicates.addAndGet(dataset.merge(clock, swver, ptname, ptid, series));
+	}
+
+	/**
+	 * Write the consolidated export of a meter.
+	 */
+	private void write(Dataset dataset) throws IOException {
+		dataset.measures.sort();
+
+		String name = MeasureLogStore.getFileName(dataset.serial);
+
+		if (jsonOutput) {
+			AtomicFile file = new AtomicFile(new File(output, name + ".json"));
+			try {
+				JsonStreamWriter json = new JsonStreamWriter(file.open());
+
+				json.beginObject();
+				if (dataset.swver != null)
+					json.name("swver").value(dataset.swver);
+				json.name("serlnum").value(dataset.serial);
+				if (dataset.ptname != null)
+					json.name("ptname").value(dataset.ptname);
+				if (dataset.ptid != null)
+					json.name("ptid").value(dataset.ptid);
+				if (dataset.clock != Long.MIN_VALUE)
+					json.name("date").date(dataset.clock);
+				json.name("files").value((long) dataset.files);
+
+				json.name("measures").beginArray();
+				for (int i = 0; i < dataset.measures.size(); i++) {
+					json.beginObject();
+					json.name("date").date(dataset.measures.getTimestamp(i));
+					json.name("value").value(dataset.measures.getValue(i));
+					json.endObject();
+				}
+				json.endArray();
+
+				json.endObject();
+				json.close();
+
+				file.commit();
+			} catch (IOException e) {
+				file.abort();
+				throw e;
+			}
+		}
+
+		if (binaryOutput) {
+			AtomicFile file = new AtomicFile(new File(output, name + BinaryExportFormat.EXTENSION));
+			try {
+				BinaryExportWriter writer = new BinaryExportWriter(file.open());
+				writer.writeHeader(dataset.clock, dataset.measures.size(), dataset.serial, dataset.swver, dataset.ptname, dataset.ptid);
+				writer.writeMeasures(dataset.measures);
+				writer.close();
+
+				file.commit();
+			} catch (IOException e) {
+				file.abort();
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Find the exports of a tree, skipping the state and output directories.
+	 */
+	private List<Path> scan(File input) throws IOException {
+		final List<Path> files = new ArrayList<Path>();
+		final Path outputPath = output.toPath().toAbsolutePath().normalize();
+
+		Files.walkFileTree(input.toPath(), new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+				if (dir.toAbsolutePath().normalize().equals(outputPath) || dir.getFileName().toString().equals(".glukose"))
+					return FileVisitResult.SKIP_SUBTREE;
+
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+				String name = file.getFileName().toString();
+
+				if (name.indexOf('#') > 0 && (name.endsWith(".json") || name.endsWith(BinaryExportFormat.EXTENSION)))
+					files.add(file);
+
+				return FileVisitResult.CONTINUE;
+			}
+		});
+
+		return files;
+	}
+
+	/**
+	 * Peak heap used since the start, from the heap memory pools.
+	 */
+	private static long getPeakHeap() {
+		long peak = 0;
+
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null)
+				peak += pool.getPeakUsage().getUsed();
+		}
+
+		return peak;
+	}
+
+	private String progress(int total, long start) {
+		double seconds = Math.max(System.nanoTime() - start, 1) / 1e9;
+		long done = filesDone.get();
+
+		return String.format("%d/%d files (%.1f%%), %.0f files/s, %.1f MB/s, %.3f ms/file, %d readings, %d duplicates, %d failed, peak heap %d MB",
+				done, total, total == 0 ? 100.0 : done * 100.0 / total, done / seconds,
+				bytesRead.get() / seconds / (1024 * 1024), done == 0 ? 0 : parseNanos.get() / 1e6 / done,
+				readings.get(), duplicates.get(), filesFailed.get(), getPeakHeap() / (1024 * 1024));
+	}
+
+	/**
+	 * Reprocess an export tree.
+	 *
+	 * @param input
+	 *            The root of the exports.
+	 * @param parallelism
+	 *            The number of workers.
+	 */
+	public void run(File input, int parallelism) throws IOException, InterruptedException {
+		if (!output.isDirectory() && !output.mkdirs())
+			throw new IOException("Unable to create the output directory " + output);
+
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+			pool.resetPeakUsage();
+
+		final long start = System.nanoTime();
+
+		final List<Path> files = scan(input);
+		logger.info(files.size() + " exports found in " + input + " in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+
+		ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "glukose-progress");
+				thread.setDaemon(true);
+
+				return thread;
+			}
+		});
+
+		reporter.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				String report = progress(files.size(), start);
+
+				System.out.println(report);
+				logger.info(report);
+			}
+		}, PROGRESS_INTERVAL, PROGRESS_INTERVAL, TimeUnit.SECONDS);
+
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try {
+			pool.invoke(new ParseTask(files, 0, files.size()));
+
+			// the datasets are written in parallel too
+			final List<RecursiveAction> writes = new ArrayList<RecursiveAction>();
+			for (final Dataset dataset : datasets.values()) {
+				writes.add(new RecursiveAction() {
+					private static final long serialVersionUID = 1L;
+
+					@Override
+					protected void compute() {
+						try {
+							write(dataset);
+						} catch (IOException e) {
+							logger.error("Unable to write the dataset of " + dataset.serial, e);
+						}
+					}
+				});
+			}
+
+			pool.invoke(new RecursiveAction() {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected void compute() {
+					ForkJoinTask.invokeAll(writes);
+				}
+			});
+		} finally {
+			pool.shutdown();
+			reporter.shutdownNow();
+		}
+
+		String report = progress(files.size(), start);
+		System.out.println(report);
+		logger.info(report);
+
+		logger.info(datasets.size() + " datasets written to " + output + " with " + parallelism + " workers in " +
+				TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		// -p: export path, -o: output path, -t: workers, -f: output format
+		OptionParser parser = new OptionParser("p::o::t::f::");
+		OptionSet options = parser.parse(args);
+
+		File input = new File(options.has("p") ? options.valueOf("p").toString() : "./");
+
+		File output;
+		if (options.has("o"))
+			output = new File(options.valueOf("o").toString());
+		else
+			output = new File(input, DEF_OUTPUT);
+
+		int parallelism;
+		if (options.has("t"))
+			parallelism = Integer.parseInt(options.valueOf("t").toString());
+		else
+			parallelism = Runtime.getRuntime().availableProcessors();
+
+		String format;
+		if (options.has("f"))
+			format = options.valueOf("f").toString();
+		else
+			format = DEF_FORMAT;
+
+		new Reprocess(output, !"binary".equals(format), "binary".equals(format) || "both".equals(format))
+				.run(input, parallelism);
+	}
+}
@@ -0,0 +1,269 @@
+package com.thingtrack.analytics;
+
+import java.io.IOException;
+
+import com.thingtrack.export.JsonStreamWriter;
+
+/**
+ * Single pass summary of the glucose readings of a download, fed record by
+ * record while the results are decoded, in constant memory whatever the
+ * length of the history:
+ * <ul>
+ * <li>count, min, max, and mean and variance with the Welford recurrence</li>
+ * <li>percentiles from a histogram of 1 mg/dL buckets</li>
+ * <li>readings below, in and above the 70-180 mg/dL target range</li>
+ * <li>hypo (under 70 mg/dL) and hyper (over 250 mg/dL) events, the readings
+ * out of range less than two hours apart being one event</li>
+ * <li>estimated HbA1c from the mean, with the ADAG formula</li>
+ * </ul>
+ * The readings are spot checks, so the time in range is the share of the
+ * readings in range. The LO readings, under the range of the meter, have no
+ * value: they count as below range and in the hypo events, but not in the
+ * mean, variance, min, max and percentiles. The statistics do not depend on the order of the
+ * readings, but the events do: the readings must be added in time order,
+ * either way, like the meter sends its history newest first.
+ */
+public class GlycaemicSummary {
+	/** Bounds of the target range, in mg/dL */
+	public static final float RANGE_LOW = 70;
+	public static final float RANGE_HIGH = 180;
+
+	/** Bounds of the hypo and hyper events, in mg/dL */
+	public static final float HYPO = 70;
+	public static final float HYPER = 250;
+
+	/** Max milliseconds between two readings of the same event */
+	private static final long EVENT_GAP = 2 * 3600 * 1000L;
+
+	/** Buckets of the histogram, the higher readings go to the last one */
+	private static final int BUCKETS = 1024;
+
+	private static final double[] PERCENTILES = { 0.10, 0.25, 0.50, 0.75, 0.90 };
+	private static final String[] PERCENTILE_NAMES = { "p10", "p25", "p50", "p75", "p90" };
+
+	private final int[] histogram = new int[BUCKETS];
+
+	private long count;
+
+	/** Readings with a value, not LO */
+	private long values;
+	private double mean;
+	private double m2;
+	private float min = Float.MAX_VALUE;
+	private float max = -Float.MAX_VALUE;
+
+	private long below;
+	private long inRange;
+	private long above;
+
+	private int hypoEvents;
+	private int hyperEvents;
+	private long lastHypo = Long.MIN_VALUE;
+	private long lastHyper = Long.MIN_VALUE;
+
+	/**
+	 * Add a reading, in the time order of the readings added before.
+	 *
+	 * @param timestamp
+	 *            The epoch milliseconds of the reading.
+	 * @param value
+	 *            The glucose in mg/dL.
+	 */
+	public void add(long timestamp, float value) {
+		count++;
+		values++;
+
+		double delta = value - mean;
+		mean += delta / values;
+		m2 += delta * (value - mean);
+
+		if (value < min)
+			min = value;
+		if (value > max)
+			max = value;
+
+		int bucket = (int) value;
+		histogram[bucket < 0 ? 0 : bucket >= BUCKETS ? BUCKETS - 1 : bucket]++;
+
+		classify(timestamp, value);
+	}
+
+	/**
+	 * Add a LO reading, under the range of the meter, in the time order of
+	 * the readings added before.
+	 *
+	 * @param timestamp
+	 *            The epoch milliseconds of the reading.
+	 */
+	public void addLow(long timestamp) {
+		count++;
+
+		classify(timestamp, 0);
+	}
+
+	/**
+	 * Count a reading in the ranges and the events.
+	 */
+	private void classify(long timestamp, float value) {
+		if (value < RANGE_LOW)
+			below++;
+		else if (value > RANGE_HIGH)
+			above++;
+		else
+			inRange++;
+
+		if (value < HYPO) {
+			if (!sameEvent(lastHypo, timestamp))
+				hypoEvents++;
+			lastHypo = timestamp;
+		} else {
+			lastHypo = Long.MIN_VALUE;
+		}
+
+		if (value > HYPER) {
+			if (!sameEvent(lastHyper, timestamp))
+				hyperEvents++;
+			lastHyper = timestamp;
+		} else {
+			lastHyper = Long.MIN_VALUE;
+		}
+	}
+
+	private static boolean sameEvent(long last, long timestamp) {
+		return last != Long.MIN_VALUE && Math.abs(timestamp - last) < EVENT_GAP;
+	}
+
+	/**
+	 * Number of readings, LO included.
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * Number of LO readings.
+	 */
+	public long getLowCount() {
+		return count - values;
+	}
+
+	public double getMean() {
+		return mean;
+	}
+
+	/**
+	 * Sample variance of the readings, 0 with less than two readings.
+	 */
+	public double getVariance() {
+		return values < 2 ? 0 : m2 / (values - 1);
+	}
+
+	public double getStandardDeviation() {
+		return Math.sqrt(getVariance());
+	}
+
+	public float getMin() {
+		return min;
+	}
+
+	public float getMax() {
+		return max;
+	}
+
+	/**
+	 * Get a percentile of the readings.
+	 *
+	 * @param quantile
+	 *            The quantile, between 0 and 1.
+	 * @return The lower bound of the bucket of the quantile, clamped to the
+	 *         min and max readings.
+	 */
+	public float getQuantile(double quantile) {
+		if (values == 0)
+			return 0;
+
+		long rank = (long) Math.ceil(quantile * values);
+		if (rank < 1)
+			rank = 1;
+
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += histogram[i];
+
+			if (seen >= rank)
+				return Math.max(min, Math.min(i, max));
+		}
+
+		return max;
+	}
+
+	/**
+	 * Share of the readings in the target range, between 0 and 1.
+	 */
+	public double getTimeInRange() {
+		return count == 0 ? 0 : (double) inRange / count;
+	}
+
+	public double getTimeBelowRange() {
+		return count == 0 ? 0 : (double) below / count;
+	}
+
+	public double getTimeAboveRange() {
+		return count == 0 ? 0 : (double) above / count;
+	}
+
+	public int getHypoEvents() {
+		return hypoEvents;
+	}
+
+	public int getHyperEvents() {
+		return hyperEvents;
+	}
+
+	/**
+	 * Estimated HbA1c in %, from the mean glucose: (mean + 46.7) / 28.7.
+	 */
+	public double getEstimatedHbA1c() {
+		return (mean + 46.7) / 28.7;
+	}
+
+	/**
+	 * Write the summary as a JSON object, only the counts if there are no
+	 * readings, and no statistics of the values if they are all LO.
+	 */
+	public void write(JsonStreamWriter json) throws IOException {
+		json.beginObject();
+		json.name("count").value(count);
+		json.name("lo").value(count - values);
+
+		if (values > 0) {
+			json.name("mean").value(round(mean));
+			json.name("sd").value(round(getStandardDeviation()));
+			json.name("min").value(min);
+			json.name("max").value(max);
+
+			for (int i = 0; i < PERCENTILES.length; i++)
+				json.name(PERCENTILE_NAMES[i]).value(getQuantile(PERCENTILES[i]));
+		}
+
+		if (count > 0) {
+			json.name("belowRange").value(round(getTimeBelowRange()));
+			json.name("inRange").value(round(getTimeInRange()));
+			json.name("aboveRange").value(round(getTimeAboveRange()));
+			json.name("hypoEvents").value(hypoEvents);
+			json.name("hyperEvents").value(hyperEvents);
+
+			if (values > 0)
+				json.name("eHbA1c").value(round(getEstimatedHbA1c()));
+		}
+
+		json.endObject();
+	}
+
+	/**
+	 * Round to three decimals, as written in the export.
+	 */
+	private static float round(double value) {
+		return (float) (Math.round(value * 1000) / 1000.0);
+	}
+}
@@ -0,0 +1,230 @@
+package com.thingtrack.capture;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.usb4java.LibUsb;
+
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+
+/**
+ * Offline decoder of the usb traffic captures. Prints the transfers of a
+ * capture, or with -r the text commands and responses in the format of
+ * {@link com.thingtrack.transport.RecordedMeterTrace}, so a capture can be
+ * replayed by the simulated meter.
+ *
+ * <pre>
+ * java -cp glukose-service.jar com.thingtrack.capture.CaptureDump [-s session] [-r] capture.glkt
+ * </pre>
+ */
+public class CaptureDump {
+	/** Message type of the text responses */
+	private static final byte TEXT_TYPE = 0x06;
+
+	/** Header size of a report: message type and payload length */
+	private static final int HEADER_SIZE = 2;
+
+	private final PrintStream out;
+	private final int session;
+
+	private final SimpleDateFormat timeFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+
+	/** Text exchange in progress of every session, for the replay traces */
+	private static class Exchange {
+		private String command;
+		private final ByteArrayOutputStream response = new ByteArrayOutputStream();
+	}
+
+	private final Map<Integer, Exchange> exchanges = new HashMap<Integer, Exchange>();
+
+	/** Session of the last exchange printed */
+	private int printedSession;
+
+	/**
+	 * @param out
+	 *            The output.
+	 * @param session
+	 *            The capture session to decode, 0 for all.
+	 */
+	public CaptureDump(PrintStream out, int session) {
+		this.out = out;
+		this.session = session;
+	}
+
+	/**
+	 * Print the transfers of a capture.
+	 */
+	public void dump(CaptureReader reader) {
+		reader.forEach(new CaptureReader.Visitor() {
+			private long start;
+
+			@Override
+			public boolean visit(CaptureReader.Record record) {
+				if (session != 0 && record.getSession() != session)
+					return true;
+
+				if (start == 0)
+					start = record.getNanos();
+
+				out.format("%8d %s %+12.3f ms s%-4d %-10s %02x %6s %3d  %s%n",
+						record.getSequence(), timeFormat.format(new Date(record.getTime())),
+						(record.getNanos() - start) / 1e6, record.getSession(), kind(record.getKind()),
+						record.getEndpoint() & 0xff, result(record.getResult()), record.getLength(),
+						hex(record.getData()));
+
+				return true;
+			}
+		});
+	}
+
+	/**
+	 * Print the text commands and responses of a capture as a replay trace.
+	 */
+	public void trace(CaptureReader reader) {
+		reader.forEach(new CaptureReader.Visitor() {
+			@Override
+			public boolean visit(CaptureReader.Record record) {
+				if (session != 0 && record.getSession() != session)
+					return true;
+
+				if (record.getResult() != LibUsb.SUCCESS)
+					return true;
+
+				Exchange exchange = exchanges.get(record.getSession());
+				if (exchange == null) {
+					exchange = new Exchange();
+					exchanges.put(record.getSession(), exchange);
+				}
+
+				ByteBuffer data = record.getData();
+				if (data.limit() < HEADER_SIZE)
+					return true;
+
+				int length = Math.min(data.get(1) & 0xff, data.limit() - HEADER_SIZE);
+
+				if (record.getKind() == CaptureFormat.CONTROL && length > 0) {
+					flush(record.getSession(), exchange);
+
+					String command = text(data, length);
+					int end = command.indexOf('?');
+					exchange.command = end >= 0 ? command.substring(0, end + 1) : command.trim();
+				}
+				else if (record.getKind() == CaptureFormat.BULK && data.get(0) == TEXT_TYPE && exchange.command != null) {
+					for (int i = 0; i < length; i++)
+						exchange.response.write(data.get(HEADER_SIZE + i));
+				}
+
+				return true;
+			}
+		});
+
+		for (Map.Entry<Integer, Exchange> entry : exchanges.entrySet())
+			flush(entry.getKey(), entry.getValue());
+	}
+
+	private void flush(int session, Exchange exchange) {
+		if (exchange.command == null)
+			return;
+
+		if (session != printedSession) {
+			out.println("# session " + session);
+			printedSession = session;
+		}
+
+		out.println("> " + exchange.command);
+
+		String response = new String(exchange.response.toByteArray(), StandardCharsets.US_ASCII);
+		for (String line : response.split("\r\n")) {
+			if (!line.isEmpty())
+				out.println("< " + line);
+		}
+
+		exchange.command = null;
+		exchange.response.reset();
+	}
+
+	private static String text(ByteBuffer data, int length) {
+		byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++)
+			bytes[i] = data.get(HEADER_SIZE + i);
+
+		return new String(bytes, StandardCharsets.US_ASCII);
+	}
+
+	private static String kind(byte kind) {
+		switch (kind) {
+		case CaptureFormat.CONTROL:
+			return "CONTROL";
+		case CaptureFormat.BULK:
+			return "BULK";
+		case CaptureFormat.CLEAR_HALT:
+			return "CLEAR_HALT";
+		default:
+			return "?" + kind;
+		}
+	}
+
+	private static String result(int result) {
+		switch (result) {
+		case LibUsb.SUCCESS:
+			return "OK";
+		case LibUsb.ERROR_TIMEOUT:
+			return "TIMEOUT";
+		case LibUsb.ERROR_NO_DEVICE:
+			return "NODEV";
+		default:
+			return Integer.toString(result);
+		}
+	}
+
+	private static String hex(ByteBuffer data) {
+		StringBuilder text = new StringBuilder(data.limit() * 3 + 2);
+
+		for (int i = 0; i < data.limit(); i++)
+			text.append(String.format("%02x", data.get(i)));
+
+		text.append("  |");
+		for (int i = 0; i < data.limit(); i++) {
+			int b = data.get(i) & 0xff;
+			text.append(b >= 0x20 && b < 0x7f ? (char) b : '.');
+		}
+
+		return text.append('|').toString();
+	}
+
+	public static void main(String[] args) throws IOException {
+		// -s: capture session, -r: replay trace
+		OptionParser parser = new OptionParser("s::r");
+		OptionSet options = parser.parse(args);
+
+		if (options.nonOptionArguments().size() != 1) {
+			System.err.println("Usage: CaptureDump [-s session] [-r] capture" + CaptureFormat.EXTENSION);
+			System.exit(1);
+		}
+
+		int session = 0;
+		if (options.has("s"))
+			session = Integer.parseInt(options.valueOf("s").toString());
+
+		CaptureReader reader = new CaptureReader(new File(options.nonOptionArguments().get(0).toString()));
+		try {
+			CaptureDump dump = new CaptureDump(System.out, session);
+
+			if (options.has("r"))
+				dump.trace(reader);
+			else
+				dump.dump(reader);
+		} finally {
+			reader.close();
+		}
+	}
+}
@@ -0,0 +1,65 @@
+package com.thingtrack.capture;
+
+/**
+ * Layout of the usb traffic capture, a ring of fixed size slots in a
+ * preallocated file, big endian:
+ *
+ * <pre>
+ * header, HEADER_SIZE bytes:
+ *   magic       4 bytes "GLKT"
+ *   version     short
+ *   slotSize    int
+ *   slots       int      number of slots of the ring
+ * slots, SLOT_SIZE bytes each:
+ *   sequence    long     1 based number of the record, 0 if the slot is
+ *                        empty or being written
+ *   time        long     epoch milliseconds
+ *   nanos       long     System.nanoTime of the transfer end
+ *   session     int      capture session of the transfer
+ *   kind        byte     CONTROL, BULK or CLEAR_HALT
+ *   endpoint    byte
+ *   length      short    bytes transferred
+ *   result      int      libusb result code
+ *   data        MAX_DATA bytes, the first bytes transferred
+ * </pre>
+ *
+ * The record with sequence n is in the slot (n - 1) % slots, so once the
+ * ring is full the oldest records are overwritten.
+ */
+public final class CaptureFormat {
+	public static final int MAGIC = 0x474c4b54;
+
+	public static final short VERSION = 1;
+
+	/** File extension of the captures */
+	public static final String EXTENSION = ".glkt";
+
+	public static final int HEADER_SIZE = 64;
+
+	public static final int SLOT_SIZE = 128;
+
+	/** Size of the record header of a slot */
+	static final int RECORD_HEADER_SIZE = 8 + 8 + 8 + 4 + 1 + 1 + 2 + 4;
+
+	/** Max data bytes kept of a transfer */
+	public static final int MAX_DATA = SLOT_SIZE - RECORD_HEADER_SIZE;
+
+	/** Kinds of transfer */
+	public static final byte CONTROL = 1;
+	public static final byte BULK = 2;
+	public static final byte CLEAR_HALT = 3;
+
+	/** Offsets in a slot */
+	static final int SEQUENCE = 0;
+	static final int TIME = 8;
+	static final int NANOS = 16;
+	static final int SESSION = 24;
+	static final int KIND = 28;
+	static final int ENDPOINT = 29;
+	static final int LENGTH = 30;
+	static final int RESULT = 32;
+	static final int DATA = RECORD_HEADER_SIZE;
+
+	private CaptureFormat() {
+	}
+}
@@ -0,0 +1,152 @@
+package com.thingtrack.capture;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reader of the usb traffic captures, see {@link CaptureFormat}. The file is
+ * memory mapped and the records are decoded in place, oldest first.
+ */
+public class CaptureReader implements Closeable {
+	/**
+	 * A record of the capture. The same instance is reused for all the
+	 * records of a visit, it must not be kept.
+	 */
+	public static class Record {
+		private final ByteBuffer buffer;
+		private int offset;
+
+		Record(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		public long getSequence() {
+			return buffer.getLong(offset + CaptureFormat.SEQUENCE);
+		}
+
+		public long getTime() {
+			return buffer.getLong(offset + CaptureFormat.TIME);
+		}
+
+		public long getNanos() {
+			return buffer.getLong(offset + CaptureFormat.NANOS);
+		}
+
+		public int getSession() {
+			return buffer.getInt(offset + CaptureFormat.SESSION);
+		}
+
+		public byte getKind() {
+			return buffer.get(offset + CaptureFormat.KIND);
+		}
+
+		public byte getEndpoint() {
+			return buffer.get(offset + CaptureFormat.ENDPOINT);
+		}
+
+		/**
+		 * Bytes transferred, the data kept can be shorter.
+		 */
+		public int getLength() {
+			return buffer.getShort(offset + CaptureFormat.LENGTH) & 0xffff;
+		}
+
+		public int getResult() {
+			return buffer.getInt(offset + CaptureFormat.RESULT);
+		}
+
+		/**
+		 * Get the data kept of the transfer.
+		 */
+		public ByteBuffer getData() {
+			ByteBuffer data = buffer.duplicate();
+			data.position(offset + CaptureFormat.DATA);
+			data.limit(offset + CaptureFormat.DATA + Math.min(getLength(), CaptureFormat.MAX_DATA));
+
+			return data.slice();
+		}
+	}
+
+	/**
+	 * Visitor of the records.
+	 */
+	public interface Visitor {
+		/**
+		 * @return false to stop the visit.
+		 */
+		boolean visit(Record record);
+	}
+
+	private final FileChannel channel;
+	private final MappedByteBuffer buffer;
+	private final int slots;
+
+	public CaptureReader(File file) throws IOException {
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+
+		try {
+			this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+			if (buffer.limit() < CaptureFormat.HEADER_SIZE || buffer.getInt(0) != CaptureFormat.MAGIC)
+				throw new IOException("Not a usb capture: " + file);
+
+			if (buffer.getShort(4) != CaptureFormat.VERSION || buffer.getInt(6) != CaptureFormat.SLOT_SIZE)
+				throw new IOException("Unsupported usb capture version " + buffer.getShort(4) + ": " + file);
+
+			this.slots = buffer.getInt(10);
+
+			if (CaptureFormat.HEADER_SIZE + (long) slots * CaptureFormat.SLOT_SIZE > buffer.limit())
+				throw new IOException("Truncated usb capture: " + file);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	public int getSlots() {
+		return slots;
+	}
+
+	private int offset(long sequence) {
+		return CaptureFormat.HEADER_SIZE + (int) ((sequence - 1) % slots) * CaptureFormat.SLOT_SIZE;
+	}
+
+	/**
+	 * Visit the records, oldest first. The slots being written or
+	 * overwritten while the capture was stopped are skipped.
+	 */
+	public void forEach(Visitor visitor) {
+		long first = Long.MAX_VALUE;
+		long last = 0;
+
+		for (int i = 0; i < slots; i++) {
+			long sequence = buffer.getLong(CaptureFormat.HEADER_SIZE + i * CaptureFormat.SLOT_SIZE);
+
+			if (sequence > 0) {
+				first = Math.min(first, sequence);
+				last = Math.max(last, sequence);
+			}
+		}
+
+		// only the last lap of the ring is kept
+		first = Math.max(first, last - slots + 1);
+
+		Record record = new Record(buffer);
+		for (long sequence = first; sequence <= last; sequence++) {
+			record.offset = offset(sequence);
+
+			if (record.getSequence() == sequence && !visitor.visit(record))
+				break;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
@@ -0,0 +1,114 @@
+package com.thingtrack.capture;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+
+import org.usb4java.LibUsb;
+import org.usb4java.LibUsbException;
+
+import com.thingtrack.transport.Report;
+import com.thingtrack.transport.ReportBufferPool;
+import com.thingtrack.transport.ReportReader;
+import com.thingtrack.transport.UsbTransport;
+
+/**
+ * Transport that records every transfer of another one in a
+ * {@link TrafficRecorder}, so the parsers capture their traffic without
+ * knowing it.
+ */
+public class RecordingTransport implements UsbTransport {
+	private final UsbTransport transport;
+	private final TrafficRecorder recorder;
+	private final int session;
+
+	/**
+	 * @param transport
+	 *            The recorded transport.
+	 * @param recorder
+	 *            The capture.
+	 * @param session
+	 *            The capture session of the transport.
+	 */
+	public RecordingTransport(UsbTransport transport, TrafficRecorder recorder, int session) {
+		this.transport = transport;
+		this.recorder = recorder;
+		this.session = session;
+	}
+
+	public int getSession() {
+		return session;
+	}
+
+	@Override
+	public void open() {
+		transport.open();
+	}
+
+	@Override
+	public void close() {
+		transport.close();
+	}
+
+	@Override
+	public void dispose() {
+		transport.dispose();
+	}
+
+	@Override
+	public int controlTransfer(byte requestType, byte request, short value, short index, ByteBuffer data, long timeout) {
+		int result = transport.controlTransfer(requestType, request, value, index, data, timeout);
+
+		if (result < 0)
+			recorder.record(session, CaptureFormat.CONTROL, (byte) 0, result, data, 0);
+		else
+			recorder.record(session, CaptureFormat.CONTROL, (byte) 0, LibUsb.SUCCESS, data, result);
+
+		return result;
+	}
+
+	@Override
+	public int bulkTransfer(byte endpoint, ByteBuffer data, IntBuffer transferred, long timeout) {
+		int result = transport.bulkTransfer(endpoint, data, transferred, timeout);
+
+		recorder.record(session, CaptureFormat.BULK, endpoint, result, data,
+				result == LibUsb.SUCCESS ? transferred.get(0) : 0);
+
+		return result;
+	}
+
+	@Override
+	public int clearHalt(byte endpoint) {
+		int result = transport.clearHalt(endpoint);
+
+		recorder.record(session, CaptureFormat.CLEAR_HALT, endpoint, result, null, 0);
+
+		return result;
+	}
+
+	@Override
+	public ReportReader openReader(final byte endpoint, ReportBufferPool pool, int depth) {
+		final ReportReader reader = transport.openReader(endpoint, pool, depth);
+
+		return new ReportReader() {
+			@Override
+			public Report read(long timeout) {
+				Report report;
+				try {
+					report = reader.read(timeout);
+				} catch (LibUsbException e) {
+					recorder.record(session, CaptureFormat.BULK, endpoint, e.getErrorCode(), null, 0);
+					throw e;
+				}
+
+				recorder.record(session, CaptureFormat.BULK, endpoint, LibUsb.SUCCESS, report.getData(), report.getLength());
+
+				return report;
+			}
+
+			@Override
+			public void close() {
+				reader.close();
+			}
+		};
+	}
+}
@@ -0,0 +1,174 @@
+package com.thingtrack.capture;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Recorder of the raw usb transfers in a memory mapped ring file, see
+ * {@link CaptureFormat}. The file is preallocated when created, so recording
+ * never grows it. The session threads write their records without locks:
+ * a record number is taken from an atomic counter and the record is written
+ * in its own slot, the number last, so a slot being written is never
+ * decoded.
+ * <p>
+ * An existing capture is reopened and the new records follow the old ones.
+ */
+public class TrafficRecorder implements Closeable {
+	private final static Logger logger = Logger.getLogger(TrafficRecorder.class);
+
+	private final FileChannel channel;
+	private final MappedByteBuffer buffer;
+	private final int slots;
+
+	/** Number of the last record written */
+	private final AtomicLong sequence = new AtomicLong();
+
+	private final AtomicInteger sessions = new AtomicInteger();
+
+	/**
+	 * @param file
+	 *            The capture file, created if it does not exist.
+	 * @param slots
+	 *            The number of records kept by a new capture.
+	 */
+	public TrafficRecorder(File file, int slots) throws IOException {
+		if (slots < 1)
+			throw new IllegalArgumentException("The capture must have at least one slot");
+
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+		try {
+			if (channel.size() == 0) {
+				this.slots = slots;
+				this.buffer = map();
+
+				buffer.putInt(0, CaptureFormat.MAGIC);
+				buffer.putShort(4, CaptureFormat.VERSION);
+				buffer.putInt(6, CaptureFormat.SLOT_SIZE);
+				buffer.putInt(10, slots);
+			}
+			else {
+				ByteBuffer header = ByteBuffer.allocate(CaptureFormat.HEADER_SIZE);
+				while (header.hasRemaining() && channel.read(header, header.position()) >= 0);
+				header.flip();
+
+				if (header.remaining() < 14 || header.getInt(0) != CaptureFormat.MAGIC)
+					throw new IOException("Not a usb capture: " + file);
+
+				if (header.getShort(4) != CaptureFormat.VERSION || header.getInt(6) != CaptureFormat.SLOT_SIZE)
+					throw new IOException("Unsupported usb capture version " + header.getShort(4) + ": " + file);
+
+				this.slots = header.getInt(10);
+				this.buffer = map();
+
+				// the new records and sessions follow the old ones
+				seekLast();
+			}
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+
+		logger.info("Recording usb traffic in " + file + ", " + this.slots + " slots, last record " + sequence.get() + ", last session " + sessions.get());
+	}
+
+	private MappedByteBuffer map() throws IOException {
+		return channel.map(FileChannel.MapMode.READ_WRITE, 0,
+				CaptureFormat.HEADER_SIZE + (long) slots * CaptureFormat.SLOT_SIZE);
+	}
+
+	/**
+	 * Find the last record and the last session of a reopened capture.
+	 */
+	private void seekLast() {
+		long last = 0;
+		int session = 0;
+
+		for (int i = 0; i < slots; i++) {
+			int offset = CaptureFormat.HEADER_SIZE + i * CaptureFormat.SLOT_SIZE;
+
+			// never written, or torn while written
+			if (buffer.getLong(offset + CaptureFormat.SEQUENCE) == 0)
+				continue;
+
+			last = Math.max(last, buffer.getLong(offset + CaptureFormat.SEQUENCE));
+			session = Math.max(session, buffer.getInt(offset + CaptureFormat.SESSION));
+		}
+
+		sequence.set(last);
+		sessions.set(session);
+	}
+
+	/**
+	 * Get the number of a new capture session, every transport records its
+	 * transfers with its own number.
+	 */
+	public int nextSession() {
+		return sessions.incrementAndGet();
+	}
+
+	/**
+	 * Record a transfer. The data is read with absolute gets from index 0,
+	 * so its position is not changed.
+	 *
+	 * @param session
+	 *            The capture session.
+	 * @param kind
+	 *            The kind of transfer.
+	 * @param endpoint
+	 *            The endpoint, 0 for the control transfers.
+	 * @param result
+	 *            The libusb result code.
+	 * @param data
+	 *            The transferred data, null if none.
+	 * @param length
+	 *            The bytes transferred.
+	 */
+	public void record(int session, byte kind, byte endpoint, int result, ByteBuffer data, int length) {
+		long number = sequence.incrementAndGet();
+		int offset = CaptureFormat.HEADER_SIZE + (int) ((number - 1) % slots) * CaptureFormat.SLOT_SIZE;
+
+		// the slot is invalid while it is written
+		buffer.putLong(offset + CaptureFormat.SEQUENCE, 0);
+
+		buffer.putLong(offset + CaptureFormat.TIME, System.currentTimeMillis());
+		buffer.putLong(offset + CaptureFormat.NANOS, System.nanoTime());
+		buffer.putInt(offset + CaptureFormat.SESSION, session);
+		buffer.put(offset + CaptureFormat.KIND, kind);
+		buffer.put(offset + CaptureFormat.ENDPOINT, endpoint);
+		buffer.putShort(offset + CaptureFormat.LENGTH, (short) length);
+		buffer.putInt(offset + CaptureFormat.RESULT, result);
+
+		int kept = data == null ? 0 : Math.min(Math.min(length, data.limit()), CaptureFormat.MAX_DATA);
+		for (int i = 0; i < kept; i++)
+			buffer.put(offset + CaptureFormat.DATA + i, data.get(i));
+
+		buffer.putLong(offset + CaptureFormat.SEQUENCE, number);
+	}
+
+	/**
+	 * Number of records written in the capture, with the overwritten ones.
+	 */
+	public long getRecords() {
+		return sequence.get();
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			buffer.force();
+		} finally {
+			channel.close();
+		}
+	}
+}
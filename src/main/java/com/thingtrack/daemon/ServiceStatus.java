@@ -0,0 +1,116 @@
+package com.thingtrack.daemon;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.log4j.Logger;
+
+import com.thingtrack.export.AtomicFile;
+import com.thingtrack.metrics.SyncMetrics;
+
+/**
+ * Lifecycle state of the service, published in a status file for the
+ * supervisors and in the health endpoint. The file is rewritten atomically
+ * on every state change:
+ *
+ * <pre>
+ * state=READY
+ * pid=1234
+ * started=1456440211000
+ * updated=1456440211120
+ * sessions=0
+ * </pre>
+ */
+public class ServiceStatus {
+	private final static Logger logger = Logger.getLogger(ServiceStatus.class);
+
+	public enum State {
+		/** Initializing, the hotplug events are not handled yet */
+		STARTING,
+		/** Handling the hotplug events */
+		READY,
+		/** Draining the running sessions before exit */
+		STOPPING,
+		/** All sessions finished and resources closed */
+		STOPPED
+	}
+
+	private final File file;
+	private final long started = System.currentTimeMillis();
+
+	private volatile State state = State.STARTING;
+
+	/**
+	 * @param file
+	 *            The status file, null to keep the state only in memory.
+	 */
+	public ServiceStatus(File file) {
+		this.file = file;
+
+		if (file != null && file.getParentFile() != null)
+			file.getParentFile().mkdirs();
+	}
+
+	public State getState() {
+		return state;
+	}
+
+	public boolean isReady() {
+		return state == State.READY;
+	}
+
+	public long getStarted() {
+		return started;
+	}
+
+	/**
+	 * Change the state and publish it. A status file that cannot be written
+	 * is logged, never stops the service.
+	 */
+	public synchronized void setState(State state) {
+		this.state = state;
+
+		logger.info("Service " + state.name().toLowerCase() + " after " + (System.currentTimeMillis() - started) + " ms");
+
+		if (file == null)
+			return;
+
+		AtomicFile status = new AtomicFile(file);
+		try {
+			FileChannel channel = status.open();
+
+			ByteBuffer text = StandardCharsets.US_ASCII.encode(toString());
+			while (text.hasRemaining())
+				channel.write(text);
+
+			status.commit();
+		} catch (IOException e) {
+			status.abort();
+
+			logger.error("Unable to write the status file " + file, e);
+		}
+	}
+
+	/**
+	 * Process id of the service, from the runtime name pid@host.
+	 */
+	private static String getPid() {
+		String name = ManagementFactory.getRuntimeMXBean().getName();
+		int at = name.indexOf('@');
+
+		return at > 0 ? name.substring(0, at) : name;
+	}
+
+	@Override
+	public String toString() {
+		return "state=" + state.name() + "\n" +
+				"pid=" + getPid() + "\n" +
+				"started=" + started + "\n" +
+				"updated=" + System.currentTimeMillis() + "\n" +
+				"sessions=" + SyncMetrics.getInstance().getActiveSessions() + "\n";
+	}
+}
@@ -0,0 +1,70 @@
+package com.thingtrack.delivery;
+
+import java.util.Hashtable;
+
+import com.thingtrack.parser.MeasureSeries;
+
+/**
+ * The new readings of a finished session, waiting to be delivered.
+ */
+public class Delivery {
+	private final String serial;
+	private final String ptname;
+	private final String ptid;
+	private final MeasureSeries measures;
+
+	/** Order of the session, taken when submitted */
+	private long sequence;
+
+	public Delivery(String serial, String ptname, String ptid, MeasureSeries measures) {
+		this.serial = serial;
+		this.ptname = ptname;
+		this.ptid = ptid;
+		this.measures = measures;
+	}
+
+	/**
+	 * Build the delivery of the values of a parser.
+	 *
+	 * @return The delivery, null if the session has no new readings.
+	 */
+	public static Delivery of(Hashtable<String, Object> values) {
+		Object serial = values.get("serlnum");
+		Object measures = values.get("measures");
+
+		if (serial == null || !(measures instanceof MeasureSeries) || ((MeasureSeries) measures).isEmpty())
+			return null;
+
+		Object ptname = values.get("ptname");
+		Object ptid = values.get("ptid");
+
+		return new Delivery(serial.toString(),
+				ptname != null ? ptname.toString() : null,
+				ptid != null ? ptid.toString() : null,
+				(MeasureSeries) measures);
+	}
+
+	public String getSerial() {
+		return serial;
+	}
+
+	public String getPtname() {
+		return ptname;
+	}
+
+	public String getPtid() {
+		return ptid;
+	}
+
+	public MeasureSeries getMeasures() {
+		return measures;
+	}
+
+	long getSequence() {
+		return sequence;
+	}
+
+	void setSequence(long sequence) {
+		this.sequence = sequence;
+	}
+}
@@ -0,0 +1,340 @@
+package com.thingtrack.delivery;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.thingtrack.export.JsonStreamWriter;
+import com.thingtrack.parser.MeasureSeries;
+
+/**
+ * Delivery stage after the export: takes the finished sessions off a bounded
+ * queue, batches the readings of many meters and posts them to a sink, on
+ * its own thread. A batch is closed when it holds the max readings or when
+ * the time window since its first session has passed.
+ * <p>
+ * The sessions never wait for the sink: when the queue is full the session
+ * spills its readings to the spool together with the queued ones, and while
+ * the sink fails or the spool has batches the new batches are spooled behind
+ * them. The spool is replayed in session order, backing off between the
+ * failed attempts. A batch the sink rejects for good is moved aside to the
+ * rejected directory of the spool, and the ones after it go on.
+ *
+ * <pre>
+ * {"created": date, "sessions": [{"serlnum", "ptname", "ptid", "measures": [{"date", "value"}]}]}
+ * </pre>
+ */
+public class DeliveryPipeline {
+	private final static Logger logger = Logger.getLogger(DeliveryPipeline.class);
+
+	/** Bounds of the wait before the next attempt after a sink failure, in milliseconds */
+	private static final long MIN_BACKOFF = 1000;
+	private static final long MAX_BACKOFF = 60000;
+
+	private final DeliverySink sink;
+	private final DeliverySpool spool;
+	private final BlockingQueue<Delivery> queue;
+	private final int batchSize;
+	private final long window;
+
+	private final Thread worker;
+	private volatile boolean stopping;
+
+	/** Time of the next attempt to reach the sink after a failure */
+	private long retryAt;
+	private long backoff = MIN_BACKOFF;
+
+	private final AtomicLong delivered = new AtomicLong();
+	private final AtomicLong spooled = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+
+	/**
+	 * @param sink
+	 *            The downstream sink.
+	 * @param spool
+	 *            The spool of the batches not delivered.
+	 * @param capacity
+	 *            Max sessions waiting in the queue.
+	 * @param batchSize
+	 *            Max readings of a batch.
+	 * @param window
+	 *            Max milliseconds a session waits for its batch to be closed.
+	 */
+	public DeliveryPipeline(DeliverySink sink, DeliverySpool spool, int capacity, int batchSize, long window) {
+		this.sink = sink;
+		this.spool = spool;
+		this.queue = new ArrayBlockingQueue<Delivery>(capacity);
+		this.batchSize = batchSize;
+		this.window = window;
+
+		this.worker = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				deliver();
+			}
+		}, "glukose-delivery");
+	}
+
+	public void start() {
+		worker.start();
+
+		logger.info("Delivering to " + sink + ", " + spool.size() + " spooled batches");
+	}
+
+	/**
+	 * Queue the readings of a finished session. Never waits for the sink:
+	 * if the queue is full they are spooled right away, after the queued
+	 * ones that are older.
+	 *
+	 * @return false if the readings were spooled.
+	 */
+	public synchronized boolean submit(Delivery delivery) {
+		delivery.setSequence(spool.nextSequence());
+
+		if (!stopping && queue.offer(delivery))
+			return true;
+
+		// the spool is replayed before the queue, take the queued sessions along
+		List<Delivery> batch = new ArrayList<Delivery>();
+		queue.drainTo(batch);
+		batch.add(delivery);
+
+		logger.warn("Delivery queue full, spool the readings of " + batch.size() + " sessions");
+		spill(batch);
+
+		return false;
+	}
+
+	private void deliver() {
+		List<Delivery> batch = new ArrayList<Delivery>();
+
+		try {
+			while (!stopping || !queue.isEmpty()) {
+				// the spooled batches go first, in order
+				if (!spool.isEmpty() && System.currentTimeMillis() >= retryAt)
+					replay();
+
+				Delivery first = queue.poll(stopping ? 0 : window, TimeUnit.MILLISECONDS);
+				if (first == null)
+					continue;
+
+				// close the batch by size or by time
+				long deadline = System.currentTimeMillis() + window;
+				int readings = first.getMeasures().size();
+				batch.add(first);
+
+				while (readings < batchSize) {
+					long remaining = stopping ? 0 : deadline - System.currentTimeMillis();
+
+					Delivery next = queue.poll(Math.max(remaining, 0), TimeUnit.MILLISECONDS);
+					if (next == null)
+						break;
+
+					readings += next.getMeasures().size();
+					batch.add(next);
+				}
+
+				// keep the order behind the spooled batches
+				if (!spool.isEmpty() || System.currentTimeMillis() < retryAt)
+					spill(batch);
+				else
+					send(batch, readings);
+
+				batch.clear();
+			}
+
+			// a last attempt before exit, what is left stays in the spool
+			if (!spool.isEmpty())
+				replay();
+		} catch (InterruptedException e) {
+			spill(batch);
+		}
+	}
+
+	private void send(List<Delivery> batch, int readings) {
+		byte[] body;
+		try {
+			body = encode(batch);
+		} catch (IOException e) {
+			logger.error("Unable to encode a batch of " + batch.size() + " sessions", e);
+			return;
+		}
+
+		long sequence = batch.get(0).getSequence();
+
+		try {
+			sink.deliver(body);
+
+			delivered.incrementAndGet();
+			backoff = MIN_BACKOFF;
+
+			logger.info("Delivered " + batch.size() + " sessions, " + readings + " readings");
+		} catch (RejectedBatchException e) {
+			try {
+				spool.reject(sequence, body);
+				rejected.incrementAndGet();
+
+				logger.error("Sink " + sink + " rejected a batch of " + batch.size() + " sessions, moved to " + spool.getRejectedDirectory() + ": " + e.getMessage());
+			} catch (IOException ex) {
+				logger.error("Unable to keep a rejected batch of " + batch.size() + " sessions, readings lost", ex);
+			}
+		} catch (IOException e) {
+			failed(e);
+
+			try {
+				spool.append(sequence, body);
+				spooled.incrementAndGet();
+			} catch (IOException ex) {
+				logger.error("Unable to spool a batch of " + batch.size() + " sessions, readings lost", ex);
+			}
+		}
+	}
+
+	/**
+	 * Deliver the spooled batches, oldest first, until the sink fails. The
+	 * batches the sink rejects for good are moved aside.
+	 */
+	private void replay() {
+		try {
+			byte[] body;
+			while ((body = spool.peek()) != null) {
+				try {
+					sink.deliver(body);
+					spool.remove();
+
+					delivered.incrementAndGet();
+				} catch (RejectedBatchException e) {
+					spool.reject();
+					rejected.incrementAndGet();
+
+					logger.error("Sink " + sink + " rejected a spooled batch, moved to " + spool.getRejectedDirectory() + ": " + e.getMessage());
+				}
+			}
+
+			backoff = MIN_BACKOFF;
+
+			logger.info("Spool delivered");
+		} catch (IOException e) {
+			failed(e);
+		}
+	}
+
+	private void failed(IOException e) {
+		retryAt = System.currentTimeMillis() + backoff;
+
+		logger.warn("Sink " + sink + " failed, retry in " + backoff + " ms: " + e.getMessage());
+
+		backoff = Math.min(backoff * 2, MAX_BACKOFF);
+	}
+
+	private void spill(List<Delivery> batch) {
+		if (batch.isEmpty())
+			return;
+
+		try {
+			spool.append(batch.get(0).getSequence(), encode(batch));
+			spooled.incrementAndGet();
+		} catch (IOException e) {
+			logger.error("Unable to spool a batch of " + batch.size() + " sessions, readings lost", e);
+		}
+	}
+
+	/**
+	 * Encode a batch as JSON.
+	 */
+	static byte[] encode(List<Delivery> batch) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		JsonStreamWriter json = new JsonStreamWriter(Channels.newChannel(out));
+
+		json.beginObject();
+		json.name("created").date(System.currentTimeMillis());
+
+		json.name("sessions").beginArray();
+		for (Delivery delivery : batch) {
+			json.beginObject();
+			json.name("serlnum").value(delivery.getSerial());
+			if (delivery.getPtname() != null)
+				json.name("ptname").value(delivery.getPtname());
+			if (delivery.getPtid() != null)
+				json.name("ptid").value(delivery.getPtid());
+
+			MeasureSeries measures = delivery.getMeasures();
+
+			json.name("measures").beginArray();
+			for (int i = 0; i < measures.size(); i++) {
+				json.beginObject();
+				json.name("date").date(measures.getTimestamp(i));
+				json.name("value").value(measures.getValue(i));
+				json.endObject();
+			}
+			json.endArray();
+
+			json.endObject();
+		}
+		json.endArray();
+
+		json.endObject();
+		json.close();
+
+		return out.toByteArray();
+	}
+
+	/**
+	 * Batches delivered to the sink, directly or from the spool.
+	 */
+	public long getDelivered() {
+		return delivered.get();
+	}
+
+	/**
+	 * Batches spooled since the start.
+	 */
+	public long getSpooled() {
+		return spooled.get();
+	}
+
+	/**
+	 * Batches the sink rejected for good, moved to the rejected directory.
+	 */
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	/**
+	 * Stop accepting sessions, deliver or spool the queued ones and wait for
+	 * the delivery thread.
+	 *
+	 * @param timeout
+	 *            The max time to wait in milliseconds, then the sessions left
+	 *            are spooled. A batch still posted to the sink is spooled by
+	 *            the delivery thread if the sink fails it.
+	 */
+	public void stop(long timeout) throws InterruptedException {
+		stopping = true;
+
+		worker.join(Math.max(timeout, 1));
+
+		if (worker.isAlive()) {
+			worker.interrupt();
+			worker.join(MIN_BACKOFF);
+		}
+
+		// the sessions the delivery thread did not take
+		List<Delivery> left = new ArrayList<Delivery>();
+		queue.drainTo(left);
+		spill(left);
+
+		if (worker.isAlive())
+			logger.warn("Delivery stopped while posting to " + sink + ", " + spool.size() + " batches left in the spool");
+		else
+			logger.info("Delivery stopped, " + spool.size() + " batches left in the spool");
+	}
+}
@@ -0,0 +1,20 @@
+package com.thingtrack.delivery;
+
+import java.io.IOException;
+
+/**
+ * Downstream receiver of the delivery batches.
+ */
+public interface DeliverySink {
+	/**
+	 * Deliver a batch, blocking until the sink has accepted it.
+	 *
+	 * @param batch
+	 *            The JSON document of the batch.
+	 * @throws RejectedBatchException
+	 *             If the batch is never to be accepted, it is put aside.
+	 * @throws IOException
+	 *             If the batch was not accepted, it is delivered again later.
+	 */
+	void deliver(byte[] batch) throws IOException;
+}
@@ -0,0 +1,202 @@
+package com.thingtrack.delivery;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.TreeSet;
+
+import org.apache.log4j.Logger;
+
+import com.thingtrack.export.AtomicFile;
+
+/**
+ * On disk queue of the batches not accepted by the sink, one file per batch
+ * named by the sequence number of its first session. The batches are
+ * replayed in the order of their sessions, not the order they were spooled,
+ * also after a restart. The batches the sink rejected for good are moved to
+ * the rejected directory, to be looked at by hand.
+ */
+public class DeliverySpool {
+	private final static Logger logger = Logger.getLogger(DeliverySpool.class);
+
+	/** Suffix of the batch files */
+	private static final String SUFFIX = ".json";
+
+	/** Directory of the rejected batches */
+	static final String REJECTED_DIR = "rejected";
+
+	private static final FilenameFilter BATCHES = new FilenameFilter() {
+		@Override
+		public boolean accept(File dir, String name) {
+			return name.endsWith(SUFFIX);
+		}
+	};
+
+	private final File directory;
+	private final File rejected;
+
+	/** Sequence numbers of the spooled batches */
+	private final TreeSet<Long> batches = new TreeSet<Long>();
+
+	private long next = 1;
+
+	/**
+	 * @param directory
+	 *            The spool directory, the batches left by the previous run
+	 *            are kept.
+	 */
+	public DeliverySpool(File directory) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Unable to create the spool directory " + directory);
+
+		this.directory = directory;
+		this.rejected = new File(directory, REJECTED_DIR);
+
+		for (String name : directory.list(BATCHES)) {
+			try {
+				batches.add(sequence(name));
+			} catch (NumberFormatException e) {
+				logger.warn("Unknown file in the spool directory: " + name);
+			}
+		}
+
+		if (!batches.isEmpty()) {
+			next = batches.last() + 1;
+
+			logger.info(batches.size() + " batches to deliver in the spool " + directory);
+		}
+
+		// the rejected batches keep their numbers, never reused
+		String[] names = rejected.list(BATCHES);
+		if (names != null) {
+			for (String name : names) {
+				try {
+					next = Math.max(next, sequence(name) + 1);
+				} catch (NumberFormatException e) {
+					logger.warn("Unknown file in the rejected directory: " + name);
+				}
+			}
+		}
+	}
+
+	private static long sequence(String name) {
+		return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+	}
+
+	private static File file(File directory, long sequence) {
+		return new File(directory, String.format("%016d", sequence) + SUFFIX);
+	}
+
+	private File file(long sequence) {
+		return file(directory, sequence);
+	}
+
+	/**
+	 * Take the sequence number of a new session, after the ones of the
+	 * batches spooled by the previous runs.
+	 */
+	public synchronized long nextSequence() {
+		return next++;
+	}
+
+	/**
+	 * Spool a batch, in the place of its first session.
+	 *
+	 * @param sequence
+	 *            The sequence number of the first session of the batch.
+	 */
+	public synchronized void append(long sequence, byte[] batch) throws IOException {
+		write(file(sequence), batch);
+
+		batches.add(sequence);
+	}
+
+	/**
+	 * Move a batch the sink rejected for good to the rejected directory.
+	 *
+	 * @param sequence
+	 *            The sequence number of the first session of the batch.
+	 */
+	public synchronized void reject(long sequence, byte[] batch) throws IOException {
+		if (!rejected.isDirectory() && !rejected.mkdirs())
+			throw new IOException("Unable to create the rejected directory " + rejected);
+
+		write(file(rejected, sequence), batch);
+	}
+
+	private static void write(File target, byte[] batch) throws IOException {
+		AtomicFile file = new AtomicFile(target);
+
+		try {
+			FileChannel channel = file.open();
+
+			ByteBuffer buffer = ByteBuffer.wrap(batch);
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+
+			file.commit();
+		} catch (IOException e) {
+			file.abort();
+			throw e;
+		}
+	}
+
+	/**
+	 * Read the oldest batch.
+	 *
+	 * @return The batch, null if the spool is empty.
+	 */
+	public synchronized byte[] peek() throws IOException {
+		if (batches.isEmpty())
+			return null;
+
+		return Files.readAllBytes(file(batches.first()).toPath());
+	}
+
+	/**
+	 * Remove the oldest batch, once delivered.
+	 */
+	public synchronized void remove() throws IOException {
+		Long sequence = batches.pollFirst();
+		if (sequence == null)
+			return;
+
+		Files.deleteIfExists(file(sequence).toPath());
+	}
+
+	/**
+	 * Move the oldest batch to the rejected directory, once the sink
+	 * rejected it for good.
+	 */
+	public synchronized void reject() throws IOException {
+		if (batches.isEmpty())
+			return;
+
+		if (!rejected.isDirectory() && !rejected.mkdirs())
+			throw new IOException("Unable to create the rejected directory " + rejected);
+
+		long sequence = batches.first();
+		Files.move(file(sequence).toPath(), file(rejected, sequence).toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+		batches.pollFirst();
+	}
+
+	/**
+	 * The directory of the rejected batches.
+	 */
+	public File getRejectedDirectory() {
+		return rejected;
+	}
+
+	public synchronized int size() {
+		return batches.size();
+	}
+
+	public synchronized boolean isEmpty() {
+		return batches.isEmpty();
+	}
+}
@@ -0,0 +1,74 @@
+package com.thingtrack.delivery;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Sink posting the batches to an HTTP endpoint. Any 2xx status accepts the
+ * batch. A 4xx status rejects it for good, but 408 and 429 that only ask to
+ * come back later; any other status or a network error rejects it until the
+ * next attempt.
+ */
+public class HttpSink implements DeliverySink {
+	private final URL url;
+	private final int timeout;
+
+	/**
+	 * @param url
+	 *            The endpoint.
+	 * @param timeout
+	 *            The connect and read timeout in milliseconds.
+	 */
+	public HttpSink(URL url, int timeout) {
+		this.url = url;
+		this.timeout = timeout;
+	}
+
+	@Override
+	public void deliver(byte[] batch) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+
+		try {
+			connection.setRequestMethod("POST");
+			connection.setConnectTimeout(timeout);
+			connection.setReadTimeout(timeout);
+			connection.setDoOutput(true);
+			connection.setFixedLengthStreamingMode(batch.length);
+			connection.setRequestProperty("Content-Type", "application/json");
+
+			OutputStream out = connection.getOutputStream();
+			try {
+				out.write(batch);
+			} finally {
+				out.close();
+			}
+
+			int status = connection.getResponseCode();
+			if (status / 100 == 4 && status != HttpURLConnection.HTTP_CLIENT_TIMEOUT && status != 429)
+				throw new RejectedBatchException("Sink " + url + " answered " + status);
+
+			if (status / 100 != 2)
+				throw new IOException("Sink " + url + " answered " + status);
+
+			// read the body so the connection can be reused
+			InputStream in = connection.getInputStream();
+			try {
+				byte[] skip = new byte[256];
+				while (in.read(skip) >= 0);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			connection.disconnect();
+			throw e;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return url.toString();
+	}
+}
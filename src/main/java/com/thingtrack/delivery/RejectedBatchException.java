@@ -0,0 +1,15 @@
+package com.thingtrack.delivery;
+
+import java.io.IOException;
+
+/**
+ * Failure of a batch the sink will never accept, like a malformed one: it is
+ * not delivered again.
+ */
+public class RejectedBatchException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	public RejectedBatchException(String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,133 @@
+package com.thingtrack.delivery;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+
+/**
+ * Local stub of a delivery sink, to try the pipeline without a backend. It
+ * accepts the batches posted to any path on the loopback address, after an
+ * optional delay, and can reject them to exercise the spool.
+ *
+ * <pre>
+ * java -cp glukose-service.jar com.thingtrack.delivery.StubSinkServer [-p port] [-d delay] [-e status]
+ * </pre>
+ */
+public class StubSinkServer {
+	private final static Logger logger = Logger.getLogger(StubSinkServer.class);
+
+	private final HttpServer server;
+
+	/** Milliseconds before answering a batch */
+	private volatile int delay;
+
+	/** Status of the answers, 200 accepts the batches */
+	private volatile int status = 200;
+
+	private final AtomicInteger batches = new AtomicInteger();
+	private final AtomicLong bytes = new AtomicLong();
+
+	public StubSinkServer(int port) throws IOException {
+		this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+
+		server.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					ByteArrayOutputStream body = new ByteArrayOutputStream();
+					InputStream in = exchange.getRequestBody();
+					byte[] buffer = new byte[4096];
+					int read;
+					while ((read = in.read(buffer)) >= 0)
+						body.write(buffer, 0, read);
+
+					if (delay > 0)
+						Thread.sleep(delay);
+
+					if (status / 100 == 2) {
+						batches.incrementAndGet();
+						bytes.addAndGet(body.size());
+					}
+
+					logger.info("Batch of " + body.size() + " bytes answered " + status);
+
+					exchange.sendResponseHeaders(status, -1);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+	}
+
+	public void setDelay(int delay) {
+		this.delay = delay;
+	}
+
+	public void setStatus(int status) {
+		this.status = status;
+	}
+
+	/**
+	 * Batches accepted.
+	 */
+	public int getBatches() {
+		return batches.get();
+	}
+
+	/**
+	 * Bytes of the batches accepted.
+	 */
+	public long getBytes() {
+		return bytes.get();
+	}
+
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	public void start() {
+		server.start();
+
+		logger.info("Stub sink listening at " + server.getAddress());
+	}
+
+	public void stop() {
+		server.stop(0);
+	}
+
+	public static void main(String[] args) throws IOException {
+		// -p: port, -d: answer delay, -e: answer status
+		OptionParser parser = new OptionParser("p::d::e::");
+		OptionSet options = parser.parse(args);
+
+		StubSinkServer stub = new StubSinkServer(options.has("p") ? Integer.parseInt(options.valueOf("p").toString()) : 8090);
+
+		if (options.has("d"))
+			stub.setDelay(Integer.parseInt(options.valueOf("d").toString()));
+
+		if (options.has("e"))
+			stub.setStatus(Integer.parseInt(options.valueOf("e").toString()));
+
+		stub.start();
+
+		System.out.println("Hit enter to exit ...");
+		System.in.read();
+
+		stub.stop();
+	}
+}
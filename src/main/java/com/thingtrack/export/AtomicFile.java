@@ -0,0 +1,100 @@
+package com.thingtrack.export;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A file published atomically: it is written to a temporary file in the same
+ * directory, forced to disk and renamed to its final name, so the readers of
+ * the directory never see it half written.
+ */
+public class AtomicFile {
+	private final static Logger logger = Logger.getLogger(AtomicFile.class);
+
+	/** Suffix of the temporary files */
+	public static final String TMP_SUFFIX = ".tmp";
+
+	private final File file;
+	private final File tmp;
+
+	private FileChannel channel;
+
+	public AtomicFile(File file) {
+		this.file = file;
+		this.tmp = new File(file.getPath() + TMP_SUFFIX);
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Open the channel of the temporary file.
+	 */
+	public FileChannel open() throws IOException {
+		channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+
+		return channel;
+	}
+
+	/**
+	 * Force the temporary file to disk and rename it to the final name.
+	 */
+	public void commit() throws IOException {
+		try {
+			channel.force(true);
+		} finally {
+			channel.close();
+			channel = null;
+		}
+
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+		syncDirectory();
+	}
+
+	/**
+	 * Discard the temporary file.
+	 */
+	public void abort() {
+		try {
+			if (channel != null)
+				channel.close();
+		} catch (IOException e) {
+			logger.warn("Unable to close " + tmp, e);
+		}
+
+		channel = null;
+
+		if (tmp.exists() && !tmp.delete())
+			logger.warn("Unable to delete " + tmp);
+	}
+
+	/**
+	 * Force the rename to disk. Not every platform can open a directory, so
+	 * the rename is only forced where it can.
+	 */
+	private void syncDirectory() {
+		File directory = file.getAbsoluteFile().getParentFile();
+		if (directory == null)
+			return;
+
+		try {
+			FileChannel dir = FileChannel.open(directory.toPath(), StandardOpenOption.READ);
+			try {
+				dir.force(true);
+			} finally {
+				dir.close();
+			}
+		} catch (IOException e) {
+			logger.debug("Unable to sync the directory " + directory, e);
+		}
+	}
+}
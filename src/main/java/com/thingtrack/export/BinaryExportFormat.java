@@ -0,0 +1,58 @@
+package com.thingtrack.export;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Layout of the compact binary export, big endian:
+ *
+ * <pre>
+ * header:
+ *   magic       4 bytes "GLKB"
+ *   version     short
+ *   clock       long     epoch milliseconds of the meter clock
+ *   count       int      number of measures
+ *   serlnum, swver, ptname, ptid
+ *               short length and UTF-8 bytes each, length -1 if unknown
+ * blocks of up to BLOCK_SIZE measures, in export order:
+ *   count       int
+ *   unit        int      milliseconds of a timestamp delta unit
+ *   base        long     epoch milliseconds of the first measure
+ *   deltasSize  int      bytes of the timestamps column
+ *   timestamps  zigzag varint deltas to the previous measure, in units
+ *   values      unsigned short per measure, value * VALUE_SCALE
+ *   flags       byte per measure
+ * </pre>
+ *
+ * The meter dates have minute precision, so the deltas are usually written
+ * in minutes and take two bytes. The glucose values are quantized to a tenth
+ * of a unit, the meter values are integers so nothing is lost.
+ */
+public final class BinaryExportFormat {
+	public static final int MAGIC = 0x474c4b42;
+
+	public static final short VERSION = 1;
+
+	/** File extension of the binary exports */
+	public static final String EXTENSION = ".glkb";
+
+	/** Max measures of a block */
+	public static final int BLOCK_SIZE = 1024;
+
+	/** Quantization of the values */
+	public static final int VALUE_SCALE = 10;
+
+	/** Max value that can be quantized */
+	public static final float MAX_VALUE = 0xffff / (float) VALUE_SCALE;
+
+	/** Unit of the timestamp deltas when all the measures of a block are in whole minutes */
+	static final int MINUTE_UNIT = 60 * 1000;
+
+	/** Size of a block header */
+	static final int BLOCK_HEADER_SIZE = 4 + 4 + 8 + 4;
+
+	static final Charset CHARSET = StandardCharsets.UTF_8;
+
+	private BinaryExportFormat() {
+	}
+}
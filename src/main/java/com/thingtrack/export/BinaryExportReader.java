@@ -0,0 +1,193 @@
+package com.thingtrack.export;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import com.thingtrack.parser.MeasureSeries;
+
+/**
+ * Reader of the compact binary exports, see {@link BinaryExportFormat}. The
+ * file is memory mapped: the header is decoded when opened and the measures
+ * are decoded from the mapping while visited, so scanning many exports
+ * neither parses text nor copies the files.
+ */
+public class BinaryExportReader implements Closeable {
+	/** Size of the head of a block: count, unit, base and deltas size */
+	private static final int BLOCK_HEADER_SIZE = 4 + 4 + 8 + 4;
+
+	private final File file;
+	private final FileChannel channel;
+	private final MappedByteBuffer buffer;
+
+	private final long clock;
+	private final int count;
+	private final String serlnum;
+	private final String swver;
+	private final String ptname;
+	private final String ptid;
+
+	/** Offset of the first block */
+	private final int blocks;
+
+	public BinaryExportReader(File file) throws IOException {
+		this.file = file;
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+
+		try {
+			this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+			if (buffer.remaining() < 4 + 2 + 8 + 4 || buffer.getInt() != BinaryExportFormat.MAGIC)
+				throw new IOException("Not a binary export: " + file);
+
+			short version = buffer.getShort();
+			if (version != BinaryExportFormat.VERSION)
+				throw new IOException("Unsupported binary export version " + version + ": " + file);
+
+			this.clock = buffer.getLong();
+			this.count = buffer.getInt();
+			if (count < 0)
+				throw new IOException("Corrupted binary export: " + file + ", " + count + " measures");
+			this.serlnum = string(buffer);
+			this.swver = string(buffer);
+			this.ptname = string(buffer);
+			this.ptid = string(buffer);
+
+			this.blocks = buffer.position();
+		} catch (RuntimeException e) {
+			channel.close();
+			throw new IOException("Corrupted binary export: " + file, e);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	public long getClock() {
+		return clock;
+	}
+
+	/**
+	 * Number of measures of the export.
+	 */
+	public int size() {
+		return count;
+	}
+
+	public String getSerlnum() {
+		return serlnum;
+	}
+
+	public String getSwver() {
+		return swver;
+	}
+
+	public String getPtname() {
+		return ptname;
+	}
+
+	public String getPtid() {
+		return ptid;
+	}
+
+	/**
+	 * Visit the measures in export order.
+	 *
+	 * @throws IOException
+	 *             if the export is truncated or corrupted, after visiting the
+	 *             measures before.
+	 */
+	public void forEach(MeasureSeries.Visitor visitor) throws IOException {
+		ByteBuffer data = buffer.duplicate();
+		data.position(blocks);
+
+		int remaining = count;
+		while (remaining > 0) {
+			if (data.remaining() < BLOCK_HEADER_SIZE)
+				throw corrupted("truncated block at byte " + data.position());
+
+			int blockCount = data.getInt();
+			int unit = data.getInt();
+			long timestamp = data.getLong();
+			int deltasSize = data.getInt();
+
+			// a varint takes at least one byte, a value two and a flag one
+			if (blockCount <= 0 || blockCount > remaining || (long) blockCount * 4 > data.remaining())
+				throw corrupted("block of " + blockCount + " measures at byte " + (data.position() - BLOCK_HEADER_SIZE));
+
+			if (deltasSize < blockCount || (long) deltasSize + blockCount * 3 > data.remaining())
+				throw corrupted("block of " + deltasSize + " delta bytes at byte " + (data.position() - BLOCK_HEADER_SIZE));
+
+			// the three columns are read in parallel
+			int deltas = data.position();
+			int values = deltas + deltasSize;
+			int flags = values + blockCount * 2;
+
+			for (int i = 0; i < blockCount; i++) {
+				long zigzag = 0;
+				int shift = 0;
+				byte b;
+				do {
+					if (deltas == values || shift > 63)
+						throw corrupted("bad timestamp delta at byte " + deltas);
+
+					b = data.get(deltas++);
+					zigzag |= (long) (b & 0x7f) << shift;
+					shift += 7;
+				} while (b < 0);
+
+				timestamp += ((zigzag >>> 1) ^ -(zigzag & 1)) * unit;
+
+				float value = (data.getShort(values + i * 2) & 0xffff) / (float) BinaryExportFormat.VALUE_SCALE;
+
+				visitor.visit(timestamp, value, data.get(flags + i));
+			}
+
+			data.position(flags + blockCount);
+			remaining -= blockCount;
+		}
+	}
+
+	/**
+	 * Read all the measures.
+	 */
+	public MeasureSeries read() throws IOException {
+		final MeasureSeries series = new MeasureSeries(count);
+
+		forEach(new MeasureSeries.Visitor() {
+			@Override
+			public void visit(long timestamp, float value, byte flags) {
+				series.add(timestamp, value, flags);
+			}
+		});
+
+		return series;
+	}
+
+	private IOException corrupted(String reason) {
+		return new IOException("Corrupted binary export: " + file + ", " + reason);
+	}
+
+	private static String string(ByteBuffer buffer) {
+		short length = buffer.getShort();
+		if (length < 0)
+			return null;
+
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+
+		return new String(bytes, BinaryExportFormat.CHARSET);
+	}
+
+	/**
+	 * Close the file, the mapping is released when collected.
+	 */
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
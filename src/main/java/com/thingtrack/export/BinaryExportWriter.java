@@ -0,0 +1,150 @@
+package com.thingtrack.export;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+import com.thingtrack.parser.MeasureSeries;
+
+/**
+ * Writer of the compact binary export, see {@link BinaryExportFormat}. The
+ * blocks are encoded one at a time into a reusable buffer, so the memory used
+ * does not depend on the number of measures.
+ */
+public class BinaryExportWriter implements Closeable {
+	/** Max bytes of a zigzag varint long */
+	private static final int MAX_VARINT_SIZE = 10;
+
+	private final WritableByteChannel channel;
+
+	private final ByteBuffer block = ByteBuffer.allocateDirect(BinaryExportFormat.BLOCK_HEADER_SIZE +
+			BinaryExportFormat.BLOCK_SIZE * (MAX_VARINT_SIZE + 2 + 1));
+	private final ByteBuffer deltas = ByteBuffer.allocate(BinaryExportFormat.BLOCK_SIZE * MAX_VARINT_SIZE);
+
+	public BinaryExportWriter(WritableByteChannel channel) {
+		this.channel = channel;
+	}
+
+	/**
+	 * Write the file header.
+	 *
+	 * @param clock
+	 *            The epoch milliseconds of the meter clock.
+	 * @param count
+	 *            The number of measures written after the header.
+	 */
+	public void writeHeader(long clock, int count, String serlnum, String swver, String ptname, String ptid) throws IOException {
+		byte[][] fields = { bytes(serlnum), bytes(swver), bytes(ptname), bytes(ptid) };
+
+		int size = 4 + 2 + 8 + 4;
+		for (byte[] field : fields)
+			size += 2 + (field == null ? 0 : field.length);
+
+		ByteBuffer header = ByteBuffer.allocate(size);
+		header.putInt(BinaryExportFormat.MAGIC);
+		header.putShort(BinaryExportFormat.VERSION);
+		header.putLong(clock);
+		header.putInt(count);
+
+		for (byte[] field : fields) {
+			if (field == null)
+				header.putShort((short) -1);
+			else {
+				header.putShort((short) field.length);
+				header.put(field);
+			}
+		}
+
+		header.flip();
+		write(header);
+	}
+
+	/**
+	 * Write the measures in blocks.
+	 */
+	public void writeMeasures(MeasureSeries series) throws IOException {
+		for (int from = 0; from < series.size(); from += BinaryExportFormat.BLOCK_SIZE)
+			writeBlock(series, from, Math.min(from + BinaryExportFormat.BLOCK_SIZE, series.size()));
+	}
+
+	private void writeBlock(MeasureSeries series, int from, int to) throws IOException {
+		int unit = BinaryExportFormat.MINUTE_UNIT;
+		for (int i = from; i < to && unit > 1; i++) {
+			if (series.getTimestamp(i) % BinaryExportFormat.MINUTE_UNIT != 0)
+				unit = 1;
+		}
+
+		long base = series.getTimestamp(from);
+
+		deltas.clear();
+		long previous = base;
+		for (int i = from; i < to; i++) {
+			long timestamp = series.getTimestamp(i);
+
+			putVarint(deltas, (timestamp - previous) / unit);
+			previous = timestamp;
+		}
+		deltas.flip();
+
+		block.clear();
+		block.putInt(to - from);
+		block.putInt(unit);
+		block.putLong(base);
+		block.putInt(deltas.remaining());
+		block.put(deltas);
+
+		for (int i = from; i < to; i++)
+			block.putShort(quantize(series.getValue(i)));
+
+		for (int i = from; i < to; i++)
+			block.put(series.getFlags(i));
+
+		block.flip();
+		write(block);
+	}
+
+	private static short quantize(float value) {
+		if (!(value > 0))
+			return 0;
+
+		if (value >= BinaryExportFormat.MAX_VALUE)
+			return (short) 0xffff;
+
+		return (short) Math.round(value * BinaryExportFormat.VALUE_SCALE);
+	}
+
+	private static void putVarint(ByteBuffer buffer, long value) {
+		long zigzag = (value << 1) ^ (value >> 63);
+
+		while ((zigzag & ~0x7fL) != 0) {
+			buffer.put((byte) ((zigzag & 0x7f) | 0x80));
+			zigzag >>>= 7;
+		}
+
+		buffer.put((byte) zigzag);
+	}
+
+	private static byte[] bytes(String value) {
+		if (value == null)
+			return null;
+
+		byte[] bytes = value.getBytes(BinaryExportFormat.CHARSET);
+		if (bytes.length > Short.MAX_VALUE)
+			throw new IllegalArgumentException("Header field too long: " + bytes.length + " bytes");
+
+		return bytes;
+	}
+
+	private void write(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+	}
+
+	/**
+	 * The channel is not closed.
+	 */
+	@Override
+	public void close() {
+	}
+}
@@ -0,0 +1,140 @@
+package com.thingtrack.export;
+
+import com.thingtrack.parser.ResultRecordDecoder;
+
+/**
+ * ISO-8601 formatter of the exported dates, in UTC with minute precision:
+ *
+ * <pre>
+ * yyyy-MM-dd'T'HH:mm+0000
+ * </pre>
+ *
+ * Same output as the SimpleDateFormat used before, without allocating: the
+ * date is written into a reusable byte array, and the day part is only
+ * computed again when the day changes, as the measures of a meter come in
+ * order. Not thread safe, one formatter per export.
+ */
+public class IsoDateFormatter {
+	/** Length of a formatted date */
+	public static final int LENGTH = 21;
+
+	private static final long MILLIS_PER_MINUTE = 60 * 1000L;
+	private static final long MINUTES_PER_DAY = 24 * 60L;
+
+	private final byte[] date = new byte[LENGTH];
+
+	/** Epoch day of the day part in the date array */
+	private long cachedDay = Long.MIN_VALUE;
+
+	public IsoDateFormatter() {
+		date[10] = 'T';
+		date[13] = ':';
+		date[16] = '+';
+		date[17] = date[18] = date[19] = date[20] = '0';
+	}
+
+	/**
+	 * Format a date.
+	 *
+	 * @param timestamp
+	 *            The epoch milliseconds.
+	 * @return The formatted date, valid until the next call.
+	 */
+	public byte[] format(long timestamp) {
+		long minutes = floorDiv(timestamp, MILLIS_PER_MINUTE);
+		long day = floorDiv(minutes, MINUTES_PER_DAY);
+		int minuteOfDay = (int) (minutes - day * MINUTES_PER_DAY);
+
+		if (day != cachedDay) {
+			formatDay(day);
+			cachedDay = day;
+		}
+
+		put2(11, minuteOfDay / 60);
+		put2(14, minuteOfDay % 60);
+
+		return date;
+	}
+
+	/**
+	 * Write the year, month and day of an epoch day, the inverse of the
+	 * days from civil conversion of the result decoder.
+	 */
+	private void formatDay(long epochDay) {
+		long z = epochDay + 719468;
+		long era = (z >= 0 ? z : z - 146096) / 146097;
+		long dayOfEra = z - era * 146097;
+		long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+		long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+		long mp = (5 * dayOfYear + 2) / 153;
+
+		int day = (int) (dayOfYear - (153 * mp + 2) / 5 + 1);
+		int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+		int year = (int) (yearOfEra + era * 400 + (month <= 2 ? 1 : 0));
+
+		put2(0, year / 100);
+		put2(2, year % 100);
+		date[4] = '-';
+		put2(5, month);
+		date[7] = '-';
+		put2(8, day);
+	}
+
+	/**
+	 * Parse a formatted date. The offset can be other than +0000, like in
+	 * the exports written with the default time zone.
+	 *
+	 * @param text
+	 *            The text holding the date.
+	 * @param offset
+	 *            The first byte of the date.
+	 * @return The epoch milliseconds.
+	 * @throws IllegalArgumentException
+	 *             If the text is not a formatted date.
+	 */
+	public static long parse(byte[] text, int offset) {
+		if (offset + LENGTH > text.length || text[offset + 4] != '-' || text[offset + 7] != '-' ||
+				text[offset + 10] != 'T' || text[offset + 13] != ':' ||
+				(text[offset + 16] != '+' && text[offset + 16] != '-'))
+			throw new IllegalArgumentException("Not an export date");
+
+		int year = digits(text, offset, 4);
+		int month = digits(text, offset + 5, 2);
+		int day = digits(text, offset + 8, 2);
+		int hour = digits(text, offset + 11, 2);
+		int minute = digits(text, offset + 14, 2);
+
+		int zone = digits(text, offset + 17, 2) * 60 + digits(text, offset + 19, 2);
+		if (text[offset + 16] == '-')
+			zone = -zone;
+
+		long minutes = ResultRecordDecoder.daysFromCivil(year, month, day) * MINUTES_PER_DAY + hour * 60 + minute - zone;
+
+		return minutes * MILLIS_PER_MINUTE;
+	}
+
+	private static int digits(byte[] text, int offset, int count) {
+		int value = 0;
+
+		for (int i = offset; i < offset + count; i++) {
+			int digit = text[i] - '0';
+			if (digit < 0 || digit > 9)
+				throw new IllegalArgumentException("Not an export date");
+
+			value = value * 10 + digit;
+		}
+
+		return value;
+	}
+
+	private static long floorDiv(long x, long y) {
+		long q = x / y;
+
+		return (x % y != 0 && (x ^ y) < 0) ? q - 1 : q;
+	}
+
+	private void put2(int offset, int value) {
+		date[offset] = (byte) ('0' + value / 10);
+		date[offset + 1] = (byte) ('0' + value % 10);
+	}
+}
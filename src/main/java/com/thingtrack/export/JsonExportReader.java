@@ -0,0 +1,313 @@
+package com.thingtrack.export;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import com.thingtrack.parser.MeasureSeries;
+
+/**
+ * Reader of the JSON exports, the ones written by the parsers and the ones
+ * written before with json-simple. The document is parsed straight from its
+ * bytes into a measure series, without building a tree: the known members
+ * are decoded and any other member is skipped. The measure values can be
+ * numbers or strings, the dates are parsed by {@link IsoDateFormatter}.
+ */
+public class JsonExportReader {
+	private final byte[] data;
+	private int position;
+
+	private String serlnum;
+	private String swver;
+	private String ptname;
+	private String ptid;
+	private long clock = Long.MIN_VALUE;
+
+	private final MeasureSeries measures = new MeasureSeries();
+
+	/**
+	 * Read and parse an export.
+	 *
+	 * @throws IOException
+	 *             If the file cannot be read or is not an export.
+	 */
+	public JsonExportReader(File file) throws IOException {
+		this(Files.readAllBytes(file.toPath()), file.toString());
+	}
+
+	public JsonExportReader(byte[] data, String name) throws IOException {
+		this.data = data;
+
+		try {
+			parseExport();
+		} catch (RuntimeException e) {
+			throw new IOException("Corrupted JSON export " + name + " at byte " + position, e);
+		}
+
+		if (serlnum == null)
+			throw new IOException("Not a JSON export: " + name);
+	}
+
+	public String getSerlnum() {
+		return serlnum;
+	}
+
+	public String getSwver() {
+		return swver;
+	}
+
+	public String getPtname() {
+		return ptname;
+	}
+
+	public String getPtid() {
+		return ptid;
+	}
+
+	/**
+	 * Epoch milliseconds of the meter clock, Long.MIN_VALUE if unknown.
+	 */
+	public long getClock() {
+		return clock;
+	}
+
+	/**
+	 * The measures in export order, the values as they were exported.
+	 */
+	public MeasureSeries getMeasures() {
+		return measures;
+	}
+
+	private void parseExport() {
+		expect('{');
+		if (peek() == '}') {
+			position++;
+			return;
+		}
+
+		do {
+			String name = parseString();
+			expect(':');
+
+			if ("serlnum".equals(name))
+				serlnum = parseNullableString();
+			else if ("swver".equals(name))
+				swver = parseNullableString();
+			else if ("ptname".equals(name))
+				ptname = parseNullableString();
+			else if ("ptid".equals(name))
+				ptid = parseNullableString();
+			else if ("date".equals(name))
+				clock = parseDate();
+			else if ("measures".equals(name))
+				parseMeasures();
+			else
+				skipValue();
+		} while (next(','));
+
+		expect('}');
+	}
+
+	private void parseMeasures() {
+		expect('[');
+		if (peek() == ']') {
+			position++;
+			return;
+		}
+
+		do {
+			long timestamp = Long.MIN_VALUE;
+			float value = Float.NaN;
+
+			expect('{');
+			if (peek() != '}') {
+				do {
+					String name = parseString();
+					expect(':');
+
+					if ("date".equals(name))
+						timestamp = parseDate();
+					else if ("value".equals(name))
+						value = parseNumber();
+					else
+						skipValue();
+				} while (next(','));
+			}
+			expect('}');
+
+			if (timestamp == Long.MIN_VALUE || Float.isNaN(value))
+				throw new IllegalArgumentException("Measure without date or value");
+
+			measures.add(timestamp, value, (byte) 0);
+		} while (next(','));
+
+		expect(']');
+	}
+
+	private long parseDate() {
+		skipSpaces();
+		if (data[position] != '"')
+			throw new IllegalArgumentException("Date expected");
+
+		long timestamp = IsoDateFormatter.parse(data, position + 1);
+
+		position += 1 + IsoDateFormatter.LENGTH;
+		if (data[position++] != '"')
+			throw new IllegalArgumentException("Date expected");
+
+		return timestamp;
+	}
+
+	private float parseNumber() {
+		skipSpaces();
+
+		// the old exports can have the values as strings
+		if (data[position] == '"')
+			return Float.parseFloat(parseString());
+
+		int start = position;
+		while (position < data.length && isNumberChar(data[position]))
+			position++;
+
+		return Float.parseFloat(new String(data, start, position - start, StandardCharsets.US_ASCII));
+	}
+
+	private static boolean isNumberChar(byte b) {
+		return (b >= '0' && b <= '9') || b == '-' || b == '+' || b == '.' || b == 'e' || b == 'E';
+	}
+
+	private String parseNullableString() {
+		if (peek() == 'n') {
+			skipValue();
+			return null;
+		}
+
+		return parseString();
+	}
+
+	private String parseString() {
+		expect('"');
+
+		int start = position;
+		while (data[position] != '"') {
+			if (data[position] == '\\')
+				return parseEscapedString(start);
+
+			position++;
+		}
+
+		return new String(data, start, position++ - start, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Slow path of the strings with escapes.
+	 */
+	private String parseEscapedString(int start) {
+		StringBuilder text = new StringBuilder(new String(data, start, position - start, StandardCharsets.UTF_8));
+
+		while (true) {
+			int chunk = position;
+			while (data[position] != '"' && data[position] != '\\')
+				position++;
+
+			text.append(new String(data, chunk, position - chunk, StandardCharsets.UTF_8));
+
+			if (data[position++] == '"')
+				return text.toString();
+
+			byte escaped = data[position++];
+			switch (escaped) {
+			case 'b':
+				text.append('\b');
+				break;
+			case 'f':
+				text.append('\f');
+				break;
+			case 'n':
+				text.append('\n');
+				break;
+			case 'r':
+				text.append('\r');
+				break;
+			case 't':
+				text.append('\t');
+				break;
+			case 'u':
+				text.append((char) Integer.parseInt(new String(data, position, 4, StandardCharsets.US_ASCII), 16));
+				position += 4;
+				break;
+			default:
+				text.append((char) escaped);
+			}
+		}
+	}
+
+	private void skipValue() {
+		byte b = peek();
+
+		if (b == '"') {
+			parseString();
+		}
+		else if (b == '{' || b == '[') {
+			byte close = b == '{' ? (byte) '}' : (byte) ']';
+
+			position++;
+			if (peek() == close) {
+				position++;
+				return;
+			}
+
+			do {
+				if (b == '{') {
+					parseString();
+					expect(':');
+				}
+
+				skipValue();
+			} while (next(','));
+
+			expect((char) close);
+		}
+		else {
+			// numbers, true, false and null
+			while (position < data.length && data[position] != ',' && data[position] != '}' &&
+					data[position] != ']' && !isSpace(data[position]))
+				position++;
+		}
+	}
+
+	private boolean next(char token) {
+		if (peek() == token) {
+			position++;
+			return true;
+		}
+
+		return false;
+	}
+
+	private void expect(char token) {
+		if (peek() != token)
+			throw new IllegalArgumentException("'" + token + "' expected");
+
+		position++;
+	}
+
+	private byte peek() {
+		skipSpaces();
+
+		if (position == data.length)
+			throw new IllegalArgumentException("Unexpected end");
+
+		return data[position];
+	}
+
+	private void skipSpaces() {
+		while (position < data.length && isSpace(data[position]))
+			position++;
+	}
+
+	private static boolean isSpace(byte b) {
+		return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+	}
+}
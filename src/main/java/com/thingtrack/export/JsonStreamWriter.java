@@ -0,0 +1,293 @@
+package com.thingtrack.export;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Streaming JSON writer: the tokens are encoded straight into a buffer that
+ * is written to the channel when full, so no document tree nor String of the
+ * whole document is built and the memory used does not depend on the size
+ * of the document. The separators are written by the writer.
+ */
+public class JsonStreamWriter implements Closeable {
+	private static final int DEFAULT_BUFFER_SIZE = 8192;
+
+	/** Max nesting of objects and arrays */
+	private static final int MAX_DEPTH = 32;
+
+	private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+	private static final byte[] NULL = "null".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] TRUE = "true".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] FALSE = "false".getBytes(StandardCharsets.US_ASCII);
+
+	private final WritableByteChannel channel;
+	private final ByteBuffer buffer;
+
+	private final IsoDateFormatter dateFormatter = new IsoDateFormatter();
+
+	/** Digits of the numbers, written backwards */
+	private final byte[] digits = new byte[20];
+
+	/** If the current object or array has already a member, by depth */
+	private final boolean[] members = new boolean[MAX_DEPTH];
+	private int depth;
+
+	/** A name was written, the next token is its value */
+	private boolean named;
+
+	public JsonStreamWriter(WritableByteChannel channel) {
+		this(channel, DEFAULT_BUFFER_SIZE);
+	}
+
+	public JsonStreamWriter(WritableByteChannel channel, int bufferSize) {
+		this.channel = channel;
+		this.buffer = ByteBuffer.allocateDirect(bufferSize);
+	}
+
+	public JsonStreamWriter beginObject() throws IOException {
+		return begin('{');
+	}
+
+	public JsonStreamWriter endObject() throws IOException {
+		return end('}');
+	}
+
+	public JsonStreamWriter beginArray() throws IOException {
+		return begin('[');
+	}
+
+	public JsonStreamWriter endArray() throws IOException {
+		return end(']');
+	}
+
+	/**
+	 * Write the name of the next member of the current object.
+	 */
+	public JsonStreamWriter name(String name) throws IOException {
+		separator();
+		string(name);
+		put((byte) ':');
+
+		named = true;
+
+		return this;
+	}
+
+	public JsonStreamWriter value(String value) throws IOException {
+		separator();
+
+		if (value == null)
+			put(NULL, 0, NULL.length);
+		else
+			string(value);
+
+		return this;
+	}
+
+	public JsonStreamWriter value(boolean value) throws IOException {
+		separator();
+
+		byte[] token = value ? TRUE : FALSE;
+		put(token, 0, token.length);
+
+		return this;
+	}
+
+	public JsonStreamWriter value(long value) throws IOException {
+		separator();
+		number(value);
+
+		return this;
+	}
+
+	/**
+	 * Write a float like Float.toString, so the values read the same as
+	 * before: the integer values, the usual glucose values, are written
+	 * without allocating.
+	 */
+	public JsonStreamWriter value(float value) throws IOException {
+		separator();
+
+		if (value == (long) value && Math.abs(value) < 1e7f) {
+			if (value == 0 && 1 / value < 0)
+				put((byte) '-');
+
+			number((long) value);
+			put((byte) '.');
+			put((byte) '0');
+		}
+		else if (Float.isNaN(value) || Float.isInfinite(value))
+			put(NULL, 0, NULL.length);
+		else {
+			String text = Float.toString(value);
+			for (int i = 0; i < text.length(); i++)
+				put((byte) text.charAt(i));
+		}
+
+		return this;
+	}
+
+	/**
+	 * Write a date as an ISO-8601 string in UTC.
+	 *
+	 * @param timestamp
+	 *            The epoch milliseconds.
+	 */
+	public JsonStreamWriter date(long timestamp) throws IOException {
+		separator();
+
+		put((byte) '"');
+		put(dateFormatter.format(timestamp), 0, IsoDateFormatter.LENGTH);
+		put((byte) '"');
+
+		return this;
+	}
+
+	/**
+	 * Write the buffered tokens to the channel.
+	 */
+	public void flush() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+		buffer.clear();
+	}
+
+	/**
+	 * Flush the buffered tokens, the channel is not closed.
+	 */
+	@Override
+	public void close() throws IOException {
+		flush();
+	}
+
+	private JsonStreamWriter begin(char token) throws IOException {
+		if (depth == MAX_DEPTH)
+			throw new IllegalStateException("Max JSON nesting reached");
+
+		separator();
+		put((byte) token);
+
+		members[depth++] = false;
+
+		return this;
+	}
+
+	private JsonStreamWriter end(char token) throws IOException {
+		if (depth == 0)
+			throw new IllegalStateException("No JSON object or array to end");
+
+		depth--;
+		put((byte) token);
+
+		return this;
+	}
+
+	/**
+	 * Write the comma between the members of an object or array.
+	 */
+	private void separator() throws IOException {
+		if (named) {
+			named = false;
+			return;
+		}
+
+		if (depth > 0) {
+			if (members[depth - 1])
+				put((byte) ',');
+
+			members[depth - 1] = true;
+		}
+	}
+
+	private void string(String value) throws IOException {
+		put((byte) '"');
+
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+
+			if (c == '"' || c == '\\') {
+				put((byte) '\\');
+				put((byte) c);
+			}
+			else if (c < 0x20) {
+				put((byte) '\\');
+				put((byte) 'u');
+				put((byte) '0');
+				put((byte) '0');
+				put(HEX[c >> 4]);
+				put(HEX[c & 0xf]);
+			}
+			else if (c < 0x80)
+				put((byte) c);
+			else if (c < 0x800) {
+				put((byte) (0xc0 | (c >> 6)));
+				put((byte) (0x80 | (c & 0x3f)));
+			}
+			else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+				int codePoint = Character.toCodePoint(c, value.charAt(++i));
+
+				put((byte) (0xf0 | (codePoint >> 18)));
+				put((byte) (0x80 | ((codePoint >> 12) & 0x3f)));
+				put((byte) (0x80 | ((codePoint >> 6) & 0x3f)));
+				put((byte) (0x80 | (codePoint & 0x3f)));
+			}
+			else {
+				put((byte) (0xe0 | (c >> 12)));
+				put((byte) (0x80 | ((c >> 6) & 0x3f)));
+				put((byte) (0x80 | (c & 0x3f)));
+			}
+		}
+
+		put((byte) '"');
+	}
+
+	private void number(long value) throws IOException {
+		if (value == Long.MIN_VALUE) {
+			String text = Long.toString(value);
+			for (int i = 0; i < text.length(); i++)
+				put((byte) text.charAt(i));
+
+			return;
+		}
+
+		if (value < 0) {
+			put((byte) '-');
+			value = -value;
+		}
+
+		int count = 0;
+		do {
+			digits[count++] = (byte) ('0' + value % 10);
+			value /= 10;
+		} while (value != 0);
+
+		while (count > 0)
+			put(digits[--count]);
+	}
+
+	private void put(byte b) throws IOException {
+		if (!buffer.hasRemaining())
+			flush();
+
+		buffer.put(b);
+	}
+
+	private void put(byte[] data, int offset, int length) throws IOException {
+		if (buffer.remaining() < length)
+			flush();
+
+		if (length > buffer.capacity()) {
+			for (int i = offset; i < offset + length; i++)
+				put(data[i]);
+
+			return;
+		}
+
+		buffer.put(data, offset, length);
+	}
+}
@@ -0,0 +1,135 @@
+package com.thingtrack.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Metrics of a meter command, shared by all the sessions: the latency of
+ * the whole command, of sending its frame and of every report read, the
+ * bytes and reports read and the timeouts and retries.
+ */
+public class CommandMetrics implements CommandMetricsMBean {
+	private final String commandCode;
+
+	private final LatencyHistogram execute = new LatencyHistogram();
+	private final LatencyHistogram send = new LatencyHistogram();
+	private final LatencyHistogram read = new LatencyHistogram();
+
+	private final AtomicLong timeouts = new AtomicLong();
+	private final AtomicLong retries = new AtomicLong();
+	private final AtomicLong bytes = new AtomicLong();
+	private final AtomicLong reports = new AtomicLong();
+
+	private final SyncMetrics parent;
+
+	CommandMetrics(String commandCode, SyncMetrics parent) {
+		this.commandCode = commandCode;
+		this.parent = parent;
+	}
+
+	public String getCommandCode() {
+		return commandCode;
+	}
+
+	public void recordExecute(long nanos) {
+		execute.record(nanos);
+	}
+
+	public void recordSend(long nanos) {
+		send.record(nanos);
+	}
+
+	/**
+	 * Record a report read.
+	 *
+	 * @param nanos
+	 *            The time waiting for the report.
+	 * @param length
+	 *            The bytes of the report.
+	 */
+	public void recordRead(long nanos, int length) {
+		read.record(nanos);
+		bytes.addAndGet(length);
+		reports.incrementAndGet();
+
+		parent.recordRead(length);
+	}
+
+	public void recordTimeout() {
+		timeouts.incrementAndGet();
+
+		parent.recordTimeout();
+	}
+
+	public void recordRetry() {
+		retries.incrementAndGet();
+
+		parent.recordRetry();
+	}
+
+	@Override
+	public long getCount() {
+		return execute.getCount();
+	}
+
+	@Override
+	public long getTimeouts() {
+		return timeouts.get();
+	}
+
+	@Override
+	public long getRetries() {
+		return retries.get();
+	}
+
+	@Override
+	public long getBytesRead() {
+		return bytes.get();
+	}
+
+	@Override
+	public long getReportsRead() {
+		return reports.get();
+	}
+
+	@Override
+	public double getMeanMillis() {
+		return execute.getMeanMillis();
+	}
+
+	@Override
+	public double getP50Millis() {
+		return execute.getQuantileMillis(0.50);
+	}
+
+	@Override
+	public double getP95Millis() {
+		return execute.getQuantileMillis(0.95);
+	}
+
+	@Override
+	public double getP99Millis() {
+		return execute.getQuantileMillis(0.99);
+	}
+
+	@Override
+	public double getMaxMillis() {
+		return execute.getMaxMillis();
+	}
+
+	@Override
+	public double getSendP99Millis() {
+		return send.getQuantileMillis(0.99);
+	}
+
+	@Override
+	public double getReadP99Millis() {
+		return read.getQuantileMillis(0.99);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s count=%d p50=%.1fms p95=%.1fms p99=%.1fms max=%.1fms send.p99=%.1fms read.p99=%.1fms reports=%d bytes=%d timeouts=%d retries=%d",
+				commandCode, getCount(), getP50Millis(), getP95Millis(), getP99Millis(), getMaxMillis(),
+				getSendP99Millis(), getReadP99Millis(), getReportsRead(), getBytesRead(), getTimeouts(), getRetries());
+	}
+}
@@ -0,0 +1,30 @@
+package com.thingtrack.metrics;
+
+/**
+ * Management interface of the metrics of a meter command.
+ */
+public interface CommandMetricsMBean {
+	long getCount();
+
+	long getTimeouts();
+
+	long getRetries();
+
+	long getBytesRead();
+
+	long getReportsRead();
+
+	double getMeanMillis();
+
+	double getP50Millis();
+
+	double getP95Millis();
+
+	double getP99Millis();
+
+	double getMaxMillis();
+
+	double getSendP99Millis();
+
+	double getReadP99Millis();
+}
@@ -0,0 +1,108 @@
+package com.thingtrack.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free histogram of latencies in nanoseconds. The buckets are
+ * logarithmic with 8 linear sub-buckets per power of two, so any latency is
+ * recorded with an increment of a fixed array and the quantiles have an
+ * error under 12.5%.
+ */
+public class LatencyHistogram {
+	/** Sub-buckets per power of two, as a number of bits */
+	private static final int SUB_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+	private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Record a latency.
+	 *
+	 * @param nanos
+	 *            The latency in nanoseconds.
+	 */
+	public void record(long nanos) {
+		if (nanos < 0)
+			nanos = 0;
+
+		counts.incrementAndGet(bucket(nanos));
+		count.incrementAndGet();
+		sum.addAndGet(nanos);
+
+		long current;
+		while (nanos > (current = max.get()) && !max.compareAndSet(current, nanos))
+			;
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public double getMeanMillis() {
+		long n = count.get();
+
+		return n == 0 ? 0 : toMillis(sum.get() / n);
+	}
+
+	public double getMaxMillis() {
+		return toMillis(max.get());
+	}
+
+	/**
+	 * Get a quantile of the latencies.
+	 *
+	 * @param quantile
+	 *            The quantile, between 0 and 1.
+	 * @return The upper bound of the bucket of the quantile, in milliseconds.
+	 */
+	public double getQuantileMillis(double quantile) {
+		long n = count.get();
+		if (n == 0)
+			return 0;
+
+		long rank = (long) Math.ceil(quantile * n);
+		if (rank < 1)
+			rank = 1;
+
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+
+			if (seen >= rank)
+				return toMillis(Math.min(upperBound(i), max.get()));
+		}
+
+		return toMillis(max.get());
+	}
+
+	private static int bucket(long value) {
+		if (value < SUB_BUCKETS)
+			return (int) value;
+
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+
+		return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	private static long upperBound(int bucket) {
+		if (bucket < SUB_BUCKETS)
+			return bucket;
+
+		int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+		long sub = bucket % SUB_BUCKETS;
+
+		return ((SUB_BUCKETS + sub + 1) << (exponent - SUB_BITS)) - 1;
+	}
+
+	private static double toMillis(long nanos) {
+		return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+	}
+}
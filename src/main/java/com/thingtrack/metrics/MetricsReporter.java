@@ -0,0 +1,66 @@
+package com.thingtrack.metrics;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Logs a snapshot of the metrics periodically, on its own daemon thread.
+ */
+public class MetricsReporter {
+	private final static Logger logger = Logger.getLogger(MetricsReporter.class);
+
+	private final SyncMetrics metrics;
+	private final ScheduledExecutorService executor;
+
+	public MetricsReporter(SyncMetrics metrics) {
+		this.metrics = metrics;
+		this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "glukose-metrics");
+				thread.setDaemon(true);
+
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Start logging the snapshots.
+	 *
+	 * @param interval
+	 *            The seconds between two snapshots.
+	 */
+	public void start(long interval) {
+		executor.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				report();
+			}
+		}, interval, interval, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Log a snapshot now.
+	 */
+	public void report() {
+		try {
+			logger.info("Metrics snapshot\n" + metrics.takeSnapshot());
+		} catch (RuntimeException e) {
+			logger.error("Unable to take the metrics snapshot", e);
+		}
+	}
+
+	/**
+	 * Stop the periodic snapshots and log a last one.
+	 */
+	public void stop() {
+		executor.shutdownNow();
+
+		report();
+	}
+}
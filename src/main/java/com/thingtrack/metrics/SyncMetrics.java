@@ -0,0 +1,279 @@
+package com.thingtrack.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Download metrics of the service: the sessions, the exports and the metrics
+ * of every command. Recording is lock free, so it can stay enabled in the
+ * field. The metrics are exposed as MBeans:
+ *
+ * <pre>
+ * com.thingtrack.glukose:type=Sync
+ * com.thingtrack.glukose:type=Command,name=com01_init
+ * </pre>
+ *
+ * The rates are computed over the interval between two snapshots, or since
+ * the start if no snapshot was taken.
+ */
+public class SyncMetrics implements SyncMetricsMBean {
+	private final static Logger logger = Logger.getLogger(SyncMetrics.class);
+
+	private static final String DOMAIN = "com.thingtrack.glukose";
+
+	private static final SyncMetrics instance = new SyncMetrics();
+
+	private final ConcurrentMap<String, CommandMetrics> commands = new ConcurrentHashMap<String, CommandMetrics>();
+
+	private final LatencyHistogram sessionLatency = new LatencyHistogram();
+	private final LatencyHistogram exportLatency = new LatencyHistogram();
+
+	private final AtomicInteger activeSessions = new AtomicInteger();
+	private final AtomicLong failedSessions = new AtomicLong();
+	private final AtomicLong partialSessions = new AtomicLong();
+	private final AtomicLong bytes = new AtomicLong();
+	private final AtomicLong reports = new AtomicLong();
+	private final AtomicLong timeouts = new AtomicLong();
+	private final AtomicLong retries = new AtomicLong();
+
+	/** State of the rates, updated by the snapshots of the reporter */
+	private long rateStart = System.nanoTime();
+	private long rateBytes;
+	private long rateReports;
+	private volatile double bytesPerSecond = Double.NaN;
+	private volatile double reportsPerSecond = Double.NaN;
+
+	private volatile boolean registered;
+
+	public static SyncMetrics getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Get the metrics of a command, created when first used.
+	 */
+	public CommandMetrics command(String commandCode) {
+		CommandMetrics metrics = commands.get(commandCode);
+		if (metrics != null)
+			return metrics;
+
+		CommandMetrics created = new CommandMetrics(commandCode, this);
+		metrics = commands.putIfAbsent(commandCode, created);
+		if (metrics != null)
+			return metrics;
+
+		if (registered)
+			register(created);
+
+		return created;
+	}
+
+	public void sessionStarted() {
+		activeSessions.incrementAndGet();
+	}
+
+	/**
+	 * Record the end of a session.
+	 *
+	 * @param nanos
+	 *            The session time.
+	 * @param failed
+	 *            If the session failed.
+	 */
+	public void sessionEnded(long nanos, boolean failed) {
+		activeSessions.decrementAndGet();
+		sessionLatency.record(nanos);
+
+		if (failed)
+			failedSessions.incrementAndGet();
+	}
+
+	/**
+	 * Record a session that read only part of the meter history.
+	 */
+	public void recordPartial() {
+		partialSessions.incrementAndGet();
+	}
+
+	public void recordExport(long nanos) {
+		exportLatency.record(nanos);
+	}
+
+	void recordRead(int length) {
+		bytes.addAndGet(length);
+		reports.incrementAndGet();
+	}
+
+	void recordTimeout() {
+		timeouts.incrementAndGet();
+	}
+
+	void recordRetry() {
+		retries.incrementAndGet();
+	}
+
+	/**
+	 * Register the MBeans in the platform MBean server.
+	 */
+	public synchronized void register() {
+		if (registered)
+			return;
+
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(DOMAIN + ":type=Sync"));
+		} catch (JMException e) {
+			logger.error("Unable to register the sync metrics MBean", e);
+			return;
+		}
+
+		registered = true;
+
+		for (CommandMetrics metrics : commands.values())
+			register(metrics);
+	}
+
+	private void register(CommandMetrics metrics) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(DOMAIN + ":type=Command,name=" + metrics.getCommandCode());
+
+			if (!server.isRegistered(name))
+				server.registerMBean(metrics, name);
+		} catch (JMException e) {
+			logger.error("Unable to register the metrics MBean of " + metrics.getCommandCode(), e);
+		}
+	}
+
+	@Override
+	public int getActiveSessions() {
+		return activeSessions.get();
+	}
+
+	@Override
+	public long getSessions() {
+		return sessionLatency.getCount();
+	}
+
+	@Override
+	public long getFailedSessions() {
+		return failedSessions.get();
+	}
+
+	@Override
+	public long getPartialSessions() {
+		return partialSessions.get();
+	}
+
+	@Override
+	public double getSessionP50Millis() {
+		return sessionLatency.getQuantileMillis(0.50);
+	}
+
+	@Override
+	public double getSessionP99Millis() {
+		return sessionLatency.getQuantileMillis(0.99);
+	}
+
+	@Override
+	public double getSessionMaxMillis() {
+		return sessionLatency.getMaxMillis();
+	}
+
+	@Override
+	public double getExportP99Millis() {
+		return exportLatency.getQuantileMillis(0.99);
+	}
+
+	@Override
+	public long getBytesRead() {
+		return bytes.get();
+	}
+
+	@Override
+	public long getReportsRead() {
+		return reports.get();
+	}
+
+	@Override
+	public double getBytesPerSecond() {
+		double rate = bytesPerSecond;
+
+		return Double.isNaN(rate) ? sinceStart(bytes.get()) : rate;
+	}
+
+	@Override
+	public double getReportsPerSecond() {
+		double rate = reportsPerSecond;
+
+		return Double.isNaN(rate) ? sinceStart(reports.get()) : rate;
+	}
+
+	@Override
+	public long getTimeouts() {
+		return timeouts.get();
+	}
+
+	@Override
+	public long getRetries() {
+		return retries.get();
+	}
+
+	/**
+	 * Take a snapshot: update the rates over the interval since the last one
+	 * and describe all the metrics. Only the metrics reporter takes them, so
+	 * the rates are over its interval.
+	 */
+	synchronized String takeSnapshot() {
+		long now = System.nanoTime();
+		double seconds = (now - rateStart) / 1e9;
+
+		if (seconds > 0) {
+			long currentBytes = bytes.get();
+			long currentReports = reports.get();
+
+			bytesPerSecond = (currentBytes - rateBytes) / seconds;
+			reportsPerSecond = (currentReports - rateReports) / seconds;
+
+			rateStart = now;
+			rateBytes = currentBytes;
+			rateReports = currentReports;
+		}
+
+		return getSnapshot();
+	}
+
+	/**
+	 * Describe all the metrics, one command per line, with the rates of the
+	 * last snapshot taken.
+	 */
+	@Override
+	public String getSnapshot() {
+		StringBuilder snapshot = new StringBuilder();
+		snapshot.append(String.format("sessions active=%d total=%d failed=%d partial=%d p50=%.1fms p99=%.1fms max=%.1fms export.p99=%.1fms bytes/s=%.1f reports/s=%.1f timeouts=%d retries=%d",
+				getActiveSessions(), getSessions(), getFailedSessions(), getPartialSessions(), getSessionP50Millis(), getSessionP99Millis(),
+				getSessionMaxMillis(), getExportP99Millis(), getBytesPerSecond(), getReportsPerSecond(), getTimeouts(), getRetries()));
+
+		// the commands in code order
+		for (Map.Entry<String, CommandMetrics> entry : new TreeMap<String, CommandMetrics>(commands).entrySet())
+			snapshot.append('\n').append(entry.getValue());
+
+		return snapshot.toString();
+	}
+
+	private synchronized double sinceStart(long total) {
+		double seconds = (System.nanoTime() - rateStart) / 1e9;
+
+		return seconds > 0 ? total / seconds : 0;
+	}
+}
@@ -0,0 +1,39 @@
+package com.thingtrack.metrics;
+
+/**
+ * Management interface of the download metrics of the service.
+ */
+public interface SyncMetricsMBean {
+	int getActiveSessions();
+
+	long getSessions();
+
+	long getFailedSessions();
+
+	long getPartialSessions();
+
+	double getSessionP50Millis();
+
+	double getSessionP99Millis();
+
+	double getSessionMaxMillis();
+
+	double getExportP99Millis();
+
+	long getBytesRead();
+
+	long getReportsRead();
+
+	double getBytesPerSecond();
+
+	double getReportsPerSecond();
+
+	long getTimeouts();
+
+	long getRetries();
+
+	/**
+	 * Get a text snapshot of all the metrics.
+	 */
+	String getSnapshot();
+}
@@ -5,6 +5,8 @@ import java.util.Hashtable;
 import org.usb4java.Context;
 import org.usb4java.Device;
 
+import com.thingtrack.transport.UsbTransport;
+
 public abstract class AbstractUsbParser {
     private short vendorId;
     private short productId;
@@ -21,10 +23,39 @@ public abstract class AbstractUsbParser {
     public short getProductId() {
     	return productId;
     }
-    
+
+    /**
+     * Create the parser of a new download session. The drivers loaded by the
+     * {@link DriverRegistry} need a public constructor without arguments.
+     */
+    public AbstractUsbParser newSession() {
+    	try {
+    		return getClass().newInstance();
+    	} catch (ReflectiveOperationException e) {
+    		throw new IllegalStateException("Unable to create the parser " + getClass().getName(), e);
+    	}
+    }
+
 	public abstract Hashtable<String, Object> execute(Context context, Device device, int event, Object userData); 
 	
+	/**
+	 * Download the values of a meter. A response cut while the results are
+	 * read still returns the results read so far, with "complete" false.
+	 *
+	 * @throws IllegalStateException
+	 *             if the download failed, nothing can be exported then.
+	 */
+	public abstract Hashtable<String, Object> execute(UsbTransport transport);
+	
+	public abstract UsbTransport createTransport(Device device);
+	
 	public abstract Hashtable<String, Object> getValues();
 	
+	/**
+	 * Export the values of a download.
+	 *
+	 * @throws IllegalStateException
+	 *             if the export failed.
+	 */
 	public abstract void export(String path);
 }
@@ -0,0 +1,56 @@
+package com.thingtrack.parser;
+
+/**
+ * Byte level state machine finding a byte sequence in a stream, like the
+ * "CMD OK" terminator of the meter responses. The stream is fed one byte at a
+ * time, so the sequence is found even if it is split between reports.
+ */
+public class ByteSequenceMatcher {
+	private final byte[] sequence;
+
+	/** Length of the longest proper prefix that is also a suffix, per state */
+	private final int[] failure;
+
+	/** Number of bytes of the sequence matched */
+	private int state;
+
+	public ByteSequenceMatcher(byte[] sequence) {
+		this.sequence = sequence.clone();
+		this.failure = new int[sequence.length];
+
+		for (int i = 1, k = 0; i < sequence.length; i++) {
+			while (k > 0 && sequence[i] != sequence[k])
+				k = failure[k - 1];
+
+			if (sequence[i] == sequence[k])
+				k++;
+
+			failure[i] = k;
+		}
+	}
+
+	/**
+	 * Feed the next byte of the stream.
+	 *
+	 * @return true if the byte completes the sequence.
+	 */
+	public boolean match(byte b) {
+		while (state > 0 && b != sequence[state])
+			state = failure[state - 1];
+
+		if (b == sequence[state])
+			state++;
+
+		if (state == sequence.length) {
+			state = failure[state - 1];
+
+			return true;
+		}
+
+		return false;
+	}
+
+	public void reset() {
+		state = 0;
+	}
+}
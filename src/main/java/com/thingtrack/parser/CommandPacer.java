@@ -0,0 +1,109 @@
+package com.thingtrack.parser;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Learns how long each meter takes to answer each command, so the first read
+ * after a command waits just enough instead of a fixed sleep. The latency is
+ * estimated per serial number and command code with an exponentially weighted
+ * moving average plus its mean deviation, the same way TCP estimates the
+ * retransmission timeout.
+ */
+public class CommandPacer {
+	/** Weight of the last sample on the average */
+	private static final double ALPHA = 0.125;
+
+	/** Weight of the last sample on the deviation */
+	private static final double BETA = 0.25;
+
+	/** Safety margin added to the estimate in milliseconds */
+	private static final int SAFETY_MARGIN = 50;
+
+	/** Min read timeout in milliseconds */
+	public static final int MIN_TIMEOUT = 20;
+
+	/** Serial used before the serial number of the meter is known */
+	private static final String ANY_SERIAL = "*";
+
+	/** Latency estimate of one command */
+	private static class Estimate {
+		private double average;
+		private double deviation;
+
+		Estimate(long latency) {
+			this.average = latency;
+			this.deviation = latency / 2.0;
+		}
+
+		synchronized void update(long latency) {
+			double error = latency - average;
+
+			average += ALPHA * error;
+			deviation += BETA * (Math.abs(error) - deviation);
+		}
+
+		synchronized long getTimeout() {
+			return (long) Math.ceil(average + 4 * deviation) + SAFETY_MARGIN;
+		}
+	}
+
+	private final ConcurrentMap<String, Estimate> estimates = new ConcurrentHashMap<String, Estimate>();
+
+	private static String getKey(String serial, String commandCode) {
+		return (serial != null ? serial : ANY_SERIAL) + "/" + commandCode;
+	}
+
+	/**
+	 * Get the timeout of the first read after sending a command.
+	 *
+	 * @param serial
+	 *            The meter serial number, null if still unknown.
+	 * @param commandCode
+	 *            The command code.
+	 * @param maxWait
+	 *            The upper bound in milliseconds.
+	 * @return The read timeout in milliseconds.
+	 */
+	public int getReadTimeout(String serial, String commandCode, int maxWait) {
+		Estimate estimate = estimates.get(getKey(serial, commandCode));
+
+		// meters without history use the estimate of all meters
+		if (estimate == null)
+			estimate = estimates.get(getKey(null, commandCode));
+
+		if (estimate == null)
+			return Math.max(maxWait, MIN_TIMEOUT);
+
+		return (int) Math.max(MIN_TIMEOUT, Math.min(estimate.getTimeout(), maxWait));
+	}
+
+	/**
+	 * Record the latency from sending a command to receive the first report.
+	 *
+	 * @param serial
+	 *            The meter serial number, null if still unknown.
+	 * @param commandCode
+	 *            The command code.
+	 * @param latency
+	 *            The latency in milliseconds.
+	 */
+	public void record(String serial, String commandCode, long latency) {
+		update(getKey(serial, commandCode), latency);
+
+		if (serial != null)
+			update(getKey(null, commandCode), latency);
+	}
+
+	private void update(String key, long latency) {
+		Estimate estimate = estimates.get(key);
+
+		if (estimate == null) {
+			estimate = estimates.putIfAbsent(key, new Estimate(latency));
+			if (estimate == null)
+				return;
+		}
+
+		estimate.update(latency);
+	}
+}
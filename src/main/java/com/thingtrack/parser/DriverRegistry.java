@@ -0,0 +1,126 @@
+package com.thingtrack.parser;
+
+import java.util.ServiceLoader;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The meter drivers known by the service, indexed by their packed vendor
+ * and product ids. The drivers are {@link AbstractUsbParser} implementations
+ * listed in META-INF/services/com.thingtrack.parser.AbstractUsbParser, so new
+ * meter models are added without touching the hotplug callback.
+ * <p>
+ * The loaded instances are only prototypes: every session gets a new parser
+ * from {@link AbstractUsbParser#newSession()}. The registry is built once and
+ * never changes, a lookup is a probe of a small int array with no boxing.
+ */
+public class DriverRegistry {
+	private final static Logger logger = Logger.getLogger(DriverRegistry.class);
+
+	private static final int MIN_CAPACITY = 8;
+
+	private final int[] keys;
+	private final AbstractUsbParser[] drivers;
+	private final boolean[] used;
+	private final int mask;
+	private final int size;
+
+	private DriverRegistry(AbstractUsbParser[] loaded, int count) {
+		int capacity = MIN_CAPACITY;
+		while (capacity / 2 < count)
+			capacity <<= 1;
+
+		keys = new int[capacity];
+		drivers = new AbstractUsbParser[capacity];
+		used = new boolean[capacity];
+		mask = capacity - 1;
+
+		int size = 0;
+		for (int i = 0; i < count; i++) {
+			AbstractUsbParser driver = loaded[i];
+			int key = key(driver.getVendorId(), driver.getProductId());
+
+			int slot = slot(key);
+			while (used[slot] && keys[slot] != key)
+				slot = (slot + 1) & mask;
+
+			if (used[slot]) {
+				logger.warn(String.format("Driver %s for %04x:%04x ignored, already handled by %s",
+						driver.getClass().getName(), driver.getVendorId(), driver.getProductId(),
+						drivers[slot].getClass().getName()));
+				continue;
+			}
+
+			used[slot] = true;
+			keys[slot] = key;
+			drivers[slot] = driver;
+			size++;
+		}
+
+		this.size = size;
+	}
+
+	/**
+	 * Load the drivers listed as services in the class path.
+	 */
+	public static DriverRegistry load() {
+		return load(DriverRegistry.class.getClassLoader());
+	}
+
+	public static DriverRegistry load(ClassLoader loader) {
+		AbstractUsbParser[] loaded = new AbstractUsbParser[MIN_CAPACITY];
+		int count = 0;
+
+		for (AbstractUsbParser driver : ServiceLoader.load(AbstractUsbParser.class, loader)) {
+			if (count == loaded.length) {
+				AbstractUsbParser[] grown = new AbstractUsbParser[count * 2];
+				System.arraycopy(loaded, 0, grown, 0, count);
+				loaded = grown;
+			}
+
+			loaded[count++] = driver;
+
+			logger.info(String.format("Driver %s loaded for %04x:%04x",
+					driver.getClass().getName(), driver.getVendorId(), driver.getProductId()));
+		}
+
+		return new DriverRegistry(loaded, count);
+	}
+
+	/**
+	 * Pack the usb ids of a device in one int.
+	 */
+	public static int key(short vendorId, short productId) {
+		return (vendorId & 0xffff) << 16 | (productId & 0xffff);
+	}
+
+	private int slot(int key) {
+		int hash = key * 0x9e3779b9;
+
+		return (hash ^ (hash >>> 16)) & mask;
+	}
+
+	/**
+	 * Find the driver of a device.
+	 *
+	 * @param vendorId
+	 *            The device vendor id.
+	 * @param productId
+	 *            The device product id.
+	 * @return The driver prototype, null if the device is not a known meter.
+	 */
+	public AbstractUsbParser find(short vendorId, short productId) {
+		int key = key(vendorId, productId);
+
+		for (int slot = slot(key); used[slot]; slot = (slot + 1) & mask) {
+			if (keys[slot] == key)
+				return drivers[slot];
+		}
+
+		return null;
+	}
+
+	public int size() {
+		return size;
+	}
+}
@@ -1,35 +1,44 @@
 package com.thingtrack.parser;
 
-import java.io.FileWriter;
+import java.io.File;
 import java.io.IOException;
 
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.IntBuffer;
 import java.nio.charset.StandardCharsets;
-import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 
-import java.util.ArrayList;
 import java.util.Date;
 import java.util.Hashtable;
-import java.util.List;
-import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.Logger;
-import org.json.simple.JSONArray;
-import org.json.simple.JSONObject;
 
-import org.usb4java.BufferUtils;
 import org.usb4java.Context;
 import org.usb4java.Device;
-import org.usb4java.DeviceHandle;
 import org.usb4java.LibUsb;
 import org.usb4java.LibUsbException;
 
 import com.thingtrack.App;
+import com.thingtrack.analytics.GlycaemicSummary;
+import com.thingtrack.export.AtomicFile;
+import com.thingtrack.export.BinaryExportFormat;
+import com.thingtrack.export.BinaryExportWriter;
+import com.thingtrack.export.JsonStreamWriter;
+import com.thingtrack.metrics.CommandMetrics;
+import com.thingtrack.metrics.SyncMetrics;
+import com.thingtrack.protocol.CommandFrame;
 import com.thingtrack.protocol.FreestyleOptiumNeoProtocols;
+import com.thingtrack.store.DedupIndex;
+import com.thingtrack.store.LongHashSet;
+import com.thingtrack.store.MeterMetadataStore.Metadata;
+import com.thingtrack.store.SerialConflictException;
+import com.thingtrack.store.SyncStateStore.Checkpoint;
+import com.thingtrack.transport.LibUsbTransport;
+import com.thingtrack.transport.Report;
+import com.thingtrack.transport.ReportBufferPool;
+import com.thingtrack.transport.ReportReader;
+import com.thingtrack.transport.UsbTransport;
 
 public class FreeStyleOptiumNeoParser extends AbstractUsbParser {
 	private final static Logger logger = Logger.getLogger(FreeStyleOptiumNeoParser.class);
@@ -45,307 +54,685 @@ public class FreeStyleOptiumNeoParser extends AbstractUsbParser {
     
     /** Default read size of the FreeStyle Optium Neo */
     private static final int SIZE = 64;
+    
+    /** The poll timeout while waiting for a slow meter */
+    private static final int POLL_TIMEOUT = 50;
+    
+    /** Max number of idle report buffers kept for the sessions */
+    private static final int POOL_CAPACITY = 64;
+    
+    /** Command latencies learned from all sessions */
+    private static final CommandPacer pacer = new CommandPacer();
+    
+    /** Read timeout of the readiness probes, in milliseconds */
+    private static final int READY_TIMEOUT = 100;
+    
+    /** Bounds of the backoff between two readiness probes, in milliseconds */
+    private static final int READY_MIN_BACKOFF = 25;
+    private static final int READY_MAX_BACKOFF = 400;
+    
+    /** Download metrics shared by all sessions */
+    private static final SyncMetrics metrics = SyncMetrics.getInstance();
+    
+    /** Report buffers shared by all sessions */
+    private static final ReportBufferPool pool = new ReportBufferPool(SIZE, POOL_CAPACITY);
+    
+    /** Command frames, encoded once and sent by all sessions */
+    private static final CommandFrame COM01_INIT = new CommandFrame("com01_init", FreestyleOptiumNeoProtocols.com01_init);
+    private static final CommandFrame COM02_TIME = new CommandFrame("com02_time", FreestyleOptiumNeoProtocols.com02_time);
+    private static final CommandFrame COM03_TIME = new CommandFrame("com03_time", FreestyleOptiumNeoProtocols.com03_time);
+    private static final CommandFrame COM04_TIME = new CommandFrame("com04_time", FreestyleOptiumNeoProtocols.com04_time);
+    private static final CommandFrame COM05_TIME = new CommandFrame("com05_time", FreestyleOptiumNeoProtocols.com05_time);
+    private static final CommandFrame COM06_SERLNUM = new CommandFrame("com06_serlnum", FreestyleOptiumNeoProtocols.com06_serlnum);
+    private static final CommandFrame COM07_SWVER = new CommandFrame("com07_swver", FreestyleOptiumNeoProtocols.com07_swver);
+    private static final CommandFrame COM08_DATE = new CommandFrame("com08_date", FreestyleOptiumNeoProtocols.com08_date);
+    private static final CommandFrame COM09_TIME = new CommandFrame("com09_time", FreestyleOptiumNeoProtocols.com09_time);
+    private static final CommandFrame COM10_PTNAME = new CommandFrame("com10_ptname", FreestyleOptiumNeoProtocols.com10_ptname);
+    private static final CommandFrame COM11_PTID = new CommandFrame("com11_ptid", FreestyleOptiumNeoProtocols.com11_ptid);
+    private static final CommandFrame COM26_RESULT = new CommandFrame("com26_result", FreestyleOptiumNeoProtocols.com26_result);
 
-    /** Measure class */
-    public class Measure {
-    	private Date date;
-    	private float value;
-    	
-    	public Measure(Date date, float value) {
-    		this.date = date;
-    		this.value = value;
-    	}
-    	
-    	public Date getDate() {
-    		return this.date;
-    	}
+    /** Collects the new results while they are decoded */
+    private class ResultCollector implements ResultRecordHandler {
+    	private final MeasureSeries measures = new MeasureSeries();
+    	private final GlycaemicSummary summary = new GlycaemicSummary();
     	
-    	public float getValue() {
-    		return value;
-    	}
+		@Override
+		public boolean onRecord(long timestamp, float value) {
+			// the results come newest first, stop at the first one already
+			// exported: older than the last export, and in the dedup index as
+			// the meter clock could have been set back since. The ones of the
+			// same minute as the last export are left to the dedup index
+			if (timestamp < highWaterMark && (dedup == null || dedup.size() == 0 || dedup.contains(DedupIndex.key(timestamp, normalize(value)))))
+				return false;
+			
+			// the range of the history parsed by this download, for the checkpoint
+			if (timestamp > newestParsed)
+				newestParsed = timestamp;
+			lastParsed = timestamp;
+			
+			// exported by a partial download before
+			if (checkpoint != null && checkpoint.contains(timestamp))
+				return true;
+			
+			float exported = normalize(value);
+			
+			// drop the rows seen before, in this download or an exported one
+			if (dedup != null) {
+				long key = DedupIndex.key(timestamp, exported);
+				
+				if (dedup.contains(key) || !sessionKeys.add(key)) {
+					duplicates++;
+					return true;
+				}
+			}
+			
+    		if (value == 1) {
+    			measures.add(timestamp, 0, MeasureSeries.FLAG_ZERO);
+    			summary.addLow(timestamp);
+    		} else {
+    			measures.add(timestamp, value, (byte) 0);
+    			summary.add(timestamp, value);
+    		}
+    		
+			return true;
+		}
     }
     
     private Hashtable<String, Object> values = new Hashtable<String, Object>();
     
+    /** Serial number of the connected meter, null until com06_serlnum */
+    private String serial;
+    
+    /** Time of the newest measurement exported before from this meter */
+    private long highWaterMark = Long.MIN_VALUE;
+    
+    /** Measures exported before from this meter, null if not deduplicated */
+    private DedupIndex dedup;
+    
+    /** Keys of the measures of this download, saved in the index once exported */
+    private final LongHashSet sessionKeys = new LongHashSet();
+    
+    /** Rows dropped as duplicates in this download */
+    private int duplicates;
+    
+    /** Measures exported by the partial downloads before, null if none */
+    private Checkpoint checkpoint;
+    
+    /** Newest and last parsed results of this download */
+    private long newestParsed = Long.MIN_VALUE;
+    private long lastParsed = Long.MIN_VALUE;
+    
+    /** False if a response was cut, even after the retries */
+    private boolean complete = true;
+    
+    /** Framing of the responses of this session */
+    private final ReportFramer framer = new ReportFramer();
+    
+    /** Report buffer of the synchronous reads of this session */
+    private Report report;
+    
+    /** Free Style Optium Neo Glucometer identifiers */
+    public static final short VENDOR_ID = (short)0x1a61;
+    public static final short PRODUCT_ID = (short)0x3850;
+    
+	public FreeStyleOptiumNeoParser() {
+		this(VENDOR_ID, PRODUCT_ID);
+	}
+	
 	public FreeStyleOptiumNeoParser(short vendorId, short productId) {
 		super(vendorId, productId);
 	}
 	
+    /**
+     * Normalize a result value of the meter: the readings below its range
+     * (LO) are reported as 1 and exported as 0, flagged with
+     * {@link MeasureSeries#FLAG_ZERO}.
+     */
+    public static float normalize(float value) {
+    	return value == 1 ? 0 : value;
+    }
+    
     /**
      * Send transfer control commands from the device.
      * 
-     * @param handle
-     *            The device handle.
+     * @param transport
+     *            The device transport.
      * @param command
-     *            The command to execute
+     *            The encoded command frame to send.
      */	
-    private void sendCommand(DeviceHandle handle, byte[] transfer) {
-        ByteBuffer buffer = ByteBuffer.allocateDirect(transfer.length);
-        buffer.put(transfer);
-        buffer.rewind();
-        
-        int transfered = LibUsb.controlTransfer(handle,
+    private void sendCommand(UsbTransport transport, CommandFrame command) {
+        int transfered = transport.controlTransfer(
             (byte) (LibUsb.REQUEST_TYPE_CLASS | LibUsb.RECIPIENT_INTERFACE),
-            (byte) 0x09, (short) 0x200, (short) 0x00, buffer, TIMEOUT);
+            (byte) 0x09, (short) 0x200, (short) 0x00, command.getBuffer(), TIMEOUT);
         
         if (transfered < 0)
             throw new LibUsbException("Control transfer failed", transfered);
         
-        if (transfered != transfer.length)
+        if (transfered != command.getLength())
             throw new RuntimeException("Not all data was sent to device");
     }
     
     /**
      * Reads some data from the device endpoint.
      * 
-     * @param handle
-     *            The device handle.
-     * @param size
-     *            The number of bytes to read from the device.
-     * @return The read data.
+     * @param transport
+     *            The device transport.
+     * @param timeout
+     *            The read timeout in milliseconds.
+     * @return The read report.
      */
-    private ByteBuffer read(DeviceHandle handle, int size) {
-        ByteBuffer buffer = BufferUtils.allocateByteBuffer(size).order(ByteOrder.LITTLE_ENDIAN);        
-        IntBuffer transferred = BufferUtils.allocateIntBuffer();
+    private Report read(UsbTransport transport, int timeout) {
+    	report.clear();
         
-        int result = LibUsb.bulkTransfer(handle, IN_ENDPOINT, buffer, transferred, TIMEOUT);
+        int result = transport.bulkTransfer(IN_ENDPOINT, report.getData(), report.getTransferred(), timeout);
         if (result != LibUsb.SUCCESS) {
             throw new LibUsbException("Unable to read data", result);
         }
         
-        System.out.println(transferred.get() + " bytes read from device");
-        
-        return buffer;
+        return report;
     }   
 	
     /**
-     * execute command from the device.
+     * Wait for the first report of the command response. In fixed pacing
+     * sleeps the wait time before reading, else starts reading right away
+     * and polls with short timeouts until the meter answers or the wait
+     * time plus the usb timeout has passed.
      * 
-     * @param handle
-     *            The device handle.
+     * @param transport
+     *            The device transport.
+     * @param reader
+     *            The pipelined reader of the response, null to read synchronously.
      * @param commandCode
-     *            The command code to execute. 
-     * @param commandPayload
-     *            The command payload to execute.                             
-     * @param size
-     *            The number of bytes to read from the device.
-     * @return The read data.
-     */    
-    private Object executeCommand(DeviceHandle handle, String commandCode, byte[] commandPayload, int size, boolean multi) throws InterruptedException {
-    	List<String> tokens = new ArrayList<String>();
+     *            The command code sent.
+     * @return The first report of the response.
+     */
+    private Report readFirst(UsbTransport transport, ReportReader reader, String commandCode) throws InterruptedException {
+    	if (!App.adaptive) {
+    		Thread.sleep(App.wait);
+    		
+    		return readNext(transport, reader);
+    	}
+    	
+    	long start = System.nanoTime();
+    	
+    	if (reader != null) {
+    		// the transfers are already queued, just wait for the first one
+    		Report first = reader.read(App.wait + TIMEOUT);
+    		
+    		pacer.record(serial, commandCode, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    		
+    		return first;
+    	}
     	
-    	ByteBuffer buffer=null;
-        String data = null;
+    	long deadline = start + TimeUnit.MILLISECONDS.toNanos(App.wait + TIMEOUT);
+    	
+    	// the first read waits what this meter usually takes to answer
+    	int timeout = pacer.getReadTimeout(serial, commandCode, App.wait);
+    	while (true) {
+    		try {
+    			Report first = read(transport, timeout);
+    			
+    			pacer.record(serial, commandCode, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    			
+    			return first;
+    		} catch (LibUsbException ex) {
+    			long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+    			
+    			if (ex.getErrorCode() != LibUsb.ERROR_TIMEOUT || remaining <= 0)
+    				throw ex;
+    			
+    			// slow meter, keep polling until the upper bound
+    			metrics.command(commandCode).recordRetry();
+    			timeout = (int) Math.max(CommandPacer.MIN_TIMEOUT, Math.min(POLL_TIMEOUT, remaining));
+    		}
+    	}
+    }
+    
+    /**
+     * Read the next report of the command response.
+     * 
+     * @param transport
+     *            The device transport.
+     * @param reader
+     *            The pipelined reader of the response, null to read synchronously.
+     * @return The read report.
+     */
+    private Report readNext(UsbTransport transport, ReportReader reader) {
+    	if (reader == null)
+    		return read(transport, TIMEOUT);
+    	
+    	return reader.read(TIMEOUT);
+    }
+    
+    /**
+     * Trace a report read from the device, only in verbose mode.
+     */
+    private void traceReport(String commandCode, Report report) {
+    	if (!App.verbose || !logger.isDebugEnabled())
+    		return;
+    	
+    	ByteBuffer data = report.getData().duplicate();
+    	data.position(ReportFramer.HEADER_SIZE);
+    	data.limit(ReportFramer.HEADER_SIZE + ReportFramer.getPayloadLength(data, report.getLength()));
+    	
+    	logger.debug(report.getLength() + " bytes read from device");
+    	logger.debug("Data " + commandCode + ":" + StandardCharsets.US_ASCII.decode(data));
+    }
+    
+    /**
+     * execute command from the device.
+     * 
+     * @param transport
+     *            The device transport.
+     * @param command
+     *            The command frame to execute.
+     * @param decoder
+     *            The decoder of multi report responses, null for single responses.
+     * @return The response lines, null for multi report responses.
+     */    
+    private Object executeCommand(UsbTransport transport, CommandFrame command, ResultRecordDecoder decoder) throws InterruptedException {
+        String commandCode = command.getCode();
+        
+        // multi report responses are decoded as they are read
+        boolean multi = decoder != null;
         
-    	System.out.println("send " + commandCode + " command");
+        CommandMetrics commandMetrics = metrics.command(commandCode);
+        long start = System.nanoTime();
+        
+    	if (App.verbose)
+    		System.out.println("send " + commandCode + " command");
     	logger.info("send " + commandCode + " command");
     	
-        sendCommand(handle, commandPayload);
-        Thread.sleep(App.wait);
+    	framer.reset(decoder);
+        sendCommand(transport, command);
+        
+        long readStart = System.nanoTime();
+        commandMetrics.recordSend(readStart - start);
+        
+        // multi report responses are read through pipelined transfers
+        ReportReader reader = null;
+        if (multi && App.depth > 0)
+        	reader = transport.openReader(IN_ENDPOINT, pool, App.depth);
+        
+        boolean first = true;
+        int retries = 0;
         try {		                
             while(true) {
-                buffer = read(handle, size);	  
-                data = StandardCharsets.US_ASCII.decode(buffer).toString();
-                System.out.println("Data " + commandCode + ":" + data);
-                logger.info("Data " + commandCode + ":" + data);
-                
-                // if the control transfer result is multi
-                if (multi)
-                	tokens.add(data);
-                
-            	if (data.contains("CMD OK")) {
-            		if (multi)
-            			return tokens;
-            		else            			
-            			return data;		      
+            	Report next;
+            	try {
+            		next = first ? readFirst(transport, reader, commandCode) : readNext(transport, reader);
+            	} catch (LibUsbException ex) {
+            		// an interrupted read cancels the session, it never cuts the response
+            		if (ex.getErrorCode() == LibUsb.ERROR_INTERRUPTED) {
+            			Thread.currentThread().interrupt();
+            			throw new InterruptedException("Read of " + commandCode + " interrupted");
+            		}
+            		
+            		// the handshakes are answered with one report, nothing more to read
+            		if (!first && command.isHandshake())
+            			break;
+            		
+            		if (!retryRead(transport, commandCode, ex, ++retries))
+            			throw ex;
+            		
+            		continue;
+            	}
+            	
+            	first = false;
+            	retries = 0;
+            	
+            	commandMetrics.recordRead(System.nanoTime() - readStart, next.getLength());
+            	traceReport(commandCode, next);
+            	
+            	// scan this report while the next ones are in transfer
+            	if (!framer.frame(next.getData(), next.getLength())) {
+            		if (framer.isStopped())
+            			logger.info("Result decoding stopped, stop " + commandCode);
+            		
+            		break;
             	}
+            	
+            	// handshake frames have no payload and are answered with one report
+            	if (App.adaptive && command.isHandshake())
+            		break;
+            	
+            	readStart = System.nanoTime();
             }
         } catch (LibUsbException ex) {
-        	return tokens;
+        	if (ex.getErrorCode() == LibUsb.ERROR_TIMEOUT)
+        		commandMetrics.recordTimeout();
+        	
+        	// never taken as the end of the response, the session is partial
+        	complete = false;
+        	
+        	logger.error("Response of " + commandCode + " cut after " + (retries - 1) + " retries: " + ex.getMessage());
+        } finally {
+        	if (reader != null)
+        		reader.close();
+        	
+        	commandMetrics.recordExecute(System.nanoTime() - start);
         }
+        
+        return multi ? null : framer.getLines();
     }
-	
+    
+    /**
+     * Check if a failed read of a response can be retried: only the timeouts,
+     * the stalls and the io errors, up to the max retries of a report. A
+     * stalled endpoint is cleared before the retry.
+     * 
+     * @param transport
+     *            The device transport.
+     * @param commandCode
+     *            The command code sent.
+     * @param ex
+     *            The read failure.
+     * @param retries
+     *            The retries of this report, this one included.
+     * @return true if the read can be retried.
+     */
+    private boolean retryRead(UsbTransport transport, String commandCode, LibUsbException ex, int retries) {
+    	int error = ex.getErrorCode();
+    	
+    	if (retries > App.reportRetries || 
+    			(error != LibUsb.ERROR_TIMEOUT && error != LibUsb.ERROR_PIPE && error != LibUsb.ERROR_IO))
+    		return false;
+    	
+    	if (error == LibUsb.ERROR_PIPE) {
+    		int result = transport.clearHalt(IN_ENDPOINT);
+    		if (result != LibUsb.SUCCESS) {
+    			logger.warn("Unable to clear the halt of " + commandCode + ": " + LibUsb.errorName(result));
+    			
+    			return false;
+    		}
+    	}
+    	
+    	metrics.command(commandCode).recordRetry();
+    	
+    	logger.warn("Read of " + commandCode + " failed, retry " + retries + " of " + App.reportRetries + ": " + ex.getMessage());
+    	
+    	return true;
+    }
+    
+    /**
+     * Wait until the meter is ready after claiming its interface: send the
+     * init frame with short read timeouts, backing off between the probes,
+     * until the meter answers or the ready ceiling has passed.
+     * 
+     * @param transport
+     *            The device transport.
+     * @return true if the meter answered the init frame, false if the
+     *         ceiling has passed.
+     */
+    private boolean waitReady(UsbTransport transport) throws InterruptedException {
+    	long start = System.nanoTime();
+    	long deadline = start + TimeUnit.MILLISECONDS.toNanos(App.readyTimeout);
+    	
+    	CommandMetrics commandMetrics = metrics.command(COM01_INIT.getCode());
+    	
+    	int backoff = READY_MIN_BACKOFF;
+    	int probes = 0;
+    	while (true) {
+    		probes++;
+    		
+    		try {
+    			sendCommand(transport, COM01_INIT);
+    			read(transport, READY_TIMEOUT);
+    			
+    			// a slow meter can answer the previous probes too, drop those answers
+    			if (probes > 1)
+    				drain(transport);
+    			
+    			logger.info("Device ready after " + probes + " probes in " + 
+    					TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+    			
+    			return true;
+    		} catch (LibUsbException ex) {
+    			if (ex.getErrorCode() == LibUsb.ERROR_NO_DEVICE)
+    				throw ex;
+    			
+    			long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+    			if (remaining <= 0) {
+    				logger.warn("Device not ready after " + probes + " probes, go on: " + ex.getMessage());
+    				
+    				return false;
+    			}
+    			
+    			commandMetrics.recordRetry();
+    			
+    			Thread.sleep(Math.min(backoff, remaining));
+    			backoff = Math.min(backoff * 2, READY_MAX_BACKOFF);
+    		}
+    	}
+    }
+    
+    /**
+     * Drop the pending reports of the device.
+     */
+    private void drain(UsbTransport transport) {
+    	try {
+    		while (true)
+    			read(transport, CommandPacer.MIN_TIMEOUT);
+    	} catch (LibUsbException ex) {
+    		if (ex.getErrorCode() != LibUsb.ERROR_TIMEOUT)
+    			throw ex;
+    	}
+    }
+    
+    /**
+     * Get the first line of a response.
+     */
+    private String firstLine(Object data) {
+    	return ((LineAssembler) data).getLine(0);
+    }
+    
     /* Parse Free Style Optium Neo functions*/
     private void parseDate(Object data) throws ParseException {
-    	String[] lines = ((String) data).split("\n");
-    	
-    	String str = (lines[0]).substring(2, lines[0].length()-1);
-    	String[] tokens = str.split(",");
+    	String[] tokens = firstLine(data).split(",");
     	
     	values.put("date", tokens[0] + "-" + tokens[1] + "-" + tokens[2]);
     }
 
     private void parseTime(Object data) throws ParseException {
-    	String[] lines = ((String) data).split("\n");
-    	
-    	String str = (lines[0]).substring(2, lines[0].length()-1);    	
-    	String[] tokens = str.split(",");
+    	String[] tokens = firstLine(data).split(",");
     	
     	values.put("time", tokens[0] + ":" + tokens[1]);
     }
     
-    private void parseSerlnum(Object data) {
-    	String[] lines = ((String) data).split("\n");
+    private void parseSerlnum(Object data) throws IOException {
+    	serial = firstLine(data);
+    	values.put("serlnum", serial);
     	
-    	values.put("serlnum", lines[0].substring(2, lines[0].length()-1));
+    	// only the results newer than the last export are downloaded
+    	if (App.syncState != null && !App.resync) {
+    		highWaterMark = App.syncState.getHighWaterMark(serial);
+    		
+    		// a partial download before goes on where it was cut
+    		checkpoint = App.syncState.getCheckpoint(serial);
+    		if (checkpoint != null)
+    			logger.info("Resume the download of " + serial + " before " + new Date(checkpoint.getOldest()));
+    	}
+    	
+    	// the dedup index of the meter is loaded the first time it is seen
+    	if (App.dedupIndexes != null) {
+    		try {
+    			dedup = App.dedupIndexes.getIndex(serial);
+    		} catch (SerialConflictException e) {
+    			logger.error(e.getMessage() + ", the download is not deduplicated");
+    		}
+    	}
     }
 
     private void parseSwver(Object data) {
-    	String[] lines = ((String) data).split("\n");
-    	
-    	values.put("swver", lines[0].substring(2, lines[0].length()-1));
+    	values.put("swver", firstLine(data));
     }
 
     private void parsePtname(Object data) {
-    	String[] lines = ((String) data).split("\n");
-    	
-    	values.put("ptname", lines[0].substring(2, lines[0].length()-1));
+    	values.put("ptname", firstLine(data));
     } 
     
     private void parsePtid(Object data) {
-    	String[] lines = ((String) data).split("\n");
-    	
-    	values.put("ptid", lines[0].substring(2, lines[0].length()-1));
+    	values.put("ptid", firstLine(data));
     }
 
-    @SuppressWarnings({ "unchecked" })
-	private void parseResult(Object data) throws NumberFormatException, ParseException {
-    	List<Measure> measures = new ArrayList<Measure>();
+    /**
+     * Put the cached metadata of the meter.
+     * 
+     * @return false if there is no cached metadata fresh enough.
+     */
+    private boolean loadMetadata() {
+    	if (App.metadataCache == null || App.resync)
+    		return false;
     	
-    	SimpleDateFormat formatter = new SimpleDateFormat("MM-dd-yy HH:mm");
+    	Metadata metadata = App.metadataCache.getFresh(serial, App.metadataRefresh);
+    	if (metadata == null)
+    		return false;
     	
-    	for (Object line : (List<Object>)data) {
-    		String[] tokens = ((String)line).split(",");
-    		    
-    		if (tokens.length > 8) {
-	    		Date date = formatter.parse(tokens[2] + "-" + tokens[3] + "-" + tokens[4] + " " + tokens[5] + ":" + tokens[6]);
-	    		float value = Float.parseFloat(tokens[8]);    		
-	    		if (value == 1)
-	    			value = 0;
-	    		
-	    		measures.add(new Measure(date, value));
-    		}
-    	}
+    	// the fields the meter did not answer are not cached
+    	if (metadata.getSwver() != null)
+    		values.put("swver", metadata.getSwver());
+    	if (metadata.getPtname() != null)
+    		values.put("ptname", metadata.getPtname());
+    	if (metadata.getPtid() != null)
+    		values.put("ptid", metadata.getPtid());
+    	
+    	logger.info("Metadata of " + serial + " from cache");
     	
-		values.put("measures", measures);
+    	return true;
+    }
+    
+    private void saveMetadata() {
+    	if (App.metadataCache == null)
+    		return;
+    	
+    	// the cache never fails the download, the metadata is read again the next time
+    	try {
+    		App.metadataCache.put(serial, (String) values.get("swver"), (String) values.get("ptname"), (String) values.get("ptid"));
+    	} catch (IOException e) {
+    		logger.warn("Unable to cache the metadata of " + serial, e);
+    	}
+    }
+
+    @Override
+    public UsbTransport createTransport(Device device) {
+    	return new LibUsbTransport(device, DEF_INTERFACE);
     }
     
     @Override
 	public Hashtable<String, Object> execute(Context context, Device device, int event, Object userData) {
-    	int result;
-    	
-    	// Open Abbott FreeStyle Optium Neo device
-        final DeviceHandle handle = new DeviceHandle();
-        result = LibUsb.open(device, handle);
-        
-        if (result != LibUsb.SUCCESS) {
-        	logger.error("LibUsbException", new LibUsbException("Unable to open USB device", result));
-            throw new LibUsbException("Unable to open USB device", result);
-        }
+    	UsbTransport transport = createTransport(device);
+    	try {
+    		return execute(transport);
+    	} finally {
+    		transport.dispose();
+    	}
+    }
+    
+    @Override
+	public Hashtable<String, Object> execute(UsbTransport transport) {
+    	// Open Abbott FreeStyle Optium Neo device and claim its interface
+    	transport.open();
         	   
-        int attached = 0;
+        report = pool.acquire();
         try {
-            // Check if kernel driver is attached to the interface
-            attached = LibUsb.kernelDriverActive(handle, DEF_INTERFACE);
-            if (attached < 0) {
-            	logger.error("LibUsbException", new LibUsbException("Unable to check kernel driver active", result));
-                throw new LibUsbException("Unable to check kernel driver active", result);
-            }
-
-            // Detach kernel driver from interface 0. This can fail if
-            // kernel is not attached to the device or operating system
-            // doesn't support this operation. These cases are ignored here.
-            result = LibUsb.detachKernelDriver(handle, DEF_INTERFACE);
-            if (result != LibUsb.SUCCESS &&
-                result != LibUsb.ERROR_NOT_SUPPORTED &&
-                result != LibUsb.ERROR_NOT_FOUND) {
-            	logger.error("LibUsbException", new LibUsbException("Unable to detach kernel driver", result));
-                throw new LibUsbException("Unable to detach kernel driver", result);
-            }
-            
-            // Claim interface
-            result = LibUsb.claimInterface(handle, DEF_INTERFACE);
-            if (result != LibUsb.SUCCESS) {
-            	logger.error("LibUsbException", new LibUsbException("Unable to claim interface", result));
-                throw new LibUsbException("Unable to claim interface", result);
-            }	                
-
             // Clear the halt/stall condition for an endpoint
-            LibUsb.clearHalt(handle, IN_ENDPOINT);
+            transport.clearHalt(IN_ENDPOINT);
+            
+            // probe the meter with the init frame until it answers
+            if (App.verbose)
+            	System.out.println("Wait device ready ...");
+            logger.info("Wait device ready ...");
             
-            // sleep 5 seconds
-            System.out.println("Wait 5 second ...");
-            logger.info("Wait 5 second ...");
-            Thread.sleep(5000);
+            boolean ready = waitReady(transport);
             
-            System.out.println("Init commands");
+            if (App.verbose)
+            	System.out.println("Init commands");
             logger.info("Init commands");
             
-            // send com01_init command
-            executeCommand(handle, "com01_init", FreestyleOptiumNeoProtocols.com01_init, SIZE, false);	              
+            // send com01_init command, unless already answered to the probe
+            if (!ready)
+            	executeCommand(transport, COM01_INIT, null);	              
             
             // send com02_time command
-            executeCommand(handle, "com02_time", FreestyleOptiumNeoProtocols.com02_time, SIZE, false);
+            executeCommand(transport, COM02_TIME, null);
             
             // send com03_time command
-            executeCommand(handle, "com03_time", FreestyleOptiumNeoProtocols.com03_time, SIZE, false);		          
+            executeCommand(transport, COM03_TIME, null);		          
             
             // send com04_time command
-            executeCommand(handle, "com04_time", FreestyleOptiumNeoProtocols.com04_time, SIZE, false);
+            executeCommand(transport, COM04_TIME, null);
             	                
             // send com05_time command
-            executeCommand(handle, "com05_time", FreestyleOptiumNeoProtocols.com05_time, SIZE, false);	              
+            executeCommand(transport, COM05_TIME, null);	              
             
             // send com06_serlnum command
-            parseSerlnum(executeCommand(handle, "com06_serlnum", FreestyleOptiumNeoProtocols.com06_serlnum, SIZE, false));
+            parseSerlnum(executeCommand(transport, COM06_SERLNUM, null));
+            
+            // the metadata is read from the meter only when the cached one is stale,
+            // the meter clock is always read for the export
+            boolean cached = loadMetadata();
             
             // send com07_swver command
-            executeCommand(handle, "com07_swver", FreestyleOptiumNeoProtocols.com07_swver, SIZE, false);
+            if (!cached)
+            	parseSwver(executeCommand(transport, COM07_SWVER, null));
             
             // send com08_date command
-            parseDate(executeCommand(handle, "com08_date", FreestyleOptiumNeoProtocols.com08_date, SIZE, false));	              
+            parseDate(executeCommand(transport, COM08_DATE, null));	              
             
             // send com09_time command
-            parseTime(executeCommand(handle, "com09_time", FreestyleOptiumNeoProtocols.com09_time, SIZE, false));
+            parseTime(executeCommand(transport, COM09_TIME, null));
             
-            // send com10_ptname command
-            parsePtname(executeCommand(handle, "com10_ptname", FreestyleOptiumNeoProtocols.com10_ptname, SIZE, false));
+            if (!cached) {
+            	// send com10_ptname command
+            	parsePtname(executeCommand(transport, COM10_PTNAME, null));
 
-            // send com11_ptid command
-            parsePtid(executeCommand(handle, "com11_ptid", FreestyleOptiumNeoProtocols.com11_ptid, SIZE, false));
+            	// send com11_ptid command
+            	parsePtid(executeCommand(transport, COM11_PTID, null));
+            	
+            	saveMetadata();
+            }
                           		              	               
-            // send com26_result command
-            parseResult(executeCommand(handle, "com26_result", FreestyleOptiumNeoProtocols.com26_result, SIZE, true));	                	                
+            // send com26_result command, the results are parsed while they are read
+            ResultCollector results = new ResultCollector();
+            executeCommand(transport, COM26_RESULT, new ResultRecordDecoder(results));
+            
+            logger.info(results.measures.size() + " new results from " + serial + ", " + duplicates + " duplicates dropped");
+            values.put("measures", results.measures);
+            values.put("summary", results.summary);
             
-            System.out.println("End commands");
+            if (!complete) {
+            	metrics.recordPartial();
+            	logger.warn("Partial download of " + serial + ", the next one resumes before " + new Date(lastParsed));
+            }	                	                
+            
+            if (App.verbose)
+            	System.out.println("End commands");
         } catch (InterruptedException e) {
-        	logger.error("InterruptedException", e);
-        	System.out.println("InterruptedException: " + e.getMessage());		
+        	complete = false;
+        	
+        	// the session is cancelled, the caller sees the interrupt too
+        	Thread.currentThread().interrupt();
+        	throw new IllegalStateException("Download interrupted", e);
 		} catch (ParseException e) {
-			logger.error("ParseException", e);
-			System.out.println("ParseException: " + e.getMessage());
-		} catch (Exception e) {
-			logger.error("Exception", e);
-			System.out.println("Exception: " + e.getMessage());
+			complete = false;
+			throw new IllegalStateException("Unable to parse the response of the meter", e);
+		} catch (IOException e) {
+			complete = false;
+			throw new IllegalStateException("Unable to download the meter", e);
+		} catch (RuntimeException e) {
+			complete = false;
+			throw new IllegalStateException("Unable to download the meter", e);
 		}
         finally {
-        	// Release the interface
-        	System.out.println("Release interface");
-        	logger.info("Release interface");
-            result = LibUsb.releaseInterface(handle, DEF_INTERFACE);
-            if (result != LibUsb.SUCCESS) {
-            	logger.error("LibUsbException", new LibUsbException("Unable to release interface", result));
-                throw new LibUsbException("Unable to release interface", result);
-            }
-            
-            // Re-attach kernel driver if needed
-            if (attached == 1) {
-                LibUsb.attachKernelDriver(handle, DEF_INTERFACE);
-                if (result != LibUsb.SUCCESS) {
-                	logger.error("LibUsbException", new LibUsbException("Unable to re-attach kernel driver", result));
-                    throw new LibUsbException("Unable to re-attach kernel driver", result);
-                }
-            }
+        	values.put("complete", complete);
+        	
+        	// Release the interface and close the device
+        	if (App.verbose)
+        		System.out.println("Release interface");
+        	transport.close();
+        	
+    		pool.release(report);
+    		report = null;
         }
                     
 		return values;
@@ -357,55 +744,147 @@ public class FreeStyleOptiumNeoParser extends AbstractUsbParser {
 		
 	}
 
-	@SuppressWarnings("unchecked")
 	@Override
 	public void export(String path) {
+		// the export files of this download share the name
+		SimpleDateFormat formatter = new SimpleDateFormat("yyyyMMddHHmmss");
+		String name = values.get("serlnum").toString() + "#" + formatter.format(new Date());
+		
 		try {
-			logger.info("Generating JSON result");
-			// create the JSON file from hashtable
+			// the meter clock, in the default time zone like the results
 			SimpleDateFormat dateFormat = new SimpleDateFormat("MM-dd-yy HH:mm");
+			Date date = dateFormat.parse(values.get("date") + " " + values.get("time"));
 			
-			TimeZone tz = TimeZone.getTimeZone("UTC");
-			DateFormat isoDateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mmZ");
-			isoDateFormat.setTimeZone(tz);
+			MeasureSeries series = (MeasureSeries)values.get("measures");
+			
+			// the log keeps the whole history of the meter and its rollups, the export files are projections of the new measures
+			if (App.queryService != null) {
+				try {
+					int appended = App.queryService.append(values.get("serlnum").toString(), series);
 					
-			JSONObject json = new JSONObject();		
+					logger.info(appended + " measures appended to the log of " + values.get("serlnum"));
+				} catch (SerialConflictException e) {
+					logger.error(e.getMessage() + ", the download is only exported");
+				}
+			}
 			
-			if (values.get("swver") != null)
-				json.put("swver", values.get("swver").toString());
-			json.put("serlnum", values.get("serlnum").toString());
-			json.put("ptname", values.get("ptname").toString());
-			json.put("ptid", values.get("ptid").toString());
-			json.put("date", isoDateFormat.format(dateFormat.parse(values.get("date") + " " + values.get("time"))));
+			if (App.jsonExport)
+				exportJson(new File(App.path, name + ".json"), date.getTime(), series);
 			
-			JSONArray measures = new JSONArray();
-			for(Measure measure : (List<Measure>)values.get("measures")) {
-	    		JSONObject val = new JSONObject();
-	    		
-	    		val.put("date", isoDateFormat.format(measure.getDate()));
-	    		val.put("value", measure.getValue());
-	    		
-	    		measures.add(val);
-	    	}
-			json.put("measures", measures);		
-		
-			// export jSON file			
-			SimpleDateFormat formatter = new SimpleDateFormat("yyyyMMddHHmmss");	
+			if (App.binaryExport)
+				exportBinary(new File(App.path, name + BinaryExportFormat.EXTENSION), date.getTime(), series);
 			
-			String fileName = App.path + "/" + values.get("serlnum").toString() + "#" + formatter.format(new Date()) + ".json";
+			// the next download only exports the results newer than these
+			if (App.syncState != null)
+				saveSyncState(series);
 			
-			logger.info("Saving JSON result at " + fileName); 
-			
-			FileWriter jsonFile = new FileWriter(fileName);
-			jsonFile.write(json.toJSONString());
-			jsonFile.flush();
-			jsonFile.close();
+			// and never the rows exported now
+			if (dedup != null)
+				dedup.addAll(sessionKeys);
 		} catch (IOException e) {
-			logger.error("IOException", e);
-			e.printStackTrace();
+			throw new IllegalStateException("Unable to export the download of " + values.get("serlnum"), e);
 		} catch (ParseException e) {
-			logger.error("ParseException", e);
-			e.printStackTrace();
+			throw new IllegalStateException("Unable to parse the clock of " + values.get("serlnum"), e);
+		}
+	}
+	
+	/**
+	 * Move the high-water mark of a complete download, or save the checkpoint
+	 * of a partial one.
+	 */
+	private void saveSyncState(MeasureSeries series) throws IOException {
+		if (complete) {
+			long newest = series.isEmpty() ? Long.MIN_VALUE : series.getNewest();
+			if (checkpoint != null)
+				newest = Math.max(newest, checkpoint.getNewest());
+			
+			App.syncState.complete(serial, newest);
 		}
-	}      
+		else if (newestParsed != Long.MIN_VALUE) {
+			// the parsed range joins the checkpoint if they overlap, else the
+			// older range is left to the dedup index
+			if (checkpoint == null || lastParsed > checkpoint.getNewest())
+				checkpoint = new Checkpoint(lastParsed, newestParsed);
+			else
+				checkpoint = new Checkpoint(Math.min(lastParsed, checkpoint.getOldest()), Math.max(newestParsed, checkpoint.getNewest()));
+			
+			App.syncState.setCheckpoint(serial, checkpoint);
+		}
+	}
+	
+	private void exportJson(File file, long clock, MeasureSeries series) throws IOException {
+		logger.info("Generating JSON result");
+		
+		AtomicFile jsonFile = new AtomicFile(file);
+		boolean committed = false;
+		
+		try {
+			logger.info("Saving JSON result at " + file);
+			
+			// the measures are streamed to the file, nothing is built in memory
+			JsonStreamWriter json = new JsonStreamWriter(jsonFile.open());
+			
+			json.beginObject();
+			if (values.get("swver") != null)
+				json.name("swver").value(values.get("swver").toString());
+			json.name("serlnum").value(values.get("serlnum").toString());
+			if (values.get("ptname") != null)
+				json.name("ptname").value(values.get("ptname").toString());
+			if (values.get("ptid") != null)
+				json.name("ptid").value(values.get("ptid").toString());
+			json.name("date").date(clock);
+			json.name("complete").value(complete);
+			
+			// the statistics of the new measures, computed while they were read
+			GlycaemicSummary summary = (GlycaemicSummary) values.get("summary");
+			if (summary != null) {
+				json.name("summary");
+				summary.write(json);
+			}
+			
+			json.name("measures").beginArray();
+			for(int i = 0; i < series.size(); i++) {
+				json.beginObject();
+				json.name("date").date(series.getTimestamp(i));
+				json.name("value").value(series.getValue(i));
+				json.endObject();
+			}
+			json.endArray();
+			
+			json.endObject();
+			json.close();
+			
+			// publish the file only when complete
+			jsonFile.commit();
+			committed = true;
+		} finally {
+			// never leave the temporary file, whatever failed
+			if (!committed)
+				jsonFile.abort();
+		}
+	}
+	
+	private void exportBinary(File file, long clock, MeasureSeries series) throws IOException {
+		AtomicFile binaryFile = new AtomicFile(file);
+		boolean committed = false;
+		
+		try {
+			logger.info("Saving binary result at " + file);
+			
+			BinaryExportWriter writer = new BinaryExportWriter(binaryFile.open());
+			writer.writeHeader(clock, series.size(),
+					values.get("serlnum").toString(),
+					values.get("swver") != null ? values.get("swver").toString() : null,
+					values.get("ptname") != null ? values.get("ptname").toString() : null,
+					values.get("ptid") != null ? values.get("ptid").toString() : null);
+			writer.writeMeasures(series);
+			writer.close();
+			
+			binaryFile.commit();
+			committed = true;
+		} finally {
+			if (!committed)
+				binaryFile.abort();
+		}
+	}
 }
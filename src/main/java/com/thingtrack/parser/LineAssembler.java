@@ -0,0 +1,75 @@
+package com.thingtrack.parser;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reassembles the CRLF delimited lines of a response split between reports.
+ * The bytes are kept in a reusable array; a String is only created when a
+ * line is requested.
+ */
+public class LineAssembler {
+	private static final int INITIAL_SIZE = 256;
+	private static final int INITIAL_LINES = 8;
+
+	private byte[] data = new byte[INITIAL_SIZE];
+	private int length;
+
+	/** Start and end offsets of the completed lines */
+	private int[] starts = new int[INITIAL_LINES];
+	private int[] ends = new int[INITIAL_LINES];
+	private int lines;
+
+	/** Start offset of the line being assembled */
+	private int start;
+
+	public void append(byte b) {
+		if (b == '\r' || b == '\n') {
+			// CRLF ends a line, the empty lines are skipped
+			if (length > start)
+				endLine();
+
+			start = length;
+			return;
+		}
+
+		if (length == data.length)
+			data = Arrays.copyOf(data, data.length * 2);
+
+		data[length++] = b;
+	}
+
+	private void endLine() {
+		if (lines == starts.length) {
+			starts = Arrays.copyOf(starts, lines * 2);
+			ends = Arrays.copyOf(ends, lines * 2);
+		}
+
+		starts[lines] = start;
+		ends[lines] = length;
+		lines++;
+	}
+
+	/**
+	 * Get the number of lines completed.
+	 */
+	public int getLineCount() {
+		return lines;
+	}
+
+	/**
+	 * Get a completed line, without the CRLF.
+	 */
+	public String getLine(int index) {
+		if (index >= lines)
+			throw new IndexOutOfBoundsException("Line " + index + " of " + lines);
+
+		return new String(data, starts[index], ends[index] - starts[index], StandardCharsets.US_ASCII);
+	}
+
+	public void reset() {
+		length = 0;
+		lines = 0;
+		start = 0;
+	}
+}
@@ -0,0 +1,297 @@
+package com.thingtrack.parser;
+
+import java.util.Arrays;
+
+/**
+ * Columnar series of measures: the epoch timestamps, values and flags are
+ * kept in growable primitive arrays instead of one object per measure.
+ */
+public class MeasureSeries {
+	/** The meter reported the value 1: no valid measure, exported as 0 */
+	public static final byte FLAG_ZERO = 0x01;
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	/**
+	 * Visitor of the measures, the values are never boxed.
+	 */
+	public interface Visitor {
+		void visit(long timestamp, float value, byte flags);
+	}
+
+	private long[] timestamps;
+	private float[] values;
+	private byte[] flags;
+	private int size;
+
+	/** If the timestamps are in ascending order */
+	private boolean sorted = true;
+
+	public MeasureSeries() {
+		this(INITIAL_CAPACITY);
+	}
+
+	public MeasureSeries(int capacity) {
+		capacity = Math.max(capacity, 1);
+
+		this.timestamps = new long[capacity];
+		this.values = new float[capacity];
+		this.flags = new byte[capacity];
+	}
+
+	/**
+	 * Add a measure at the end of the series.
+	 *
+	 * @param timestamp
+	 *            The epoch milliseconds of the measure.
+	 * @param value
+	 *            The measured value.
+	 * @param flag
+	 *            The measure flags.
+	 */
+	public void add(long timestamp, float value, byte flag) {
+		if (size == timestamps.length)
+			grow();
+
+		if (size > 0 && timestamp < timestamps[size - 1])
+			sorted = false;
+
+		timestamps[size] = timestamp;
+		values[size] = value;
+		flags[size] = flag;
+		size++;
+	}
+
+	/**
+	 * Add all the measures of other series.
+	 */
+	public void addAll(MeasureSeries series) {
+		for (int i = 0; i < series.size; i++)
+			add(series.timestamps[i], series.values[i], series.flags[i]);
+	}
+
+	private void grow() {
+		int capacity = timestamps.length * 2;
+
+		timestamps = Arrays.copyOf(timestamps, capacity);
+		values = Arrays.copyOf(values, capacity);
+		flags = Arrays.copyOf(flags, capacity);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public long getTimestamp(int index) {
+		checkIndex(index);
+
+		return timestamps[index];
+	}
+
+	public float getValue(int index) {
+		checkIndex(index);
+
+		return values[index];
+	}
+
+	public byte getFlags(int index) {
+		checkIndex(index);
+
+		return flags[index];
+	}
+
+	private void checkIndex(int index) {
+		if (index < 0 || index >= size)
+			throw new IndexOutOfBoundsException("Measure " + index + " of " + size);
+	}
+
+	/**
+	 * Get the time of the newest measure.
+	 *
+	 * @return The epoch milliseconds, or Long.MIN_VALUE if the series is empty.
+	 */
+	public long getNewest() {
+		if (size == 0)
+			return Long.MIN_VALUE;
+
+		if (sorted)
+			return timestamps[size - 1];
+
+		long newest = Long.MIN_VALUE;
+		for (int i = 0; i < size; i++)
+			newest = Math.max(newest, timestamps[i]);
+
+		return newest;
+	}
+
+	public boolean isSorted() {
+		return sorted;
+	}
+
+	/**
+	 * Sort the measures by time, keeping the order of the measures with the
+	 * same time.
+	 */
+	public void sort() {
+		if (sorted)
+			return;
+
+		if (isDescending())
+			reverse();
+		else {
+			long[] timestampsTmp = new long[size];
+			float[] valuesTmp = new float[size];
+			byte[] flagsTmp = new byte[size];
+
+			mergeSort(0, size, timestampsTmp, valuesTmp, flagsTmp);
+		}
+
+		sorted = true;
+	}
+
+	/**
+	 * The meters dump newest first, so a descending series is just reversed.
+	 */
+	private boolean isDescending() {
+		for (int i = 1; i < size; i++) {
+			if (timestamps[i] > timestamps[i - 1])
+				return false;
+		}
+
+		return true;
+	}
+
+	private void reverse() {
+		// reverse the runs of the same time first, so the whole reverse keeps their order
+		int start = 0;
+		for (int i = 1; i <= size; i++) {
+			if (i == size || timestamps[i] != timestamps[start]) {
+				reverse(start, i);
+				start = i;
+			}
+		}
+
+		reverse(0, size);
+	}
+
+	private void reverse(int from, int to) {
+		for (int i = from, j = to - 1; i < j; i++, j--)
+			swap(i, j);
+	}
+
+	private void swap(int i, int j) {
+		long timestamp = timestamps[i];
+		timestamps[i] = timestamps[j];
+		timestamps[j] = timestamp;
+
+		float value = values[i];
+		values[i] = values[j];
+		values[j] = value;
+
+		byte flag = flags[i];
+		flags[i] = flags[j];
+		flags[j] = flag;
+	}
+
+	private void mergeSort(int from, int to, long[] timestampsTmp, float[] valuesTmp, byte[] flagsTmp) {
+		if (to - from < 2)
+			return;
+
+		int middle = (from + to) >>> 1;
+		mergeSort(from, middle, timestampsTmp, valuesTmp, flagsTmp);
+		mergeSort(middle, to, timestampsTmp, valuesTmp, flagsTmp);
+
+		if (timestamps[middle - 1] <= timestamps[middle])
+			return;
+
+		System.arraycopy(timestamps, from, timestampsTmp, from, to - from);
+		System.arraycopy(values, from, valuesTmp, from, to - from);
+		System.arraycopy(flags, from, flagsTmp, from, to - from);
+
+		int left = from, right = middle;
+		for (int i = from; i < to; i++) {
+			int source = right >= to || (left < middle && timestampsTmp[left] <= timestampsTmp[right]) ? left++ : right++;
+
+			timestamps[i] = timestampsTmp[source];
+			values[i] = valuesTmp[source];
+			flags[i] = flagsTmp[source];
+		}
+	}
+
+	/**
+	 * Get the index of the first measure at or after a time. Sorts the
+	 * series if needed.
+	 *
+	 * @param timestamp
+	 *            The epoch milliseconds.
+	 * @return The index, size() if all the measures are before.
+	 */
+	public int indexOf(long timestamp) {
+		sort();
+
+		int low = 0, high = size;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+
+			if (timestamps[middle] < timestamp)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+
+		return low;
+	}
+
+	/**
+	 * Visit all the measures in the series order.
+	 */
+	public void forEach(Visitor visitor) {
+		for (int i = 0; i < size; i++)
+			visitor.visit(timestamps[i], values[i], flags[i]);
+	}
+
+	/**
+	 * Visit the measures of a time range in time order. Sorts the series if
+	 * needed.
+	 *
+	 * @param from
+	 *            The epoch milliseconds of the range start, included.
+	 * @param to
+	 *            The epoch milliseconds of the range end, excluded.
+	 */
+	public void forEach(long from, long to, Visitor visitor) {
+		for (int i = indexOf(from); i < size && timestamps[i] < to; i++)
+			visitor.visit(timestamps[i], values[i], flags[i]);
+	}
+
+	/**
+	 * Get a new series with the measures of a time range. Sorts the series
+	 * if needed.
+	 *
+	 * @param from
+	 *            The epoch milliseconds of the range start, included.
+	 * @param to
+	 *            The epoch milliseconds of the range end, excluded.
+	 */
+	public MeasureSeries range(long from, long to) {
+		int start = indexOf(from);
+		int end = Math.max(start, indexOf(to));
+
+		MeasureSeries range = new MeasureSeries(end - start);
+		System.arraycopy(timestamps, start, range.timestamps, 0, end - start);
+		System.arraycopy(values, start, range.values, 0, end - start);
+		System.arraycopy(flags, start, range.flags, 0, end - start);
+		range.size = end - start;
+
+		return range;
+	}
+
+	public void clear() {
+		size = 0;
+		sorted = true;
+	}
+}
@@ -0,0 +1,105 @@
+package com.thingtrack.parser;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Framing layer of the FreeStyle Optium Neo HID reports. Every report starts
+ * with the message type and the payload length; only the payload bytes
+ * actually transferred are scanned, the padding is ignored. The payload is
+ * fed to the "CMD OK" terminator state machine and either to the line
+ * assembler (single report responses) or to the result decoder (result dump),
+ * so lines and terminator split between reports are handled.
+ */
+public class ReportFramer {
+	/** Header size of a report: message type and payload length */
+	public static final int HEADER_SIZE = 2;
+
+	/** The end of the text responses */
+	private static final byte[] TERMINATOR = "CMD OK".getBytes(StandardCharsets.US_ASCII);
+
+	private final ByteSequenceMatcher terminator = new ByteSequenceMatcher(TERMINATOR);
+	private final LineAssembler lines = new LineAssembler();
+
+	private ResultRecordDecoder decoder;
+	private boolean terminated;
+	private boolean stopped;
+
+	/**
+	 * Prepare the framer for a new response.
+	 *
+	 * @param decoder
+	 *            The decoder of the result records, null to assemble the
+	 *            response lines.
+	 */
+	public void reset(ResultRecordDecoder decoder) {
+		this.decoder = decoder;
+		this.terminated = false;
+		this.stopped = false;
+
+		terminator.reset();
+		lines.reset();
+	}
+
+	/**
+	 * Get the payload length of a report.
+	 *
+	 * @param data
+	 *            The report data.
+	 * @param transferred
+	 *            The number of bytes transferred.
+	 * @return The number of payload bytes after the header.
+	 */
+	public static int getPayloadLength(ByteBuffer data, int transferred) {
+		if (transferred < HEADER_SIZE)
+			return 0;
+
+		return Math.min(data.get(1) & 0xff, transferred - HEADER_SIZE);
+	}
+
+	/**
+	 * Scan a report of the response.
+	 *
+	 * @param data
+	 *            The report data, its position is not changed.
+	 * @param transferred
+	 *            The number of bytes transferred.
+	 * @return false if the response is complete or the decoder asked to stop.
+	 */
+	public boolean frame(ByteBuffer data, int transferred) {
+		int end = HEADER_SIZE + getPayloadLength(data, transferred);
+
+		for (int i = HEADER_SIZE; i < end; i++) {
+			byte b = data.get(i);
+
+			if (terminator.match(b))
+				terminated = true;
+
+			if (decoder == null)
+				lines.append(b);
+		}
+
+		if (decoder != null && !decoder.decode(data, HEADER_SIZE, end - HEADER_SIZE))
+			stopped = true;
+
+		return !terminated && !stopped;
+	}
+
+	/**
+	 * Check if the "CMD OK" terminator was received.
+	 */
+	public boolean isTerminated() {
+		return terminated;
+	}
+
+	/**
+	 * Check if the decoder asked to stop reading.
+	 */
+	public boolean isStopped() {
+		return stopped;
+	}
+
+	public LineAssembler getLines() {
+		return lines;
+	}
+}
@@ -0,0 +1,216 @@
+package com.thingtrack.parser;
+
+import java.nio.ByteBuffer;
+import java.util.TimeZone;
+
+/**
+ * Streaming decoder of the result records of the FreeStyle Optium Neo. The
+ * records are comma separated ASCII lines:
+ *
+ * <pre>
+ * type,id,month,day,year,hour,minute,?,value,...
+ * </pre>
+ *
+ * The fields are decoded straight from the received bytes as they arrive, so
+ * a record can be split between reports. No Strings nor Dates are created:
+ * the date fields are turned into epoch milliseconds with integer arithmetic
+ * and the value into a float. Lines with less than 9 fields, or with empty or
+ * not numeric fields (headers, checksum, CMD OK) are skipped.
+ */
+public class ResultRecordDecoder {
+	/** Index of the fields used */
+	private static final int MONTH = 2;
+	private static final int DAY = 3;
+	private static final int YEAR = 4;
+	private static final int HOUR = 5;
+	private static final int MINUTE = 6;
+	private static final int VALUE = 8;
+
+	/** Number of fields of a result record */
+	private static final int MIN_FIELDS = VALUE + 1;
+
+	private static final long MILLIS_PER_MINUTE = 60 * 1000L;
+	private static final long MINUTES_PER_DAY = 24 * 60L;
+
+	/** Time zone of the meter clock */
+	private final TimeZone timeZone;
+
+	private final ResultRecordHandler handler;
+
+	/* state of the line being decoded */
+	private int field;
+	private boolean numeric;
+	private boolean fraction;
+	private int number;
+	private int digits;
+	private int fractionDigits;
+	private int month, day, year, hour, minute;
+	private float value;
+	private boolean stopped;
+
+	/**
+	 * Create a decoder using the default time zone for the meter clock, like
+	 * the dates parsed before.
+	 *
+	 * @param handler
+	 *            The handler of the decoded records.
+	 */
+	public ResultRecordDecoder(ResultRecordHandler handler) {
+		this(handler, TimeZone.getDefault());
+	}
+
+	public ResultRecordDecoder(ResultRecordHandler handler, TimeZone timeZone) {
+		this.handler = handler;
+		this.timeZone = timeZone;
+
+		reset();
+	}
+
+	private void reset() {
+		field = 0;
+		numeric = true;
+		fraction = false;
+		number = 0;
+		digits = 0;
+		fractionDigits = 0;
+		month = day = year = hour = minute = -1;
+		value = Float.NaN;
+	}
+
+	/**
+	 * Decode the bytes received.
+	 *
+	 * @param buffer
+	 *            The received data, its position is not changed.
+	 * @param offset
+	 *            The index of the first byte to decode.
+	 * @param length
+	 *            The number of bytes to decode.
+	 * @return false if the handler asked to stop reading.
+	 */
+	public boolean decode(ByteBuffer buffer, int offset, int length) {
+		int end = offset + length;
+
+		for (int i = offset; i < end && !stopped; i++)
+			decode(buffer.get(i));
+
+		return !stopped;
+	}
+
+	/**
+	 * Decode the bytes received.
+	 *
+	 * @param data
+	 *            The received data.
+	 * @param offset
+	 *            The index of the first byte to decode.
+	 * @param length
+	 *            The number of bytes to decode.
+	 * @return false if the handler asked to stop reading.
+	 */
+	public boolean decode(byte[] data, int offset, int length) {
+		int end = offset + length;
+
+		for (int i = offset; i < end && !stopped; i++)
+			decode(data[i]);
+
+		return !stopped;
+	}
+
+	/**
+	 * Check if the handler asked to stop reading.
+	 */
+	public boolean isStopped() {
+		return stopped;
+	}
+
+	private void decode(byte b) {
+		if (b >= '0' && b <= '9') {
+			number = number * 10 + (b - '0');
+			digits++;
+			if (fraction)
+				fractionDigits++;
+		}
+		else if (b == '.' && !fraction)
+			fraction = true;
+		else if (b == ',') {
+			endField();
+			field++;
+		}
+		else if (b == '\r' || b == '\n') {
+			endField();
+			endLine();
+		}
+		else
+			numeric = false;
+	}
+
+	private void endField() {
+		// an empty field is missing, not 0
+		if (numeric && digits > 0) {
+			switch (field) {
+				case MONTH:
+					month = number;
+					break;
+				case DAY:
+					day = number;
+					break;
+				case YEAR:
+					year = number;
+					break;
+				case HOUR:
+					hour = number;
+					break;
+				case MINUTE:
+					minute = number;
+					break;
+				case VALUE:
+					value = fraction ? (float) (number / Math.pow(10, fractionDigits)) : number;
+					break;
+			}
+		}
+
+		numeric = true;
+		fraction = false;
+		number = 0;
+		digits = 0;
+		fractionDigits = 0;
+	}
+
+	private void endLine() {
+		if (field + 1 >= MIN_FIELDS && month > 0 && day > 0 && year >= 0 &&
+			hour >= 0 && minute >= 0 && !Float.isNaN(value)) {
+			if (!handler.onRecord(toEpochMillis(year, month, day, hour, minute), value))
+				stopped = true;
+		}
+
+		reset();
+	}
+
+	/**
+	 * Convert a date of the meter clock to epoch milliseconds.
+	 */
+	private long toEpochMillis(int year, int month, int day, int hour, int minute) {
+		// the meter reports two digits years
+		if (year < 100)
+			year += 2000;
+
+		long local = ((daysFromCivil(year, month, day) * MINUTES_PER_DAY) + hour * 60 + minute) * MILLIS_PER_MINUTE;
+
+		return local - timeZone.getOffset(local - timeZone.getRawOffset());
+	}
+
+	/**
+	 * Days since 1970-01-01 of a date of the proleptic Gregorian calendar.
+	 */
+	public static long daysFromCivil(int year, int month, int day) {
+		year -= month <= 2 ? 1 : 0;
+
+		long era = (year >= 0 ? year : year - 399) / 400;
+		long yearOfEra = year - era * 400;
+		long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+		long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+
+		return era * 146097 + dayOfEra - 719468;
+	}
+}
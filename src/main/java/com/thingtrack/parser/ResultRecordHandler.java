@@ -0,0 +1,18 @@
+package com.thingtrack.parser;
+
+/**
+ * Receives the result records decoded from a meter while the history is
+ * still being transferred.
+ */
+public interface ResultRecordHandler {
+	/**
+	 * Called for every result record decoded.
+	 *
+	 * @param timestamp
+	 *            The epoch milliseconds of the measurement.
+	 * @param value
+	 *            The measured value as reported by the meter.
+	 * @return false to stop reading the results.
+	 */
+	boolean onRecord(long timestamp, float value);
+}
@@ -0,0 +1,51 @@
+package com.thingtrack.protocol;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A command frame encoded once in a read only direct buffer, ready for the
+ * control transfers. The buffer is shared by all sessions: the transports
+ * only read it with absolute gets and never move its position, so it is
+ * safe to send it from several threads at the same time.
+ */
+public final class CommandFrame {
+	/** Header size of a frame: message type and payload length */
+	private static final int HEADER_SIZE = 2;
+
+	private final String code;
+	private final ByteBuffer buffer;
+
+	public CommandFrame(String code, byte[] frame) {
+		if (frame.length < HEADER_SIZE)
+			throw new IllegalArgumentException("The frame of " + code + " has no header");
+
+		ByteBuffer buffer = ByteBuffer.allocateDirect(frame.length);
+		buffer.put(frame);
+		buffer.flip();
+
+		this.code = code;
+		this.buffer = buffer.asReadOnlyBuffer();
+	}
+
+	public String getCode() {
+		return code;
+	}
+
+	/**
+	 * The encoded frame, read only. Must not be repositioned by the callers.
+	 */
+	public ByteBuffer getBuffer() {
+		return buffer;
+	}
+
+	public int getLength() {
+		return buffer.limit();
+	}
+
+	/**
+	 * Handshake frames have no payload and are answered with one report.
+	 */
+	public boolean isHandshake() {
+		return buffer.get(1) == 0;
+	}
+}
@@ -0,0 +1,274 @@
+package com.thingtrack.query;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.thingtrack.daemon.ServiceStatus;
+import com.thingtrack.export.JsonStreamWriter;
+import com.thingtrack.metrics.SyncMetrics;
+import com.thingtrack.parser.MeasureSeries;
+
+/**
+ * Local HTTP endpoint of the query service, bound to the loopback address.
+ * The times are epoch milliseconds, from inclusive and to exclusive, and
+ * both are optional:
+ *
+ * <pre>
+ * GET /meters
+ * GET /readings?serial=X&amp;from=t1&amp;to=t2
+ * GET /rollups?serial=X&amp;period=day|week&amp;from=t1&amp;to=t2
+ * GET /health
+ * </pre>
+ *
+ * The responses are JSON, the readings are streamed while they are read
+ * from the log. The health status is 200 once the service is ready and 503
+ * while it starts or stops.
+ */
+public class QueryHttpServer {
+	private final static Logger logger = Logger.getLogger(QueryHttpServer.class);
+
+	private final QueryService service;
+	private final HttpServer server;
+
+	public QueryHttpServer(QueryService service, int port) throws IOException {
+		this.service = service;
+		this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+
+		server.createContext("/meters", new Handler(false) {
+			@Override
+			void handle(Query query, JsonStreamWriter json) throws IOException {
+				json.beginArray();
+				for (String serial : QueryHttpServer.this.service.getSerials())
+					json.value(serial);
+				json.endArray();
+			}
+		});
+
+		server.createContext("/readings", new Handler(true) {
+			@Override
+			void handle(Query query, final JsonStreamWriter json) throws IOException {
+				json.beginObject();
+				json.name("serlnum").value(query.serial);
+				json.name("measures").beginArray();
+
+				final IOException[] error = new IOException[1];
+				QueryHttpServer.this.service.scanReadings(query.serial, query.from, query.to, new MeasureSeries.Visitor() {
+					@Override
+					public void visit(long timestamp, float value, byte flags) {
+						if (error[0] != null)
+							return;
+
+						try {
+							json.beginObject();
+							json.name("date").date(timestamp);
+							json.name("value").value(value);
+							json.endObject();
+						} catch (IOException e) {
+							error[0] = e;
+						}
+					}
+				});
+
+				if (error[0] != null)
+					throw error[0];
+
+				json.endArray();
+				json.endObject();
+			}
+		});
+
+		server.createContext("/rollups", new Handler(true) {
+			@Override
+			void handle(Query query, JsonStreamWriter json) throws IOException {
+				List<Rollup> rollups = QueryHttpServer.this.service.getRollups(query.serial, query.period, query.from, query.to);
+
+				json.beginObject();
+				json.name("serlnum").value(query.serial);
+				json.name("period").value(query.period.name().toLowerCase());
+				json.name("rollups").beginArray();
+				for (Rollup rollup : rollups) {
+					json.beginObject();
+					json.name("start").date(rollup.getStart());
+					json.name("end").date(rollup.getEnd());
+					json.name("count").value(rollup.getCount());
+					json.name("mean").value(rollup.getMean());
+					json.name("min").value(rollup.getMin());
+					json.name("max").value(rollup.getMax());
+					json.name("timeInRange").value(rollup.getTimeInRange());
+					json.endObject();
+				}
+				json.endArray();
+				json.endObject();
+			}
+		});
+
+		// the default executor: one dispatcher thread is enough for local dashboards
+		server.setExecutor(null);
+	}
+
+	/**
+	 * Serve the lifecycle state of the service at /health.
+	 */
+	public void setStatus(final ServiceStatus status) {
+		server.createContext("/health", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					byte[] body = ("{\"state\":\"" + status.getState().name() + "\",\"sessions\":" +
+							SyncMetrics.getInstance().getActiveSessions() + "}").getBytes(StandardCharsets.US_ASCII);
+
+					exchange.getResponseHeaders().set("Content-Type", "application/json");
+					exchange.sendResponseHeaders(status.isReady() ? 200 : 503, body.length);
+					exchange.getResponseBody().write(body);
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+	}
+
+	public void start() {
+		server.start();
+
+		logger.info("Query endpoint listening at " + server.getAddress());
+	}
+
+	/**
+	 * Stop the endpoint, waiting up to a second for the running queries.
+	 */
+	public void stop() {
+		server.stop(1);
+	}
+
+	/**
+	 * Parameters of a query.
+	 */
+	private static class Query {
+		String serial;
+		long from;
+		long to;
+		RollupIndex.Period period;
+	}
+
+	/**
+	 * Handler of a GET query answering JSON. The parameters are checked
+	 * before the response starts, so a bad query gets a 400 status and a
+	 * query of an unknown meter a 404.
+	 */
+	private abstract class Handler implements HttpHandler {
+		private final boolean requiresSerial;
+
+		Handler(boolean requiresSerial) {
+			this.requiresSerial = requiresSerial;
+		}
+
+		abstract void handle(Query query, JsonStreamWriter json) throws IOException;
+
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			try {
+				if (!"GET".equals(exchange.getRequestMethod())) {
+					error(exchange, 405, "Only GET is supported");
+					return;
+				}
+
+				Query query;
+				try {
+					query = parseQuery(exchange.getRequestURI(), requiresSerial);
+				} catch (IllegalArgumentException e) {
+					error(exchange, 400, e.getMessage());
+					return;
+				}
+
+				if (requiresSerial && !service.isKnown(query.serial)) {
+					error(exchange, 404, "Unknown meter " + query.serial);
+					return;
+				}
+
+				exchange.getResponseHeaders().set("Content-Type", "application/json");
+				exchange.sendResponseHeaders(200, 0);
+
+				JsonStreamWriter json = new JsonStreamWriter(Channels.newChannel(exchange.getResponseBody()));
+				handle(query, json);
+				json.close();
+			} catch (IOException e) {
+				logger.error("Query " + exchange.getRequestURI() + " failed", e);
+			} finally {
+				exchange.close();
+			}
+		}
+
+		private void error(HttpExchange exchange, int status, String message) throws IOException {
+			byte[] body = message.getBytes(StandardCharsets.UTF_8);
+
+			exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+			exchange.sendResponseHeaders(status, body.length);
+			exchange.getResponseBody().write(body);
+		}
+	}
+
+	private static Query parseQuery(URI uri, boolean requiresSerial) throws IOException {
+		Map<String, String> parameters = new HashMap<String, String>();
+
+		String raw = uri.getRawQuery();
+		if (raw != null) {
+			for (String pair : raw.split("&")) {
+				int equals = pair.indexOf('=');
+				if (equals <= 0)
+					continue;
+
+				parameters.put(URLDecoder.decode(pair.substring(0, equals), "UTF-8"),
+						URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+			}
+		}
+
+		Query query = new Query();
+
+		query.serial = getParameter(parameters, "serial", null);
+		if (requiresSerial && query.serial == null)
+			throw new IllegalArgumentException("The serial parameter is required");
+
+		query.from = getTime(parameters, "from", Long.MIN_VALUE);
+		query.to = getTime(parameters, "to", Long.MAX_VALUE);
+
+		String period = getParameter(parameters, "period", "day");
+		try {
+			query.period = RollupIndex.Period.valueOf(period.toUpperCase());
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("Unknown period " + period);
+		}
+
+		return query;
+	}
+
+	private static String getParameter(Map<String, String> parameters, String name, String defaultValue) {
+		String value = parameters.get(name);
+
+		return value == null || value.isEmpty() ? defaultValue : value;
+	}
+
+	private static long getTime(Map<String, String> parameters, String name, long defaultValue) {
+		String value = getParameter(parameters, name, null);
+		if (value == null)
+			return defaultValue;
+
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("The " + name + " parameter must be epoch milliseconds");
+		}
+	}
+}
@@ -0,0 +1,157 @@
+package com.thingtrack.query;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+import org.apache.log4j.Logger;
+
+import com.thingtrack.parser.MeasureSeries;
+import com.thingtrack.store.MeasureLog;
+import com.thingtrack.store.MeasureLogStore;
+import com.thingtrack.store.SerialConflictException;
+
+/**
+ * Read side of the stored measures: the readings of a meter between two
+ * times, read from its measure log through the sparse index, and the daily
+ * and weekly rollups, kept up to date as the measures are appended. The
+ * rollups are saved next to the logs; if they are missing or behind the log
+ * (a crash between the append and the save) they are built again from the
+ * log, once. The queries never create the log of an unknown meter.
+ */
+public class QueryService {
+	private final static Logger logger = Logger.getLogger(QueryService.class);
+
+	/** Suffix of the rollup files */
+	private static final String SUFFIX = ".rollup";
+
+	private final MeasureLogStore logs;
+	private final File directory;
+	private final TimeZone timeZone;
+
+	private final Map<String, RollupIndex> rollups = new HashMap<String, RollupIndex>();
+
+	/**
+	 * @param logs
+	 *            The measure logs.
+	 * @param directory
+	 *            The directory of the rollups.
+	 * @param timeZone
+	 *            The time zone of the days.
+	 */
+	public QueryService(MeasureLogStore logs, File directory, TimeZone timeZone) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Unable to create the rollup directory " + directory);
+
+		this.logs = logs;
+		this.directory = directory;
+		this.timeZone = timeZone;
+	}
+
+	/**
+	 * Get the meters with stored measures.
+	 */
+	public List<String> getSerials() {
+		return logs.getSerials();
+	}
+
+	/**
+	 * Tell if a meter has stored measures.
+	 */
+	public boolean isKnown(String serial) throws IOException {
+		return logs.findLog(serial) != null;
+	}
+
+	/**
+	 * Get the readings of a meter between two times, in time order.
+	 *
+	 * @param from
+	 *            The first time, inclusive.
+	 * @param to
+	 *            The last time, exclusive.
+	 * @return The readings, none if the meter is unknown.
+	 */
+	public MeasureSeries getReadings(String serial, long from, long to) throws IOException {
+		MeasureLog log = logs.findLog(serial);
+
+		return log != null ? log.read(from, to) : new MeasureSeries();
+	}
+
+	/**
+	 * Visit the readings of a meter between two times, in time order,
+	 * without holding them in memory.
+	 */
+	public void scanReadings(String serial, long from, long to, MeasureSeries.Visitor visitor) throws IOException {
+		MeasureLog log = logs.findLog(serial);
+
+		if (log != null)
+			log.scan(from, to, visitor);
+	}
+
+	/**
+	 * Get the rollups of a meter between two times.
+	 *
+	 * @return The rollups, none if the meter is unknown.
+	 */
+	public List<Rollup> getRollups(String serial, RollupIndex.Period period, long from, long to) throws IOException {
+		MeasureLog log = logs.findLog(serial);
+		if (log == null)
+			return Collections.emptyList();
+
+		return getRollupIndex(serial, log).getRollups(period, from, to);
+	}
+
+	/**
+	 * Append measures to the log of a meter and add them to its rollups.
+	 *
+	 * @return The number of measures appended.
+	 * @throws SerialConflictException
+	 *             If the serial number shares its log with another meter.
+	 */
+	public int append(String serial, MeasureSeries series) throws IOException {
+		MeasureLog log = logs.getLog(serial);
+		RollupIndex index = getRollupIndex(serial, log);
+
+		int appended = log.append(series, index);
+		if (appended > 0)
+			index.save();
+
+		return appended;
+	}
+
+	/**
+	 * Get the rollups of a meter, loading or building them if needed. They
+	 * are named after the log directory of the meter.
+	 */
+	private synchronized RollupIndex getRollupIndex(String serial, MeasureLog log) throws IOException {
+		RollupIndex index = rollups.get(serial);
+		if (index != null)
+			return index;
+
+		index = new RollupIndex(new File(directory, log.getDirectory().getName() + SUFFIX), timeZone);
+
+		boolean loaded;
+		try {
+			loaded = index.load();
+		} catch (IOException e) {
+			logger.warn("Unable to load the rollups of " + serial + ", building them again", e);
+			loaded = false;
+		}
+
+		if (!loaded || index.getRecords() != log.size()) {
+			index.clear();
+			log.scan(Long.MIN_VALUE, Long.MAX_VALUE, index);
+			index.save();
+
+			logger.info("Built the rollups of " + serial + " from " + index.getRecords() + " records");
+		}
+
+		rollups.put(serial, index);
+
+		return index;
+	}
+}
@@ -0,0 +1,61 @@
+package com.thingtrack.query;
+
+/**
+ * Summary of the valid measures of a period: a day or a week.
+ */
+public class Rollup {
+	private final long start;
+	private final long end;
+	private final long count;
+	private final double sum;
+	private final float min;
+	private final float max;
+	private final long inRange;
+
+	public Rollup(long start, long end, long count, double sum, float min, float max, long inRange) {
+		this.start = start;
+		this.end = end;
+		this.count = count;
+		this.sum = sum;
+		this.min = min;
+		this.max = max;
+		this.inRange = inRange;
+	}
+
+	/**
+	 * Epoch milliseconds of the start of the period.
+	 */
+	public long getStart() {
+		return start;
+	}
+
+	/**
+	 * Epoch milliseconds of the end of the period, exclusive.
+	 */
+	public long getEnd() {
+		return end;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public float getMean() {
+		return count == 0 ? Float.NaN : (float) (sum / count);
+	}
+
+	public float getMin() {
+		return min;
+	}
+
+	public float getMax() {
+		return max;
+	}
+
+	/**
+	 * Fraction of the measures inside the target range.
+	 */
+	public float getTimeInRange() {
+		return count == 0 ? Float.NaN : (float) inRange / count;
+	}
+}
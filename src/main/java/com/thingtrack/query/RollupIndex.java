@@ -0,0 +1,296 @@
+package com.thingtrack.query;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TimeZone;
+
+import com.thingtrack.export.AtomicFile;
+import com.thingtrack.parser.MeasureSeries;
+
+/**
+ * Daily rollups of the measures of a meter: count, sum, min, max and the
+ * measures inside the target range of every local day, in columnar arrays
+ * sorted by day. The measures are added as they are stored, so the rollups
+ * are never computed again from the history; the weeks are merged from
+ * their seven days. The measures flagged as not valid are not counted.
+ */
+public class RollupIndex implements MeasureSeries.Visitor {
+	/** Target range of the time in range, mg/dL */
+	public static final float RANGE_LOW = 70;
+	public static final float RANGE_HIGH = 180;
+
+	public static final long MILLIS_PER_DAY = 24 * 60 * 60 * 1000L;
+
+	private static final int MAGIC = 0x474c4b52;
+	private static final int INITIAL_DAYS = 64;
+
+	/** Size of a saved day */
+	private static final int DAY_SIZE = 8 + 8 + 8 + 4 + 4 + 8;
+
+	/**
+	 * Rollup periods.
+	 */
+	public enum Period {
+		DAY(1), WEEK(7);
+
+		private final int days;
+
+		private Period(int days) {
+			this.days = days;
+		}
+	}
+
+	private final File file;
+
+	/** Local time zone of the days */
+	private final TimeZone timeZone;
+
+	private long[] days = new long[INITIAL_DAYS];
+	private long[] counts = new long[INITIAL_DAYS];
+	private double[] sums = new double[INITIAL_DAYS];
+	private float[] mins = new float[INITIAL_DAYS];
+	private float[] maxs = new float[INITIAL_DAYS];
+	private long[] inRanges = new long[INITIAL_DAYS];
+	private int size;
+
+	/** Number of records of the log added to the rollups */
+	private long records;
+
+	public RollupIndex(File file, TimeZone timeZone) {
+		this.file = file;
+		this.timeZone = timeZone;
+	}
+
+	/**
+	 * Number of records of the log added to the rollups.
+	 */
+	public synchronized long getRecords() {
+		return records;
+	}
+
+	@Override
+	public synchronized void visit(long timestamp, float value, byte flags) {
+		records++;
+
+		if ((flags & MeasureSeries.FLAG_ZERO) != 0)
+			return;
+
+		int i = bucket(toDay(timestamp));
+
+		counts[i]++;
+		sums[i] += value;
+		mins[i] = Math.min(mins[i], value);
+		maxs[i] = Math.max(maxs[i], value);
+		if (value >= RANGE_LOW && value <= RANGE_HIGH)
+			inRanges[i]++;
+	}
+
+	/**
+	 * Get the rollups of the periods with measures between two times.
+	 *
+	 * @param from
+	 *            The first time, inclusive.
+	 * @param to
+	 *            The last time, exclusive.
+	 */
+	public synchronized List<Rollup> getRollups(Period period, long from, long to) {
+		List<Rollup> rollups = new ArrayList<Rollup>();
+
+		// the unbounded ranges are not converted to days
+		long first = from == Long.MIN_VALUE ? Long.MIN_VALUE : periodStart(period, toDay(from));
+		long last = to == Long.MAX_VALUE ? Long.MAX_VALUE : toDay(to - 1);
+
+		int i = search(first);
+		if (i < 0)
+			i = -i - 1;
+
+		while (i < size && days[i] <= last) {
+			long start = periodStart(period, days[i]);
+			long end = start + period.days;
+
+			long count = 0;
+			double sum = 0;
+			float min = Float.POSITIVE_INFINITY;
+			float max = Float.NEGATIVE_INFINITY;
+			long inRange = 0;
+
+			for (; i < size && days[i] < end; i++) {
+				count += counts[i];
+				sum += sums[i];
+				min = Math.min(min, mins[i]);
+				max = Math.max(max, maxs[i]);
+				inRange += inRanges[i];
+			}
+
+			if (count > 0)
+				rollups.add(new Rollup(toMillis(start), toMillis(end), count, sum, min, max, inRange));
+		}
+
+		return rollups;
+	}
+
+	/**
+	 * Load the rollups saved before.
+	 *
+	 * @return false if there are no rollups saved.
+	 */
+	public synchronized boolean load() throws IOException {
+		if (!file.exists())
+			return false;
+
+		ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+		if (buffer.remaining() < 16 || buffer.getInt() != MAGIC)
+			throw new IOException("Not a rollup file: " + file);
+
+		int count = buffer.getInt();
+		if (buffer.remaining() != 8 + (long) count * DAY_SIZE)
+			throw new IOException("Corrupted rollup file: " + file);
+
+		records = buffer.getLong();
+		ensureCapacity(count);
+		size = count;
+
+		for (int i = 0; i < count; i++) {
+			days[i] = buffer.getLong();
+			counts[i] = buffer.getLong();
+			sums[i] = buffer.getDouble();
+			mins[i] = buffer.getFloat();
+			maxs[i] = buffer.getFloat();
+			inRanges[i] = buffer.getLong();
+		}
+
+		return true;
+	}
+
+	/**
+	 * Save the rollups, replacing the saved ones atomically.
+	 */
+	public synchronized void save() throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(16 + size * DAY_SIZE);
+		buffer.putInt(MAGIC);
+		buffer.putInt(size);
+		buffer.putLong(records);
+
+		for (int i = 0; i < size; i++) {
+			buffer.putLong(days[i]);
+			buffer.putLong(counts[i]);
+			buffer.putDouble(sums[i]);
+			buffer.putFloat(mins[i]);
+			buffer.putFloat(maxs[i]);
+			buffer.putLong(inRanges[i]);
+		}
+		buffer.flip();
+
+		AtomicFile rollupFile = new AtomicFile(file);
+		try {
+			FileChannel channel = rollupFile.open();
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+
+			rollupFile.commit();
+		} catch (IOException e) {
+			rollupFile.abort();
+			throw e;
+		}
+	}
+
+	/**
+	 * Drop all the rollups, before they are built again.
+	 */
+	public synchronized void clear() {
+		size = 0;
+		records = 0;
+	}
+
+	/**
+	 * Get the bucket of a day, adding it if needed.
+	 */
+	private int bucket(long day) {
+		// the measures come in time order, the last bucket is the usual one
+		if (size > 0 && days[size - 1] == day)
+			return size - 1;
+
+		int i = search(day);
+		if (i >= 0)
+			return i;
+
+		i = -i - 1;
+		ensureCapacity(size + 1);
+
+		System.arraycopy(days, i, days, i + 1, size - i);
+		System.arraycopy(counts, i, counts, i + 1, size - i);
+		System.arraycopy(sums, i, sums, i + 1, size - i);
+		System.arraycopy(mins, i, mins, i + 1, size - i);
+		System.arraycopy(maxs, i, maxs, i + 1, size - i);
+		System.arraycopy(inRanges, i, inRanges, i + 1, size - i);
+
+		days[i] = day;
+		counts[i] = 0;
+		sums[i] = 0;
+		mins[i] = Float.POSITIVE_INFINITY;
+		maxs[i] = Float.NEGATIVE_INFINITY;
+		inRanges[i] = 0;
+		size++;
+
+		return i;
+	}
+
+	private int search(long day) {
+		return Arrays.binarySearch(days, 0, size, day);
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity <= days.length)
+			return;
+
+		int length = Math.max(capacity, days.length * 2);
+
+		days = Arrays.copyOf(days, length);
+		counts = Arrays.copyOf(counts, length);
+		sums = Arrays.copyOf(sums, length);
+		mins = Arrays.copyOf(mins, length);
+		maxs = Arrays.copyOf(maxs, length);
+		inRanges = Arrays.copyOf(inRanges, length);
+	}
+
+	/**
+	 * Local day of a time, days since 1970-01-01.
+	 */
+	private long toDay(long timestamp) {
+		long local = timestamp + timeZone.getOffset(timestamp);
+		long day = local / MILLIS_PER_DAY;
+
+		return local % MILLIS_PER_DAY < 0 ? day - 1 : day;
+	}
+
+	/**
+	 * Epoch milliseconds of the start of a local day.
+	 */
+	private long toMillis(long day) {
+		long local = day * MILLIS_PER_DAY;
+
+		return local - timeZone.getOffset(local - timeZone.getRawOffset());
+	}
+
+	/**
+	 * First day of the period of a day, the weeks start on monday.
+	 */
+	private static long periodStart(Period period, long day) {
+		if (period.days == 1)
+			return day;
+
+		// 1970-01-01 was a thursday
+		long shifted = day + 3;
+		long week = shifted / 7;
+		if (shifted % 7 < 0)
+			week--;
+
+		return week * 7 - 3;
+	}
+}
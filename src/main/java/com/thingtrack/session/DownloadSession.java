@@ -0,0 +1,82 @@
+package com.thingtrack.session;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.thingtrack.delivery.Delivery;
+import com.thingtrack.delivery.DeliveryPipeline;
+import com.thingtrack.metrics.SyncMetrics;
+import com.thingtrack.parser.AbstractUsbParser;
+import com.thingtrack.transport.UsbTransport;
+
+/**
+ * One download session: runs a parser against one physical device and
+ * exports its values. Every session owns its own parser instance, so
+ * handles and parsed values are never shared between devices.
+ */
+public class DownloadSession implements Runnable {
+	private final static Logger logger = Logger.getLogger(DownloadSession.class);
+
+	private final String deviceKey;
+	private final UsbTransport transport;
+	private final AbstractUsbParser parser;
+	private final SessionScheduler scheduler;
+
+	DownloadSession(String deviceKey, UsbTransport transport, AbstractUsbParser parser, SessionScheduler scheduler) {
+		this.deviceKey = deviceKey;
+		this.transport = transport;
+		this.parser = parser;
+		this.scheduler = scheduler;
+	}
+
+	public String getDeviceKey() {
+		return deviceKey;
+	}
+
+	@Override
+	public void run() {
+		logger.info("Start session for device " + deviceKey);
+
+		SyncMetrics metrics = SyncMetrics.getInstance();
+		metrics.sessionStarted();
+
+		long start = System.nanoTime();
+		boolean failed = true;
+
+		try {
+			// the stores are opened in parallel with the hotplug registration
+			scheduler.awaitStartup();
+			
+			// export data from device, a failed download throws and exports nothing
+			parser.execute(transport);
+
+			// export json data to file
+			long exportStart = System.nanoTime();
+			parser.export("");
+			metrics.recordExport(System.nanoTime() - exportStart);
+			
+			// hand the new readings to the delivery stage, never waits for the sink
+			DeliveryPipeline delivery = scheduler.getDelivery();
+			if (delivery != null) {
+				Delivery readings = Delivery.of(parser.getValues());
+				if (readings != null)
+					delivery.submit(readings);
+			}
+
+			failed = false;
+		} catch (Exception e) {
+			logger.error("Session for device " + deviceKey + " failed", e);
+		} finally {
+			// the transport was created when the session was queued
+			transport.dispose();
+
+			long elapsed = System.nanoTime() - start;
+			metrics.sessionEnded(elapsed, failed);
+
+			scheduler.complete(this);
+
+			logger.info("End session for device " + deviceKey + " in " + TimeUnit.NANOSECONDS.toMillis(elapsed) + " ms");
+		}
+	}
+}
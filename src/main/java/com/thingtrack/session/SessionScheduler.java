@@ -0,0 +1,246 @@
+package com.thingtrack.session;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+import org.usb4java.BufferUtils;
+import org.usb4java.Device;
+import org.usb4java.LibUsb;
+
+import com.thingtrack.capture.RecordingTransport;
+import com.thingtrack.capture.TrafficRecorder;
+import com.thingtrack.delivery.DeliveryPipeline;
+import com.thingtrack.parser.AbstractUsbParser;
+import com.thingtrack.transport.UsbTransport;
+
+/**
+ * Schedules download sessions on a bounded pool of worker threads, so the
+ * libusb event handling thread only has to enqueue the connected devices.
+ * A physical device (bus and port path) has at most one session at a time.
+ */
+public class SessionScheduler {
+	private final static Logger logger = Logger.getLogger(SessionScheduler.class);
+
+	/** Max depth of the usb port path (from the USB 3.0 spec) */
+	private static final int MAX_PORT_DEPTH = 7;
+
+	private final ExecutorService executor;
+
+	/** Capture of the usb traffic of the sessions, null if not recorded */
+	private volatile TrafficRecorder recorder;
+
+	/** Delivery of the readings of the finished sessions, null if not delivered */
+	private volatile DeliveryPipeline delivery;
+
+	/** Initialization of the stores used by the sessions, null if done */
+	private volatile Future<?> startup;
+
+	/** Keys of the devices with a queued or running session */
+	private final Set<String> activeDevices =
+			Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	/**
+	 * Worker thread factory, names the session threads.
+	 */
+	private static class SessionThreadFactory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "glukose-session-" + count.incrementAndGet());
+			thread.setDaemon(true);
+
+			return thread;
+		}
+	}
+
+	public SessionScheduler(int poolSize) {
+		if (poolSize < 1)
+			throw new IllegalArgumentException("The session pool size must be greater than zero");
+
+		this.executor = new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>(), new SessionThreadFactory());
+	}
+
+	/**
+	 * Record the usb traffic of the sessions queued from now on.
+	 *
+	 * @param recorder
+	 *            The traffic capture, null to stop recording.
+	 */
+	public void setRecorder(TrafficRecorder recorder) {
+		this.recorder = recorder;
+	}
+
+	/**
+	 * Deliver the readings of the sessions finished from now on.
+	 *
+	 * @param delivery
+	 *            The delivery stage, null to stop delivering.
+	 */
+	public void setDelivery(DeliveryPipeline delivery) {
+		this.delivery = delivery;
+	}
+
+	DeliveryPipeline getDelivery() {
+		return delivery;
+	}
+
+	/**
+	 * Make the sessions wait for the initialization of the service, so the
+	 * hotplug events can be queued while the stores are still opened.
+	 *
+	 * @param startup
+	 *            The initialization task.
+	 */
+	public void setStartup(Future<?> startup) {
+		this.startup = startup;
+	}
+
+	/**
+	 * Wait for the initialization of the service, called by the sessions
+	 * before they start.
+	 *
+	 * @throws ExecutionException
+	 *             If the initialization failed.
+	 */
+	void awaitStartup() throws InterruptedException, ExecutionException {
+		Future<?> startup = this.startup;
+
+		if (startup != null)
+			startup.get();
+	}
+
+	/**
+	 * Build the key of the physical device: the bus number and the port path.
+	 *
+	 * @param device
+	 *            The usb device.
+	 * @return The device key.
+	 */
+	public static String getDeviceKey(Device device) {
+		StringBuilder key = new StringBuilder();
+		key.append(LibUsb.getBusNumber(device));
+
+		ByteBuffer ports = BufferUtils.allocateByteBuffer(MAX_PORT_DEPTH);
+		int depth = LibUsb.getPortNumbers(device, ports);
+
+		if (depth > 0) {
+			for (int i = 0; i < depth; i++)
+				key.append(i == 0 ? '-' : '.').append(ports.get(i) & 0xff);
+		}
+		else
+			key.append(':').append(LibUsb.getDeviceAddress(device));
+
+		return key.toString();
+	}
+
+	/**
+	 * Queue a download session for the device. Called from the hotplug
+	 * callback, so it never blocks.
+	 *
+	 * @param device
+	 *            The connected usb device.
+	 * @param parser
+	 *            A new parser instance for this session.
+	 * @return false if the device has already a queued or running session.
+	 */
+	public boolean submit(Device device, AbstractUsbParser parser) {
+		String deviceKey = getDeviceKey(device);
+
+		if (!activeDevices.add(deviceKey)) {
+			logger.info("Device " + deviceKey + " has already a download session, skip it");
+
+			return false;
+		}
+
+		// the transport keeps the device until the session ends
+		return schedule(deviceKey, parser.createTransport(device), parser);
+	}
+
+	/**
+	 * Queue a download session over a transport, like the simulated meters.
+	 *
+	 * @param deviceKey
+	 *            The unique key of the device.
+	 * @param transport
+	 *            The device transport, disposed when the session ends.
+	 * @param parser
+	 *            A new parser instance for this session.
+	 * @return false if the device has already a queued or running session.
+	 */
+	public boolean submit(String deviceKey, UsbTransport transport, AbstractUsbParser parser) {
+		if (!activeDevices.add(deviceKey)) {
+			logger.info("Device " + deviceKey + " has already a download session, skip it");
+			transport.dispose();
+
+			return false;
+		}
+
+		return schedule(deviceKey, transport, parser);
+	}
+
+	private boolean schedule(String deviceKey, UsbTransport transport, AbstractUsbParser parser) {
+		TrafficRecorder recorder = this.recorder;
+		if (recorder != null) {
+			RecordingTransport recording = new RecordingTransport(transport, recorder, recorder.nextSession());
+			logger.info("Recording device " + deviceKey + " as capture session " + recording.getSession());
+
+			transport = recording;
+		}
+
+		try {
+			executor.execute(new DownloadSession(deviceKey, transport, parser, this));
+		} catch (RejectedExecutionException e) {
+			transport.dispose();
+			activeDevices.remove(deviceKey);
+
+			logger.error("Session for device " + deviceKey + " rejected", e);
+
+			return false;
+		}
+
+		logger.info("Queued session for device " + deviceKey);
+
+		return true;
+	}
+
+	/**
+	 * Called by the session when ends.
+	 */
+	void complete(DownloadSession session) {
+		activeDevices.remove(session.getDeviceKey());
+	}
+
+	/**
+	 * Number of queued or running sessions.
+	 */
+	public int getActiveSessions() {
+		return activeDevices.size();
+	}
+
+	/**
+	 * Stop accepting sessions and wait for the queued and running ones.
+	 *
+	 * @param timeout
+	 *            The max time to wait in milliseconds.
+	 * @return true if all sessions were finished.
+	 */
+	public boolean shutdown(long timeout) throws InterruptedException {
+		executor.shutdown();
+
+		return executor.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+	}
+}
@@ -0,0 +1,131 @@
+package com.thingtrack.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Index of the measures already downloaded from a meter, to drop the rows
+ * seen before. A measure is identified by its time, to the minute like the
+ * meter clock, and its value, packed into a long. The keys are kept in a
+ * primitive hash set and saved in an append-only file of longs, loaded when
+ * the meter is first seen.
+ */
+public class DedupIndex {
+	private final static Logger logger = Logger.getLogger(DedupIndex.class);
+
+	private static final long MILLIS_PER_MINUTE = 60 * 1000L;
+
+	/** Keys read at once when loaded */
+	private static final int LOAD_KEYS = 8192;
+
+	private final File file;
+	private final LongHashSet keys;
+
+	/**
+	 * Load the index, the keys of a torn append are dropped.
+	 *
+	 * @param file
+	 *            The index file.
+	 */
+	public DedupIndex(File file) throws IOException {
+		this.file = file;
+
+		if (!file.exists()) {
+			keys = new LongHashSet();
+			return;
+		}
+
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			long length = channel.size();
+			long count = length / 8;
+
+			if (count > Integer.MAX_VALUE)
+				throw new IOException("Dedup index too large: " + file);
+
+			if (count * 8 != length) {
+				logger.warn("Recovered dedup index " + file + ": cut " + (length - count * 8) + " bytes");
+				channel.truncate(count * 8);
+			}
+
+			keys = new LongHashSet((int) count);
+
+			ByteBuffer buffer = ByteBuffer.allocateDirect(LOAD_KEYS * 8);
+			long offset = 0;
+			while (offset < count * 8) {
+				buffer.clear();
+				buffer.limit((int) Math.min(buffer.capacity(), count * 8 - offset));
+
+				while (buffer.hasRemaining()) {
+					if (channel.read(buffer, offset + buffer.position()) < 0)
+						throw new IOException("Unexpected end of the dedup index " + file);
+				}
+				buffer.flip();
+
+				while (buffer.hasRemaining())
+					keys.add(buffer.getLong());
+
+				offset += buffer.limit();
+			}
+		} finally {
+			channel.close();
+		}
+
+		logger.info("Loaded " + keys.size() + " dedup keys from " + file);
+	}
+
+	/**
+	 * Pack a measure into its dedup key: the minutes since the epoch in the
+	 * high 32 bits and the bits of the value in the low 32 bits.
+	 */
+	public static long key(long timestamp, float value) {
+		long minutes = timestamp / MILLIS_PER_MINUTE;
+		if (timestamp % MILLIS_PER_MINUTE < 0)
+			minutes--;
+
+		return (minutes << 32) | (Float.floatToIntBits(value) & 0xffffffffL);
+	}
+
+	public synchronized boolean contains(long key) {
+		return keys.contains(key);
+	}
+
+	public synchronized int size() {
+		return keys.size();
+	}
+
+	/**
+	 * Add the keys of the measures exported and save them.
+	 */
+	public synchronized void addAll(LongHashSet exported) throws IOException {
+		final ByteBuffer buffer = ByteBuffer.allocate(exported.size() * 8);
+
+		exported.forEach(new LongHashSet.Visitor() {
+			@Override
+			public void visit(long key) {
+				if (keys.add(key))
+					buffer.putLong(key);
+			}
+		});
+
+		buffer.flip();
+		if (!buffer.hasRemaining())
+			return;
+
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		try {
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+
+			channel.force(false);
+		} finally {
+			channel.close();
+		}
+	}
+}
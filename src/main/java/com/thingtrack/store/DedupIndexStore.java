@@ -0,0 +1,53 @@
+package com.thingtrack.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The dedup indexes of the meters, one file per serial number named after
+ * the log directory of the meter. An index is loaded the first time its
+ * meter is seen and kept in memory.
+ */
+public class DedupIndexStore {
+	/** Suffix of the index files */
+	private static final String SUFFIX = ".keys";
+
+	private final File directory;
+	private final MeasureLogStore logs;
+	private final Map<String, DedupIndex> indexes = new HashMap<String, DedupIndex>();
+
+	/**
+	 * @param directory
+	 *            The directory of the indexes.
+	 * @param logs
+	 *            The measure logs, that check the serial numbers.
+	 */
+	public DedupIndexStore(File directory, MeasureLogStore logs) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Unable to create the dedup directory " + directory);
+
+		this.directory = directory;
+		this.logs = logs;
+	}
+
+	/**
+	 * Get the index of a meter, loading it if needed.
+	 *
+	 * @param serial
+	 *            The meter serial number.
+	 * @throws SerialConflictException
+	 *             If the serial number shares its name with another meter.
+	 */
+	public synchronized DedupIndex getIndex(String serial) throws IOException {
+		DedupIndex index = indexes.get(serial);
+
+		if (index == null) {
+			index = new DedupIndex(new File(directory, logs.getDirectory(serial).getName() + SUFFIX));
+			indexes.put(serial, index);
+		}
+
+		return index;
+	}
+}
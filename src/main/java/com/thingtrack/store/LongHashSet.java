@@ -0,0 +1,149 @@
+package com.thingtrack.store;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash set of primitive longs with linear probing. The keys
+ * are stored in a single long array, never boxed: at the max load factor of
+ * 3/4 a key takes between 8 and 16 bytes, and a lookup reads a few adjacent
+ * slots. The key 0 marks the empty slots, so it is kept apart.
+ */
+public class LongHashSet {
+	private static final int MIN_CAPACITY = 16;
+
+	private long[] table;
+	private int mask;
+	private int size;
+	private boolean containsZero;
+
+	public LongHashSet() {
+		this(MIN_CAPACITY);
+	}
+
+	/**
+	 * @param expected
+	 *            The number of keys expected, to size the table once.
+	 */
+	public LongHashSet(int expected) {
+		int capacity = MIN_CAPACITY;
+		while (capacity * 3 / 4 < expected)
+			capacity <<= 1;
+
+		table = new long[capacity];
+		mask = capacity - 1;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public boolean contains(long key) {
+		if (key == 0)
+			return containsZero;
+
+		for (int i = slot(key); ; i = (i + 1) & mask) {
+			long current = table[i];
+
+			if (current == key)
+				return true;
+
+			if (current == 0)
+				return false;
+		}
+	}
+
+	/**
+	 * Add a key.
+	 *
+	 * @return false if the key was already in the set.
+	 */
+	public boolean add(long key) {
+		if (key == 0) {
+			if (containsZero)
+				return false;
+
+			containsZero = true;
+			size++;
+
+			return true;
+		}
+
+		for (int i = slot(key); ; i = (i + 1) & mask) {
+			long current = table[i];
+
+			if (current == key)
+				return false;
+
+			if (current == 0) {
+				table[i] = key;
+
+				if (++size > (mask + 1) * 3 / 4)
+					grow();
+
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Visit the keys, in no order.
+	 */
+	public void forEach(Visitor visitor) {
+		if (containsZero)
+			visitor.visit(0);
+
+		for (long key : table) {
+			if (key != 0)
+				visitor.visit(key);
+		}
+	}
+
+	/**
+	 * Visitor of the keys, never boxed.
+	 */
+	public interface Visitor {
+		void visit(long key);
+	}
+
+	public void clear() {
+		Arrays.fill(table, 0);
+		size = 0;
+		containsZero = false;
+	}
+
+	private void grow() {
+		long[] old = table;
+
+		table = new long[old.length * 2];
+		mask = table.length - 1;
+
+		for (long key : old) {
+			if (key == 0)
+				continue;
+
+			int i = slot(key);
+			while (table[i] != 0)
+				i = (i + 1) & mask;
+
+			table[i] = key;
+		}
+	}
+
+	/**
+	 * Home slot of a key: the packed keys have most of their entropy in few
+	 * bits, so they are mixed first (the murmur3 finalizer).
+	 */
+	private int slot(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+
+		return (int) key & mask;
+	}
+}
@@ -0,0 +1,762 @@
+package com.thingtrack.store;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+import com.thingtrack.parser.MeasureSeries;
+
+/**
+ * Append-only log of the measures of one meter, in ascending time order. The
+ * log is made of fixed size segment files named by the number of their first
+ * record; only the last one is written. Every record has a fixed size and a
+ * checksum:
+ *
+ * <pre>
+ * timestamp long, value float, flags byte, 3 reserved bytes, crc32 int
+ * </pre>
+ *
+ * Every segment has a sparse index with the timestamp of every
+ * INDEX_INTERVAL records, saved in a .idx file once the segment is full, so
+ * a scan from a time only reads the records from the nearest indexed one.
+ * When opened, the last segment is checked and cut at the first torn or
+ * corrupted record, so a crash in the middle of an append only loses that
+ * append.
+ * <p>
+ * The measures older than the newest record, like the older range of a
+ * download resumed after a partial one, are merged: the segments from the
+ * one holding the oldest of them are streamed and written again as .merge
+ * files, and a merge marker commits them before they replace the old
+ * segments. A crash
+ * before the marker leaves the old segments, after it the replacement is
+ * finished when the log is opened again. The records already in the log,
+ * same time and value, are never added twice.
+ */
+public class MeasureLog implements Closeable {
+	private final static Logger logger = Logger.getLogger(MeasureLog.class);
+
+	/** Size of a record */
+	static final int RECORD_SIZE = 20;
+
+	/** Records of a segment, 1.25 MB */
+	static final int SEGMENT_RECORDS = 64 * 1024;
+
+	/** Records between two entries of the sparse index */
+	static final int INDEX_INTERVAL = 128;
+
+	static final String SEGMENT_SUFFIX = ".log";
+	static final String INDEX_SUFFIX = ".idx";
+	static final String MERGE_SUFFIX = ".merge";
+
+	/** Marker of the merged segments ready to replace the old ones */
+	static final String MERGE_MARKER = "merge";
+
+	/** Records read at once by the scans */
+	private static final int SCAN_RECORDS = 4096;
+
+	private static final long MILLIS_PER_MINUTE = 60 * 1000L;
+
+	/**
+	 * A segment file and its sparse index.
+	 */
+	private static class Segment {
+		final long base;
+		final File file;
+
+		/** Timestamps of the records 0, INDEX_INTERVAL, 2 * INDEX_INTERVAL... */
+		long[] index = new long[8];
+		int indexSize;
+
+		int records;
+		long lastTimestamp = Long.MIN_VALUE;
+
+		Segment(File directory, long base) {
+			this.base = base;
+			this.file = new File(directory, String.format("%020d", base) + SEGMENT_SUFFIX);
+		}
+
+		File getIndexFile() {
+			return new File(file.getPath().substring(0, file.getPath().length() - SEGMENT_SUFFIX.length()) + INDEX_SUFFIX);
+		}
+
+		boolean isFull() {
+			return records == SEGMENT_RECORDS;
+		}
+
+		long getFirstTimestamp() {
+			return indexSize > 0 ? index[0] : Long.MIN_VALUE;
+		}
+
+		void indexRecord(long timestamp) {
+			if (records % INDEX_INTERVAL == 0) {
+				if (indexSize == index.length)
+					index = Arrays.copyOf(index, indexSize * 2);
+
+				index[indexSize++] = timestamp;
+			}
+
+			records++;
+			lastTimestamp = timestamp;
+		}
+
+		/**
+		 * Get the first record to read to find a time: the indexed record
+		 * before it.
+		 */
+		int seek(long timestamp) {
+			int low = 0;
+			int high = indexSize - 1;
+			int entry = 0;
+
+			while (low <= high) {
+				int mid = (low + high) >>> 1;
+
+				// the record equal to the time could be before an equal entry
+				if (index[mid] < timestamp) {
+					entry = mid;
+					low = mid + 1;
+				}
+				else
+					high = mid - 1;
+			}
+
+			return entry * INDEX_INTERVAL;
+		}
+	}
+
+	private final File directory;
+	private final List<Segment> segments = new ArrayList<Segment>();
+
+	/** Channel of the last segment */
+	private FileChannel channel;
+
+	private final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+	private final CRC32 crc = new CRC32();
+
+	/**
+	 * Open the log, recovering the tail of the last segment.
+	 *
+	 * @param directory
+	 *            The log directory.
+	 */
+	public MeasureLog(File directory) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Unable to create the log directory " + directory);
+
+		this.directory = directory;
+
+		load();
+
+		logger.info("Opened measure log " + directory + " with " + size() + " records in " + segments.size() + " segments");
+	}
+
+	/**
+	 * Load the segments, finishing or dropping an interrupted merge.
+	 */
+	private void load() throws IOException {
+		File marker = new File(directory, MERGE_MARKER);
+		if (marker.exists())
+			replaceMerged();
+		else
+			deleteMerged();
+
+		File[] files = directory.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File file) {
+				return file.getName().endsWith(SEGMENT_SUFFIX);
+			}
+		});
+
+		Arrays.sort(files);
+
+		for (int i = 0; i < files.length; i++) {
+			String name = files[i].getName();
+			Segment segment = new Segment(directory, Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+
+			if (i < files.length - 1 && loadIndex(segment))
+				segments.add(segment);
+			else
+				recover(segment, i == files.length - 1);
+		}
+
+		if (segments.isEmpty())
+			segments.add(new Segment(directory, 0));
+
+		openTail();
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Number of records of the log.
+	 */
+	public synchronized long size() {
+		Segment tail = tail();
+
+		return tail.base + tail.records;
+	}
+
+	/**
+	 * Time of the newest record, Long.MIN_VALUE if the log is empty.
+	 */
+	public synchronized long getLastTimestamp() {
+		for (int i = segments.size() - 1; i >= 0; i--) {
+			if (segments.get(i).records > 0)
+				return segments.get(i).lastTimestamp;
+		}
+
+		return Long.MIN_VALUE;
+	}
+
+	/**
+	 * Add measures to the log, in time order, and force them to disk. The
+	 * measures older than the newest record are merged, the ones already in
+	 * the log are skipped.
+	 *
+	 * @param series
+	 *            The measures to add, in any order. It is not changed.
+	 * @return The number of records added.
+	 */
+	public int append(MeasureSeries series) throws IOException {
+		return append(series, null);
+	}
+
+	/**
+	 * Add measures to the log, in time order, and force them to disk. The
+	 * measures older than the newest record are merged, the ones already in
+	 * the log are skipped.
+	 *
+	 * @param series
+	 *            The measures to add, in any order. It is not changed.
+	 * @param visitor
+	 *            Visits the records added once on disk, null for none.
+	 * @return The number of records added.
+	 */
+	public synchronized int append(MeasureSeries series, MeasureSeries.Visitor visitor) throws IOException {
+		if (!series.isSorted()) {
+			MeasureSeries sorted = new MeasureSeries(series.size());
+			sorted.addAll(series);
+			sorted.sort();
+
+			series = sorted;
+		}
+
+		if (series.isEmpty())
+			return 0;
+
+		// the usual download only has measures newer than the log
+		if (series.getTimestamp(0) <= getLastTimestamp())
+			return merge(series, visitor);
+
+		for (int i = 0; i < series.size(); i++) {
+			if (tail().isFull())
+				roll();
+
+			Segment tail = tail();
+
+			writeRecord(channel, tail.records, series.getTimestamp(i), series.getValue(i), series.getFlags(i));
+
+			tail.indexRecord(series.getTimestamp(i));
+		}
+
+		channel.force(false);
+
+		if (visitor != null)
+			series.forEach(visitor);
+
+		return series.size();
+	}
+
+	/**
+	 * Merge sorted measures with the records of the segments from the one
+	 * holding the oldest of them, writing those segments again. The old
+	 * records are streamed a buffer at a time, only the measures added are
+	 * held in memory.
+	 */
+	private int merge(MeasureSeries series, MeasureSeries.Visitor visitor) throws IOException {
+		// the records of the log in the minutes of the new measures
+		final LongHashSet minutes = new LongHashSet(series.size());
+		for (int i = 0; i < series.size(); i++)
+			minutes.add(minute(series.getTimestamp(i)));
+
+		final LongHashSet keys = new LongHashSet(series.size());
+		long from = minute(series.getTimestamp(0)) * MILLIS_PER_MINUTE;
+		long to = (minute(series.getTimestamp(series.size() - 1)) + 1) * MILLIS_PER_MINUTE;
+
+		scan(from, to, new MeasureSeries.Visitor() {
+			@Override
+			public void visit(long timestamp, float value, byte flags) {
+				if (minutes.contains(minute(timestamp)))
+					keys.add(DedupIndex.key(timestamp, value));
+			}
+		});
+
+		MeasureSeries added = new MeasureSeries();
+		for (int i = 0; i < series.size(); i++) {
+			if (keys.add(DedupIndex.key(series.getTimestamp(i), series.getValue(i))))
+				added.add(series.getTimestamp(i), series.getValue(i), series.getFlags(i));
+		}
+
+		if (added.isEmpty())
+			return 0;
+
+		int first = first(added.getTimestamp(0));
+		long base = segments.get(first).base;
+
+		// write the merged records as new segments, then commit them with the marker
+		Cursor old = new Cursor(first);
+		FileChannel merged = null;
+		int records = 0;
+		int j = 0;
+		try {
+			boolean hasOld = old.next();
+
+			while (hasOld || j < added.size()) {
+				boolean fromOld = j == added.size() || (hasOld && old.timestamp <= added.getTimestamp(j));
+
+				if (merged == null || records == SEGMENT_RECORDS) {
+					if (merged != null) {
+						merged.force(false);
+						merged.close();
+
+						base += records;
+						records = 0;
+					}
+
+					merged = FileChannel.open(getMergeFile(base).toPath(), StandardOpenOption.CREATE,
+							StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+				}
+
+				if (fromOld) {
+					writeRecord(merged, records, old.timestamp, old.value, old.flags);
+					hasOld = old.next();
+				}
+				else {
+					writeRecord(merged, records, added.getTimestamp(j), added.getValue(j), added.getFlags(j));
+					j++;
+				}
+
+				records++;
+			}
+
+			merged.force(false);
+		} finally {
+			old.close();
+
+			if (merged != null)
+				merged.close();
+		}
+
+		File marker = new File(directory, MERGE_MARKER);
+		File tmp = new File(marker.getPath() + ".tmp");
+		Files.write(tmp.toPath(), new byte[0]);
+		Files.move(tmp.toPath(), marker.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+		// replace the old segments and open the log again
+		channel.close();
+		channel = null;
+		segments.clear();
+
+		load();
+
+		logger.info("Merged " + added.size() + " older records in the measure log " + directory);
+
+		if (visitor != null)
+			added.forEach(visitor);
+
+		return added.size();
+	}
+
+	/**
+	 * The minutes since the epoch of a time, like the dedup keys.
+	 */
+	private static long minute(long timestamp) {
+		return DedupIndex.key(timestamp, 0) >> 32;
+	}
+
+	/**
+	 * Replace the old segments by the merged ones, after the merge marker
+	 * was written. Can be run again if interrupted.
+	 */
+	private void replaceMerged() throws IOException {
+		File[] files = listMerged();
+		Arrays.sort(files);
+
+		for (File file : files) {
+			long base = Long.parseLong(file.getName().substring(0, file.getName().length() - MERGE_SUFFIX.length()));
+			Segment segment = new Segment(directory, base);
+
+			// the index of the old segment never describes the new one
+			Files.deleteIfExists(segment.getIndexFile().toPath());
+			Files.move(file.toPath(), segment.file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+
+		Files.delete(new File(directory, MERGE_MARKER).toPath());
+	}
+
+	/**
+	 * Drop the segments of a merge interrupted before its marker.
+	 */
+	private void deleteMerged() throws IOException {
+		for (File file : listMerged())
+			Files.delete(file.toPath());
+	}
+
+	private File[] listMerged() {
+		return directory.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File file) {
+				return file.getName().endsWith(MERGE_SUFFIX);
+			}
+		});
+	}
+
+	private File getMergeFile(long base) {
+		return new File(directory, String.format("%020d", base) + MERGE_SUFFIX);
+	}
+
+	/**
+	 * Reads the records of the segments from one of them to the last, a
+	 * buffer at a time.
+	 */
+	private class Cursor implements Closeable {
+		private final ByteBuffer buffer = ByteBuffer.allocate(SCAN_RECORDS * RECORD_SIZE);
+		private int segment;
+		private int position;
+		private FileChannel segmentChannel;
+
+		/** The record read by the last call to next */
+		long timestamp;
+		float value;
+		byte flags;
+
+		Cursor(int segment) {
+			this.segment = segment;
+
+			buffer.limit(0);
+		}
+
+		/**
+		 * Read the next record.
+		 *
+		 * @return false after the last record.
+		 */
+		boolean next() throws IOException {
+			while (!buffer.hasRemaining()) {
+				if (segment == segments.size())
+					return false;
+
+				Segment current = segments.get(segment);
+				if (position == current.records) {
+					close();
+
+					segment++;
+					position = 0;
+					continue;
+				}
+
+				if (segmentChannel == null)
+					segmentChannel = current == tail() ? channel : FileChannel.open(current.file.toPath(), StandardOpenOption.READ);
+
+				int count = Math.min(SCAN_RECORDS, current.records - position);
+				buffer.clear();
+				buffer.limit(count * RECORD_SIZE);
+
+				long offset = (long) position * RECORD_SIZE;
+				while (buffer.hasRemaining()) {
+					int read = segmentChannel.read(buffer, offset + buffer.position());
+					if (read < 0)
+						throw new IOException("Unexpected end of the segment " + current.file);
+				}
+				buffer.flip();
+
+				position += count;
+			}
+
+			timestamp = buffer.getLong();
+			value = buffer.getFloat();
+			flags = buffer.get();
+			buffer.position(buffer.position() + 3 + 4);
+
+			return true;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (segmentChannel != null && segmentChannel != channel)
+				segmentChannel.close();
+
+			segmentChannel = null;
+		}
+	}
+
+	/**
+	 * Write a record with its checksum.
+	 *
+	 * @param index
+	 *            The index of the record in the segment.
+	 */
+	private void writeRecord(FileChannel segmentChannel, int index, long timestamp, float value, byte flags) throws IOException {
+		record.clear();
+		record.putLong(timestamp);
+		record.putFloat(value);
+		record.put(flags);
+		record.put((byte) 0).put((byte) 0).put((byte) 0);
+
+		crc.reset();
+		crc.update(record.array(), 0, RECORD_SIZE - 4);
+		record.putInt((int) crc.getValue());
+
+		record.flip();
+		long position = (long) index * RECORD_SIZE;
+		while (record.hasRemaining())
+			position += segmentChannel.write(record, position);
+	}
+
+	/**
+	 * Visit the records between two times, in time order.
+	 *
+	 * @param from
+	 *            The first time, inclusive.
+	 * @param to
+	 *            The last time, exclusive.
+	 */
+	public synchronized void scan(long from, long to, MeasureSeries.Visitor visitor) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(SCAN_RECORDS * RECORD_SIZE);
+
+		for (int i = first(from); i < segments.size(); i++) {
+			Segment segment = segments.get(i);
+			if (segment.records == 0 || segment.getFirstTimestamp() >= to)
+				break;
+
+			if (segment.lastTimestamp < from)
+				continue;
+
+			FileChannel segmentChannel = segment == tail() ? channel : FileChannel.open(segment.file.toPath(), StandardOpenOption.READ);
+			try {
+				int position = segment.seek(from);
+
+				while (position < segment.records) {
+					buffer.clear();
+					buffer.limit(Math.min(SCAN_RECORDS, segment.records - position) * RECORD_SIZE);
+
+					long offset = (long) position * RECORD_SIZE;
+					while (buffer.hasRemaining()) {
+						int read = segmentChannel.read(buffer, offset);
+						if (read < 0)
+							throw new IOException("Unexpected end of the segment " + segment.file);
+
+						offset += read;
+					}
+					buffer.flip();
+
+					while (buffer.hasRemaining()) {
+						long timestamp = buffer.getLong();
+						float value = buffer.getFloat();
+						byte flags = buffer.get();
+						buffer.position(buffer.position() + 3 + 4);
+
+						if (timestamp >= to)
+							return;
+
+						if (timestamp >= from)
+							visitor.visit(timestamp, value, flags);
+					}
+
+					position += SCAN_RECORDS;
+				}
+			} finally {
+				if (segmentChannel != channel)
+					segmentChannel.close();
+			}
+		}
+	}
+
+	/**
+	 * Read the records between two times.
+	 *
+	 * @param from
+	 *            The first time, inclusive.
+	 * @param to
+	 *            The last time, exclusive.
+	 */
+	public MeasureSeries read(long from, long to) throws IOException {
+		final MeasureSeries series = new MeasureSeries();
+
+		scan(from, to, new MeasureSeries.Visitor() {
+			@Override
+			public void visit(long timestamp, float value, byte flags) {
+				series.add(timestamp, value, flags);
+			}
+		});
+
+		return series;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (channel != null) {
+			channel.close();
+			channel = null;
+		}
+	}
+
+	private Segment tail() {
+		return segments.get(segments.size() - 1);
+	}
+
+	/**
+	 * Index of the segment holding a time: the last segment starting before it.
+	 */
+	private int first(long timestamp) {
+		int first = 0;
+
+		for (int i = 0; i < segments.size(); i++) {
+			if (segments.get(i).records > 0 && segments.get(i).getFirstTimestamp() < timestamp)
+				first = i;
+		}
+
+		return first;
+	}
+
+	/**
+	 * Seal the full last segment and start a new one.
+	 */
+	private void roll() throws IOException {
+		Segment full = tail();
+
+		channel.force(false);
+		channel.close();
+
+		saveIndex(full);
+
+		segments.add(new Segment(directory, full.base + full.records));
+
+		openTail();
+	}
+
+	private void openTail() throws IOException {
+		channel = FileChannel.open(tail().file.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+	}
+
+	/**
+	 * Load the index of a full segment.
+	 *
+	 * @return false if the index is missing or does not match the segment.
+	 */
+	private boolean loadIndex(Segment segment) throws IOException {
+		File indexFile = segment.getIndexFile();
+		long expected = (SEGMENT_RECORDS + INDEX_INTERVAL - 1) / INDEX_INTERVAL;
+
+		if (!indexFile.exists() || indexFile.length() != expected * 8 + 8 ||
+			segment.file.length() != (long) SEGMENT_RECORDS * RECORD_SIZE)
+			return false;
+
+		ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(indexFile.toPath()));
+
+		segment.index = new long[(int) expected];
+		segment.indexSize = (int) expected;
+		for (int i = 0; i < expected; i++)
+			segment.index[i] = buffer.getLong();
+
+		segment.records = SEGMENT_RECORDS;
+		segment.lastTimestamp = buffer.getLong();
+
+		return true;
+	}
+
+	private void saveIndex(Segment segment) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(segment.indexSize * 8 + 8);
+		for (int i = 0; i < segment.indexSize; i++)
+			buffer.putLong(segment.index[i]);
+		buffer.putLong(segment.lastTimestamp);
+
+		File indexFile = segment.getIndexFile();
+		File tmp = new File(indexFile.getPath() + ".tmp");
+
+		Files.write(tmp.toPath(), buffer.array());
+		Files.move(tmp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Rebuild the index of a segment reading its records. The segment is cut
+	 * at the first torn or corrupted record.
+	 *
+	 * @param last
+	 *            If it is the last segment of the log.
+	 */
+	private void recover(Segment segment, boolean last) throws IOException {
+		FileChannel segmentChannel = FileChannel.open(segment.file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			long length = segmentChannel.size();
+			long valid = 0;
+
+			ByteBuffer buffer = ByteBuffer.allocate(SCAN_RECORDS * RECORD_SIZE);
+			long offset = 0;
+
+			scan:
+			while (offset + RECORD_SIZE <= length && segment.records < SEGMENT_RECORDS) {
+				buffer.clear();
+				buffer.limit((int) Math.min(buffer.capacity(), (length - offset) / RECORD_SIZE * RECORD_SIZE));
+
+				while (buffer.hasRemaining()) {
+					if (segmentChannel.read(buffer, offset + buffer.position()) < 0)
+						break;
+				}
+				buffer.flip();
+
+				while (buffer.remaining() >= RECORD_SIZE) {
+					int start = buffer.position();
+
+					crc.reset();
+					crc.update(buffer.array(), start, RECORD_SIZE - 4);
+
+					long timestamp = buffer.getLong(start);
+					if (buffer.getInt(start + RECORD_SIZE - 4) != (int) crc.getValue() ||
+						(segment.records > 0 && timestamp < segment.lastTimestamp) ||
+						segment.records == SEGMENT_RECORDS)
+						break scan;
+
+					segment.indexRecord(timestamp);
+					valid += RECORD_SIZE;
+
+					buffer.position(start + RECORD_SIZE);
+				}
+
+				offset += buffer.limit();
+			}
+
+			if (valid < length) {
+				if (!last)
+					throw new IOException("Corrupted segment " + segment.file + " at byte " + valid);
+
+				logger.warn("Recovered measure log " + segment.file + ": cut " + (length - valid) + " bytes at byte " + valid);
+
+				segmentChannel.truncate(valid);
+				segmentChannel.force(false);
+			}
+		} finally {
+			segmentChannel.close();
+		}
+
+		segments.add(segment);
+
+		if (!last && segment.isFull())
+			saveIndex(segment);
+	}
+}
@@ -0,0 +1,207 @@
+package com.thingtrack.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The measure logs of the meters, one directory per serial number. The logs
+ * are opened the first time a meter is seen and kept open.
+ * <p>
+ * The directory names are the serial numbers made safe for a file name, so
+ * every directory keeps the serial number it belongs to in a serial file,
+ * and the serial numbers sharing a name with another one are rejected. The
+ * other stores of a meter name their files after its checked directory, see
+ * {@link #getDirectory(String)}.
+ */
+public class MeasureLogStore {
+	private final static Logger logger = Logger.getLogger(MeasureLogStore.class);
+
+	/** File of the serial number of a log directory */
+	static final String SERIAL_FILE = "serial";
+
+	private final File directory;
+	/** The open logs by directory name */
+	private final Map<String, MeasureLog> logs = new HashMap<String, MeasureLog>();
+
+	/** The serial numbers owning their directory */
+	private final Set<String> checked = new HashSet<String>();
+
+	/**
+	 * @param directory
+	 *            The directory of the logs.
+	 */
+	public MeasureLogStore(File directory) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Unable to create the log directory " + directory);
+
+		this.directory = directory;
+	}
+
+	/**
+	 * Get the log of a meter, opening it if needed.
+	 *
+	 * @param serial
+	 *            The meter serial number.
+	 * @throws SerialConflictException
+	 *             If the directory of the serial number belongs to another
+	 *             meter.
+	 */
+	public synchronized MeasureLog getLog(String serial) throws IOException {
+		return open(getDirectory(serial));
+	}
+
+	/**
+	 * Get the log of a meter only if it has one, without creating it.
+	 *
+	 * @param serial
+	 *            The meter serial number.
+	 * @return The log, null if the meter is unknown.
+	 */
+	public synchronized MeasureLog findLog(String serial) throws IOException {
+		File logDirectory = new File(directory, getFileName(serial));
+		if (!logDirectory.isDirectory())
+			return null;
+
+		// a log written before the serial file is known by its directory name
+		String owner = readSerial(logDirectory);
+		if (!serial.equals(owner != null ? owner : logDirectory.getName()))
+			return null;
+
+		return open(logDirectory);
+	}
+
+	/**
+	 * Get the directory of a meter, claimed by it the first time it is seen.
+	 *
+	 * @param serial
+	 *            The meter serial number.
+	 * @throws SerialConflictException
+	 *             If the directory belongs to another meter.
+	 */
+	public synchronized File getDirectory(String serial) throws IOException {
+		File logDirectory = new File(directory, getFileName(serial));
+		if (checked.contains(serial))
+			return logDirectory;
+
+		// the directory is claimed by the first meter seen, the logs
+		// written before the serial file by the meter seen again
+		String owner = readSerial(logDirectory);
+		if (owner == null)
+			writeSerial(logDirectory, serial);
+		else if (!owner.equals(serial))
+			throw new SerialConflictException("The log directory " + logDirectory + " of " + serial + " belongs to " + owner);
+
+		checked.add(serial);
+
+		return logDirectory;
+	}
+
+	/**
+	 * Open the log of a directory once.
+	 */
+	private MeasureLog open(File logDirectory) throws IOException {
+		MeasureLog log = logs.get(logDirectory.getName());
+
+		if (log == null) {
+			log = new MeasureLog(logDirectory);
+			logs.put(logDirectory.getName(), log);
+		}
+
+		return log;
+	}
+
+	/**
+	 * Get the meters with a log.
+	 */
+	public List<String> getSerials() {
+		List<String> serials = new ArrayList<String>();
+
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (!file.isDirectory())
+					continue;
+
+				try {
+					String serial = readSerial(file);
+					serials.add(serial != null ? serial : file.getName());
+				} catch (IOException e) {
+					logger.warn("Unable to read the serial number of the log " + file, e);
+				}
+			}
+		}
+
+		Collections.sort(serials);
+
+		return serials;
+	}
+
+	/**
+	 * Close all the logs.
+	 */
+	public synchronized void close() {
+		for (Map.Entry<String, MeasureLog> entry : logs.entrySet()) {
+			try {
+				entry.getValue().close();
+			} catch (IOException e) {
+				logger.error("Unable to close the log " + entry.getKey(), e);
+			}
+		}
+
+		logs.clear();
+		checked.clear();
+	}
+
+	/**
+	 * Get the serial number of a log directory, null if it has none.
+	 */
+	private static String readSerial(File logDirectory) throws IOException {
+		File file = new File(logDirectory, SERIAL_FILE);
+		if (!file.exists())
+			return null;
+
+		return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+	}
+
+	private static void writeSerial(File logDirectory, String serial) throws IOException {
+		if (!logDirectory.isDirectory() && !logDirectory.mkdirs())
+			throw new IOException("Unable to create the log directory " + logDirectory);
+
+		File file = new File(logDirectory, SERIAL_FILE);
+		File tmp = new File(file.getPath() + ".tmp");
+
+		Files.write(tmp.toPath(), serial.getBytes(StandardCharsets.UTF_8));
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * The serial numbers are used as file names, any character not
+	 * safe in a file name is replaced.
+	 */
+	public static String getFileName(String serial) {
+		StringBuilder name = new StringBuilder(serial.length());
+
+		for (int i = 0; i < serial.length(); i++) {
+			char c = serial.charAt(i);
+
+			if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '-' || c == '_')
+				name.append(c);
+			else
+				name.append('_');
+		}
+
+		return name.toString();
+	}
+}
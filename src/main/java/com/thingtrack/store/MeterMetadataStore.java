@@ -0,0 +1,155 @@
+package com.thingtrack.store;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Persistent cache of the meter metadata that almost never changes between
+ * downloads, keyed by serial number: the software version, the patient name
+ * and the patient id, with the time they were last read from the meter.
+ */
+public class MeterMetadataStore {
+	private final static Logger logger = Logger.getLogger(MeterMetadataStore.class);
+
+	/** The cache file name */
+	private static final String FILE_NAME = "meter-metadata.properties";
+
+	private static final String SWVER = ".swver";
+	private static final String PTNAME = ".ptname";
+	private static final String PTID = ".ptid";
+	private static final String REFRESHED = ".refreshed";
+
+	/**
+	 * The metadata of a meter.
+	 */
+	public static class Metadata {
+		private final String swver;
+		private final String ptname;
+		private final String ptid;
+		private final long refreshed;
+
+		public Metadata(String swver, String ptname, String ptid, long refreshed) {
+			this.swver = swver;
+			this.ptname = ptname;
+			this.ptid = ptid;
+			this.refreshed = refreshed;
+		}
+
+		public String getSwver() {
+			return swver;
+		}
+
+		public String getPtname() {
+			return ptname;
+		}
+
+		public String getPtid() {
+			return ptid;
+		}
+
+		/**
+		 * Epoch milliseconds of the last read from the meter.
+		 */
+		public long getRefreshed() {
+			return refreshed;
+		}
+	}
+
+	private final File file;
+	private final Properties entries = new Properties();
+
+	/**
+	 * Open the store, loading the metadata saved before.
+	 *
+	 * @param directory
+	 *            The state directory.
+	 */
+	public MeterMetadataStore(File directory) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Unable to create the state directory " + directory);
+
+		this.file = new File(directory, FILE_NAME);
+
+		if (file.exists()) {
+			InputStream in = new FileInputStream(file);
+			try {
+				entries.load(in);
+			} finally {
+				in.close();
+			}
+		}
+
+		logger.info("Loaded " + entries.size() / 4 + " meter metadata entries from " + file);
+	}
+
+	/**
+	 * Get the metadata of a meter if it was read recently enough.
+	 *
+	 * @param serial
+	 *            The meter serial number.
+	 * @param maxAge
+	 *            The max milliseconds since the last read from the meter.
+	 * @return The metadata, or null if the meter was never read or the
+	 *         metadata is older than the max age.
+	 */
+	public synchronized Metadata getFresh(String serial, long maxAge) {
+		String refreshed = entries.getProperty(serial + REFRESHED);
+		if (refreshed == null)
+			return null;
+
+		long time = Long.parseLong(refreshed);
+		if (System.currentTimeMillis() - time >= maxAge)
+			return null;
+
+		return new Metadata(entries.getProperty(serial + SWVER), entries.getProperty(serial + PTNAME),
+				entries.getProperty(serial + PTID), time);
+	}
+
+	/**
+	 * Save the metadata just read from a meter.
+	 *
+	 * @param serial
+	 *            The meter serial number.
+	 * @param swver
+	 *            The software version, null if the meter did not answer it,
+	 *            like the other fields.
+	 */
+	public synchronized void put(String serial, String swver, String ptname, String ptid) throws IOException {
+		set(serial + SWVER, swver);
+		set(serial + PTNAME, ptname);
+		set(serial + PTID, ptid);
+		entries.setProperty(serial + REFRESHED, Long.toString(System.currentTimeMillis()));
+
+		save();
+	}
+
+	private void set(String key, String value) {
+		if (value != null)
+			entries.setProperty(key, value);
+		else
+			entries.remove(key);
+	}
+
+	private void save() throws IOException {
+		// write a new file and replace the old one, never a half written cache
+		File tmp = new File(file.getPath() + ".tmp");
+
+		OutputStream out = new FileOutputStream(tmp);
+		try {
+			entries.store(out, "glukose-service meter metadata");
+		} finally {
+			out.close();
+		}
+
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+}
@@ -0,0 +1,15 @@
+package com.thingtrack.store;
+
+import java.io.IOException;
+
+/**
+ * A serial number sharing its directory name with the serial number of
+ * another meter, seen before: the stores reject it.
+ */
+public class SerialConflictException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	public SerialConflictException(String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,192 @@
+package com.thingtrack.store;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Persistent synchronization state of the meters, keyed by serial number.
+ * Stores the high-water mark of every meter: the time of the newest
+ * measurement already exported, so the next download only exports the
+ * newer ones.
+ * <p>
+ * A download cut before the end of the history leaves a checkpoint instead:
+ * the range of measures already exported by the partial downloads, so the
+ * next download skips them and goes on with the older ones, and the
+ * high-water mark only moves once a download is complete.
+ */
+public class SyncStateStore {
+	private final static Logger logger = Logger.getLogger(SyncStateStore.class);
+
+	/** The state file name */
+	private static final String FILE_NAME = "sync-state.properties";
+
+	/** Suffix of the checkpoint keys */
+	private static final String CHECKPOINT = ".checkpoint";
+
+	/**
+	 * The range of measures exported by the partial downloads of a meter.
+	 */
+	public static class Checkpoint {
+		private final long oldest;
+		private final long newest;
+
+		public Checkpoint(long oldest, long newest) {
+			this.oldest = oldest;
+			this.newest = newest;
+		}
+
+		/**
+		 * Epoch milliseconds of the last measure parsed before the download
+		 * was cut, the measures of the same minute may be missing.
+		 */
+		public long getOldest() {
+			return oldest;
+		}
+
+		/**
+		 * Epoch milliseconds of the newest measure exported.
+		 */
+		public long getNewest() {
+			return newest;
+		}
+
+		/**
+		 * Check if a measure was exported by the partial downloads.
+		 */
+		public boolean contains(long timestamp) {
+			return timestamp > oldest && timestamp <= newest;
+		}
+	}
+
+	private final File file;
+	private final Properties marks = new Properties();
+
+	/**
+	 * Open the store, loading the marks saved before.
+	 *
+	 * @param directory
+	 *            The state directory.
+	 */
+	public SyncStateStore(File directory) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Unable to create the state directory " + directory);
+
+		this.file = new File(directory, FILE_NAME);
+
+		if (file.exists()) {
+			InputStream in = new FileInputStream(file);
+			try {
+				marks.load(in);
+			} finally {
+				in.close();
+			}
+		}
+
+		logger.info("Loaded " + marks.size() + " meter sync marks and checkpoints from " + file);
+	}
+
+	/**
+	 * Get the time of the newest measurement exported from a meter.
+	 *
+	 * @param serial
+	 *            The meter serial number.
+	 * @return The epoch milliseconds of the measurement, or Long.MIN_VALUE if
+	 *         the meter was never exported.
+	 */
+	public synchronized long getHighWaterMark(String serial) {
+		String mark = marks.getProperty(serial);
+		if (mark == null)
+			return Long.MIN_VALUE;
+
+		return Long.parseLong(mark);
+	}
+
+	/**
+	 * Move forward the high-water mark of a meter and save the store.
+	 *
+	 * @param serial
+	 *            The meter serial number.
+	 * @param timestamp
+	 *            The epoch milliseconds of the newest measurement exported.
+	 */
+	public synchronized void setHighWaterMark(String serial, long timestamp) throws IOException {
+		if (timestamp <= getHighWaterMark(serial))
+			return;
+
+		marks.setProperty(serial, Long.toString(timestamp));
+
+		save();
+	}
+
+	/**
+	 * Get the checkpoint of the partial downloads of a meter.
+	 *
+	 * @param serial
+	 *            The meter serial number.
+	 * @return The checkpoint, null if the last download was complete.
+	 */
+	public synchronized Checkpoint getCheckpoint(String serial) {
+		String checkpoint = marks.getProperty(serial + CHECKPOINT);
+		if (checkpoint == null)
+			return null;
+
+		int comma = checkpoint.indexOf(',');
+
+		return new Checkpoint(Long.parseLong(checkpoint.substring(0, comma)), Long.parseLong(checkpoint.substring(comma + 1)));
+	}
+
+	/**
+	 * Save the checkpoint of a partial download.
+	 *
+	 * @param serial
+	 *            The meter serial number.
+	 */
+	public synchronized void setCheckpoint(String serial, Checkpoint checkpoint) throws IOException {
+		marks.setProperty(serial + CHECKPOINT, checkpoint.getOldest() + "," + checkpoint.getNewest());
+
+		save();
+	}
+
+	/**
+	 * Move forward the high-water mark of a meter after a complete download
+	 * and drop its checkpoint.
+	 *
+	 * @param serial
+	 *            The meter serial number.
+	 * @param timestamp
+	 *            The epoch milliseconds of the newest measurement exported.
+	 */
+	public synchronized void complete(String serial, long timestamp) throws IOException {
+		boolean checkpoint = marks.remove(serial + CHECKPOINT) != null;
+
+		if (timestamp > getHighWaterMark(serial))
+			marks.setProperty(serial, Long.toString(timestamp));
+		else if (!checkpoint)
+			return;
+
+		save();
+	}
+
+	private void save() throws IOException {
+		// write a new file and replace the old one, never a half written state
+		File tmp = new File(file.getPath() + ".tmp");
+
+		OutputStream out = new FileOutputStream(tmp);
+		try {
+			marks.store(out, "glukose-service meter sync marks");
+		} finally {
+			out.close();
+		}
+
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+}
@@ -0,0 +1,210 @@
+package com.thingtrack.transport;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.log4j.Logger;
+import org.usb4java.DeviceHandle;
+import org.usb4java.LibUsb;
+import org.usb4java.LibUsbException;
+import org.usb4java.Transfer;
+import org.usb4java.TransferCallback;
+
+/**
+ * Pipelined reader of an input endpoint. Keeps several asynchronous bulk
+ * transfers queued on the endpoint, so the device never waits for a new read
+ * between reports. The transfers are completed by the libusb event handling
+ * thread and handed to the session thread through a lock-free queue; every
+ * consumed transfer is submitted again on the next read.
+ */
+public class AsyncBulkReader implements ReportReader, TransferCallback {
+	private final static Logger logger = Logger.getLogger(AsyncBulkReader.class);
+
+	/** Max wait in milliseconds for the cancelled transfers on close */
+	private static final long CANCEL_TIMEOUT = 1000;
+
+	/** Max wait in microseconds of an event handling past the cancel timeout */
+	private static final long EVENT_TIMEOUT = 100000;
+
+	private final byte endpoint;
+	private final ReportBufferPool pool;
+	private final Transfer[] transfers;
+
+	/** Completed transfers not consumed yet, in completion order */
+	private final Queue<Transfer> completed = new ConcurrentLinkedQueue<Transfer>();
+
+	/** Transfers submitted and not completed yet */
+	private final AtomicInteger inFlight = new AtomicInteger();
+
+	/** The session thread waiting for completions */
+	private final Thread consumer;
+
+	/** The last transfer returned, submitted again on the next read */
+	private Transfer current;
+
+	private volatile boolean closed;
+
+	/**
+	 * Create the reader and submit the transfers.
+	 *
+	 * @param handle
+	 *            The device handle.
+	 * @param endpoint
+	 *            The input endpoint.
+	 * @param pool
+	 *            The pool of the report buffers.
+	 * @param depth
+	 *            The number of transfers queued at once.
+	 */
+	public AsyncBulkReader(DeviceHandle handle, byte endpoint, ReportBufferPool pool, int depth) {
+		this.endpoint = endpoint;
+		this.pool = pool;
+		this.transfers = new Transfer[depth];
+		this.consumer = Thread.currentThread();
+
+		try {
+			for (int i = 0; i < depth; i++) {
+				Report report = pool.acquire();
+
+				transfers[i] = LibUsb.allocTransfer();
+				LibUsb.fillBulkTransfer(transfers[i], handle, endpoint, report.getData(), this, report, 0);
+
+				submit(transfers[i]);
+			}
+		} catch (LibUsbException e) {
+			close();
+
+			throw e;
+		}
+	}
+
+	private void submit(Transfer transfer) {
+		((Report) transfer.userData()).clear();
+
+		inFlight.incrementAndGet();
+
+		int result = LibUsb.submitTransfer(transfer);
+		if (result != LibUsb.SUCCESS) {
+			inFlight.decrementAndGet();
+
+			throw new LibUsbException("Unable to submit transfer", result);
+		}
+	}
+
+	@Override
+	public void processTransfer(Transfer transfer) {
+		// called from the event handling thread
+		completed.offer(transfer);
+		inFlight.decrementAndGet();
+
+		LockSupport.unpark(consumer);
+	}
+
+	/**
+	 * Get the next report read from the device. The report returned by the
+	 * previous call is queued again on the endpoint, so it must not be used
+	 * after this call.
+	 *
+	 * @param timeout
+	 *            The max wait in milliseconds.
+	 * @return The read report.
+	 */
+	@Override
+	public Report read(long timeout) {
+		if (current != null) {
+			Transfer transfer = current;
+			current = null;
+
+			submit(transfer);
+		}
+
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+
+		Transfer transfer;
+		while ((transfer = completed.poll()) == null) {
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0)
+				throw new LibUsbException("Unable to read data", LibUsb.ERROR_TIMEOUT);
+
+			LockSupport.parkNanos(this, remaining);
+
+			// the interrupt flag is kept, the session is cancelled by its owner
+			if (Thread.currentThread().isInterrupted())
+				throw new LibUsbException("Unable to read data", LibUsb.ERROR_INTERRUPTED);
+		}
+
+		current = transfer;
+
+		int status = transfer.status();
+		if (status != LibUsb.TRANSFER_COMPLETED)
+			throw new LibUsbException("Unable to read data", getErrorCode(status));
+
+		Report report = (Report) transfer.userData();
+		report.setLength(transfer.actualLength());
+
+		return report;
+	}
+
+	private static int getErrorCode(int status) {
+		switch (status) {
+			case LibUsb.TRANSFER_TIMED_OUT:
+				return LibUsb.ERROR_TIMEOUT;
+			case LibUsb.TRANSFER_STALL:
+				return LibUsb.ERROR_PIPE;
+			case LibUsb.TRANSFER_NO_DEVICE:
+				return LibUsb.ERROR_NO_DEVICE;
+			case LibUsb.TRANSFER_OVERFLOW:
+				return LibUsb.ERROR_OVERFLOW;
+			default:
+				return LibUsb.ERROR_IO;
+		}
+	}
+
+	/**
+	 * Cancel the transfers still queued and free all of them. Waits until
+	 * libusb completed every cancelled transfer, so the device handle is
+	 * never closed under a transfer: past the cancel timeout the events are
+	 * handled here too, in case the event handling thread is gone.
+	 */
+	@Override
+	public void close() {
+		if (closed)
+			return;
+
+		closed = true;
+		current = null;
+
+		for (Transfer transfer : transfers) {
+			if (transfer != null)
+				LibUsb.cancelTransfer(transfer);
+		}
+
+		// the cancellations are completed by the event handling thread
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CANCEL_TIMEOUT);
+		while (inFlight.get() > 0 && System.nanoTime() < deadline)
+			LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(1));
+
+		if (inFlight.get() > 0) {
+			logger.warn(inFlight.get() + " transfers not cancelled yet on endpoint " + (endpoint & 0xff) + ", handle the events until they are");
+
+			// a cancelled transfer always completes, even if the device is gone
+			while (inFlight.get() > 0) {
+				int result = LibUsb.handleEventsTimeout(null, EVENT_TIMEOUT);
+				if (result != LibUsb.SUCCESS && result != LibUsb.ERROR_INTERRUPTED) {
+					logger.error("LibUsbException", new LibUsbException("Unable to handle events", result));
+					LockSupport.parkNanos(this, TimeUnit.MICROSECONDS.toNanos(EVENT_TIMEOUT));
+				}
+			}
+		}
+
+		for (Transfer transfer : transfers) {
+			if (transfer != null) {
+				pool.release((Report) transfer.userData());
+				LibUsb.freeTransfer(transfer);
+			}
+		}
+	}
+}
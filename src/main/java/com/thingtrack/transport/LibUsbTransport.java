@@ -0,0 +1,147 @@
+package com.thingtrack.transport;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+
+import org.apache.log4j.Logger;
+import org.usb4java.Device;
+import org.usb4java.DeviceHandle;
+import org.usb4java.LibUsb;
+import org.usb4java.LibUsbException;
+
+/**
+ * Transport of a real device over libusb.
+ */
+public class LibUsbTransport implements UsbTransport {
+	private final static Logger logger = Logger.getLogger(LibUsbTransport.class);
+
+	private final Device device;
+	private final int interfaceNumber;
+
+	private DeviceHandle handle;
+	private int attached;
+	private boolean disposed;
+
+	/**
+	 * Create the transport of a device, keeping a reference on it until the
+	 * transport is disposed.
+	 *
+	 * @param device
+	 *            The usb device.
+	 * @param interfaceNumber
+	 *            The interface to claim.
+	 */
+	public LibUsbTransport(Device device, int interfaceNumber) {
+		this.device = LibUsb.refDevice(device);
+		this.interfaceNumber = interfaceNumber;
+	}
+
+	@Override
+	public void open() {
+		int result;
+
+		// Open the device
+		handle = new DeviceHandle();
+		result = LibUsb.open(device, handle);
+
+		if (result != LibUsb.SUCCESS) {
+			handle = null;
+
+			logger.error("LibUsbException", new LibUsbException("Unable to open USB device", result));
+			throw new LibUsbException("Unable to open USB device", result);
+		}
+
+		try {
+			// Check if kernel driver is attached to the interface
+			attached = LibUsb.kernelDriverActive(handle, interfaceNumber);
+			if (attached < 0) {
+				logger.error("LibUsbException", new LibUsbException("Unable to check kernel driver active", attached));
+				throw new LibUsbException("Unable to check kernel driver active", attached);
+			}
+
+			// Detach kernel driver from the interface. This can fail if
+			// kernel is not attached to the device or operating system
+			// doesn't support this operation. These cases are ignored here.
+			result = LibUsb.detachKernelDriver(handle, interfaceNumber);
+			if (result != LibUsb.SUCCESS &&
+				result != LibUsb.ERROR_NOT_SUPPORTED &&
+				result != LibUsb.ERROR_NOT_FOUND) {
+				logger.error("LibUsbException", new LibUsbException("Unable to detach kernel driver", result));
+				throw new LibUsbException("Unable to detach kernel driver", result);
+			}
+
+			// Claim interface
+			result = LibUsb.claimInterface(handle, interfaceNumber);
+			if (result != LibUsb.SUCCESS) {
+				logger.error("LibUsbException", new LibUsbException("Unable to claim interface", result));
+				throw new LibUsbException("Unable to claim interface", result);
+			}
+		} catch (LibUsbException e) {
+			LibUsb.close(handle);
+			handle = null;
+
+			throw e;
+		}
+	}
+
+	@Override
+	public void close() {
+		if (handle == null)
+			return;
+
+		try {
+			// Release the interface
+			logger.info("Release interface");
+			int result = LibUsb.releaseInterface(handle, interfaceNumber);
+			if (result != LibUsb.SUCCESS) {
+				logger.error("LibUsbException", new LibUsbException("Unable to release interface", result));
+				throw new LibUsbException("Unable to release interface", result);
+			}
+
+			// Re-attach kernel driver if needed
+			if (attached == 1) {
+				result = LibUsb.attachKernelDriver(handle, interfaceNumber);
+				if (result != LibUsb.SUCCESS) {
+					logger.error("LibUsbException", new LibUsbException("Unable to re-attach kernel driver", result));
+					throw new LibUsbException("Unable to re-attach kernel driver", result);
+				}
+			}
+		} finally {
+			// Close the device handle, every session opens its own
+			LibUsb.close(handle);
+			handle = null;
+		}
+	}
+
+	@Override
+	public void dispose() {
+		if (disposed)
+			return;
+
+		disposed = true;
+
+		close();
+
+		LibUsb.unrefDevice(device);
+	}
+
+	@Override
+	public int controlTransfer(byte requestType, byte request, short value, short index, ByteBuffer data, long timeout) {
+		return LibUsb.controlTransfer(handle, requestType, request, value, index, data, timeout);
+	}
+
+	@Override
+	public int bulkTransfer(byte endpoint, ByteBuffer data, IntBuffer transferred, long timeout) {
+		return LibUsb.bulkTransfer(handle, endpoint, data, transferred, timeout);
+	}
+
+	@Override
+	public int clearHalt(byte endpoint) {
+		return LibUsb.clearHalt(handle, endpoint);
+	}
+
+	@Override
+	public ReportReader openReader(byte endpoint, ReportBufferPool pool, int depth) {
+		return new AsyncBulkReader(handle, endpoint, pool, depth);
+	}
+}
@@ -0,0 +1,19 @@
+package com.thingtrack.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The answers of a simulated meter to the text commands.
+ */
+public interface MeterTrace {
+	/**
+	 * Get the response of a command.
+	 *
+	 * @param command
+	 *            The command, like $serlnum?
+	 * @return The response text with its CRLF lines, or null if the meter
+	 *         does not answer the command.
+	 */
+	InputStream respond(String command) throws IOException;
+}
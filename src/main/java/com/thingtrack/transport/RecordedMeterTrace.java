@@ -0,0 +1,96 @@
+package com.thingtrack.transport;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Meter answers replayed from a recorded trace. The trace is a text file with
+ * the commands sent, prefixed by '&gt;', followed by the response lines,
+ * prefixed by '&lt;':
+ *
+ * <pre>
+ * # comment
+ * &gt; $serlnum?
+ * &lt; LAGV041S04629
+ * &lt; CKSM:00000351
+ * &lt; CMD OK
+ * </pre>
+ */
+public class RecordedMeterTrace implements MeterTrace {
+	private final Map<String, byte[]> responses = new HashMap<String, byte[]>();
+
+	/**
+	 * Add the response of a command.
+	 *
+	 * @param command
+	 *            The command, like $serlnum?
+	 * @param response
+	 *            The response text with its CRLF lines.
+	 */
+	public void put(String command, byte[] response) {
+		responses.put(command, response);
+	}
+
+	@Override
+	public InputStream respond(String command) {
+		byte[] response = responses.get(command);
+		if (response == null)
+			return null;
+
+		return new ByteArrayInputStream(response);
+	}
+
+	/**
+	 * Load a trace file.
+	 *
+	 * @param file
+	 *            The trace file.
+	 * @return The trace.
+	 */
+	public static RecordedMeterTrace load(File file) throws IOException {
+		RecordedMeterTrace trace = new RecordedMeterTrace();
+
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.US_ASCII));
+		try {
+			String command = null;
+			ByteArrayOutputStream response = new ByteArrayOutputStream();
+
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.startsWith(">")) {
+					if (command != null)
+						trace.put(command, response.toByteArray());
+
+					command = line.substring(1).trim();
+					response.reset();
+				}
+				else if (line.startsWith("<")) {
+					if (command == null)
+						throw new IOException("Response without command in " + file + ": " + line);
+
+					String text = line.substring(1);
+					if (text.startsWith(" "))
+						text = text.substring(1);
+
+					response.write((text + "\r\n").getBytes(StandardCharsets.US_ASCII));
+				}
+			}
+
+			if (command != null)
+				trace.put(command, response.toByteArray());
+		} finally {
+			reader.close();
+		}
+
+		return trace;
+	}
+}
@@ -0,0 +1,48 @@
+package com.thingtrack.transport;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+import org.usb4java.BufferUtils;
+
+/**
+ * A reusable report buffer: the direct buffer read from the device and the
+ * number of bytes actually transferred into it.
+ */
+public class Report {
+	private final ByteBuffer data;
+	private final IntBuffer transferred;
+
+	public Report(int size) {
+		this.data = BufferUtils.allocateByteBuffer(size).order(ByteOrder.LITTLE_ENDIAN);
+		this.transferred = BufferUtils.allocateIntBuffer();
+	}
+
+	public ByteBuffer getData() {
+		return data;
+	}
+
+	public IntBuffer getTransferred() {
+		return transferred;
+	}
+
+	/**
+	 * Get the number of bytes transferred from the device.
+	 */
+	public int getLength() {
+		return transferred.get(0);
+	}
+
+	public void setLength(int length) {
+		transferred.put(0, length);
+	}
+
+	/**
+	 * Prepare the report for a new read.
+	 */
+	public void clear() {
+		data.clear();
+		transferred.put(0, 0);
+	}
+}
@@ -0,0 +1,45 @@
+package com.thingtrack.transport;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Small pool of reusable report buffers shared by all the sessions, so the
+ * direct buffers are allocated once instead of on every read.
+ */
+public class ReportBufferPool {
+	private final int size;
+	private final BlockingQueue<Report> reports;
+
+	/**
+	 * @param size
+	 *            The size of every report.
+	 * @param capacity
+	 *            The max number of idle reports kept by the pool.
+	 */
+	public ReportBufferPool(int size, int capacity) {
+		this.size = size;
+		this.reports = new ArrayBlockingQueue<Report>(capacity);
+	}
+
+	/**
+	 * Take a report from the pool, or allocate one if the pool is empty.
+	 */
+	public Report acquire() {
+		Report report = reports.poll();
+		if (report == null)
+			report = new Report(size);
+
+		report.clear();
+
+		return report;
+	}
+
+	/**
+	 * Give back a report to the pool. The report is dropped if the pool is full.
+	 */
+	public void release(Report report) {
+		if (report != null)
+			reports.offer(report);
+	}
+}
@@ -0,0 +1,22 @@
+package com.thingtrack.transport;
+
+/**
+ * Reader of the reports of an input endpoint.
+ */
+public interface ReportReader {
+	/**
+	 * Get the next report read from the device. The report returned by the
+	 * previous call can be reused by the reader, so it must not be used after
+	 * this call.
+	 *
+	 * @param timeout
+	 *            The max wait in milliseconds.
+	 * @return The read report.
+	 */
+	Report read(long timeout);
+
+	/**
+	 * Stop reading and free the reports.
+	 */
+	void close();
+}
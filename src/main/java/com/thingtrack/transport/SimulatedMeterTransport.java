@@ -0,0 +1,229 @@
+package com.thingtrack.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.usb4java.LibUsb;
+import org.usb4java.LibUsbException;
+
+/**
+ * In process simulated FreeStyle Optium Neo. Answers the command frames sent
+ * by control transfers with the reports of a {@link MeterTrace}, so the
+ * parsers can run end to end without usb hardware. The latency of the
+ * responses, the startup time of the meter and the payload bytes per report
+ * are configurable.
+ */
+public class SimulatedMeterTransport implements UsbTransport {
+	/** Header size of a report: message type and payload length */
+	private static final int HEADER_SIZE = 2;
+
+	/** Message type of the text responses */
+	private static final byte TEXT_TYPE = 0x06;
+
+	/** Max payload bytes of a 64 bytes report */
+	public static final int MAX_FRAGMENT = 62;
+
+	private final MeterTrace trace;
+
+	/** Milliseconds from the command to the first report of its response */
+	private int latency;
+
+	/** Milliseconds from the open to the first command answered */
+	private int startupDelay;
+
+	/** Payload bytes of every report */
+	private int fragmentSize = MAX_FRAGMENT;
+
+	private final byte[] payload = new byte[MAX_FRAGMENT];
+
+	private boolean opened;
+	private long startedAt;
+
+	/** Pending response */
+	private InputStream response;
+	private byte responseType;
+	private boolean pending;
+	private long readyAt;
+
+	public SimulatedMeterTransport(MeterTrace trace) {
+		this.trace = trace;
+	}
+
+	public void setLatency(int latency) {
+		this.latency = latency;
+	}
+
+	public void setStartupDelay(int startupDelay) {
+		this.startupDelay = startupDelay;
+	}
+
+	public void setFragmentSize(int fragmentSize) {
+		if (fragmentSize < 1 || fragmentSize > MAX_FRAGMENT)
+			throw new IllegalArgumentException("The fragment size must be between 1 and " + MAX_FRAGMENT);
+
+		this.fragmentSize = fragmentSize;
+	}
+
+	@Override
+	public void open() {
+		opened = true;
+		startedAt = System.nanoTime() + startupDelay * 1000000L;
+	}
+
+	@Override
+	public void close() {
+		opened = false;
+		pending = false;
+		response = null;
+	}
+
+	@Override
+	public void dispose() {
+		close();
+	}
+
+	@Override
+	public int controlTransfer(byte requestType, byte request, short value, short index, ByteBuffer data, long timeout) {
+		if (!opened)
+			return LibUsb.ERROR_NO_DEVICE;
+
+		// a meter still starting up ignores the commands
+		if (System.nanoTime() < startedAt) {
+			pending = false;
+			response = null;
+
+			return data.limit();
+		}
+
+		int length = data.get(1) & 0xff;
+
+		if (length == 0) {
+			// handshake frames are answered with one empty report
+			response = null;
+			responseType = (byte) (data.get(0) | 0x30);
+		}
+		else {
+			byte[] frame = new byte[Math.min(length, data.limit() - HEADER_SIZE)];
+			for (int i = 0; i < frame.length; i++)
+				frame[i] = data.get(HEADER_SIZE + i);
+
+			String command = new String(frame, StandardCharsets.US_ASCII);
+			int end = command.indexOf('?');
+			if (end >= 0)
+				command = command.substring(0, end + 1);
+
+			try {
+				response = trace.respond(command);
+			} catch (IOException e) {
+				return LibUsb.ERROR_IO;
+			}
+
+			responseType = TEXT_TYPE;
+
+			// commands not known by the meter are never answered
+			if (response == null) {
+				pending = false;
+
+				return data.limit();
+			}
+		}
+
+		pending = true;
+		readyAt = System.nanoTime() + latency * 1000000L;
+
+		return data.limit();
+	}
+
+	@Override
+	public int bulkTransfer(byte endpoint, ByteBuffer data, IntBuffer transferred, long timeout) {
+		if (!opened)
+			return LibUsb.ERROR_NO_DEVICE;
+
+		try {
+			// nothing to answer, like the device the read times out
+			if (!pending) {
+				Thread.sleep(timeout);
+
+				return LibUsb.ERROR_TIMEOUT;
+			}
+
+			long wait = (readyAt - System.nanoTime()) / 1000000L;
+			if (wait > 0) {
+				Thread.sleep(Math.min(wait, timeout));
+
+				if (wait > timeout)
+					return LibUsb.ERROR_TIMEOUT;
+			}
+
+			int length = 0;
+			if (response != null) {
+				length = Math.max(response.read(payload, 0, fragmentSize), 0);
+
+				for (int i = 0; i < length; i++)
+					data.put(HEADER_SIZE + i, payload[i]);
+			}
+
+			// nothing more to answer
+			if (response != null && length == 0) {
+				pending = false;
+				response = null;
+
+				Thread.sleep(timeout);
+
+				return LibUsb.ERROR_TIMEOUT;
+			}
+
+			// the first report of a handshake is the whole response
+			if (response == null)
+				pending = false;
+
+			data.put(0, responseType);
+			data.put(1, (byte) length);
+			for (int i = HEADER_SIZE + length; i < data.limit(); i++)
+				data.put(i, (byte) 0);
+
+			transferred.put(0, data.limit());
+
+			return LibUsb.SUCCESS;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+
+			return LibUsb.ERROR_INTERRUPTED;
+		} catch (IOException e) {
+			return LibUsb.ERROR_IO;
+		}
+	}
+
+	@Override
+	public int clearHalt(byte endpoint) {
+		return opened ? LibUsb.SUCCESS : LibUsb.ERROR_NO_DEVICE;
+	}
+
+	@Override
+	public ReportReader openReader(final byte endpoint, final ReportBufferPool pool, int depth) {
+		// the simulated responses are already buffered, one read at a time is enough
+		return new ReportReader() {
+			private Report report = pool.acquire();
+
+			@Override
+			public Report read(long timeout) {
+				report.clear();
+
+				int result = bulkTransfer(endpoint, report.getData(), report.getTransferred(), timeout);
+				if (result != LibUsb.SUCCESS)
+					throw new LibUsbException("Unable to read data", result);
+
+				return report;
+			}
+
+			@Override
+			public void close() {
+				pool.release(report);
+				report = null;
+			}
+		};
+	}
+}
@@ -0,0 +1,188 @@
+package com.thingtrack.transport;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Calendar;
+
+/**
+ * Synthetic FreeStyle Optium Neo: answers the text commands with generated
+ * data. The result history is generated while it is read, newest first like
+ * the real meter, so histories of any size take no memory.
+ */
+public class SyntheticMeterTrace implements MeterTrace {
+	/** Time between two generated measures */
+	private static final long INTERVAL = 4 * 60 * 60 * 1000L;
+
+	/** Every how many measures the meter reports the value 1 (no valid measure) */
+	private static final int ZERO_PERIOD = 50;
+
+	private final String serial;
+	private final int historySize;
+	private final long clock;
+	private final long seed;
+
+	private String swver = "1.43";
+	private String ptname = "SIMULATED";
+	private String ptid = "simulated";
+
+	/**
+	 * @param serial
+	 *            The meter serial number.
+	 * @param historySize
+	 *            The number of measures in the meter.
+	 * @param clock
+	 *            The epoch milliseconds of the meter clock, the newest measure
+	 *            is one interval before.
+	 * @param seed
+	 *            The seed of the generated values.
+	 */
+	public SyntheticMeterTrace(String serial, int historySize, long clock, long seed) {
+		this.serial = serial;
+		this.historySize = historySize;
+		this.clock = clock;
+		this.seed = seed;
+	}
+
+	public void setSwver(String swver) {
+		this.swver = swver;
+	}
+
+	public void setPtname(String ptname) {
+		this.ptname = ptname;
+	}
+
+	public void setPtid(String ptid) {
+		this.ptid = ptid;
+	}
+
+	public String getSerial() {
+		return serial;
+	}
+
+	public int getHistorySize() {
+		return historySize;
+	}
+
+	/**
+	 * Get the time of a measure of the history, 0 is the newest.
+	 */
+	public long getTimestamp(int index) {
+		return clock - (index + 1) * INTERVAL;
+	}
+
+	/**
+	 * Get the value of a measure of the history, 0 is the newest.
+	 */
+	public int getValue(int index) {
+		if (index % ZERO_PERIOD == ZERO_PERIOD - 1)
+			return 1;
+
+		// a cheap deterministic hash of the seed and the index
+		long hash = (seed ^ (index * 0x9E3779B97F4A7C15L)) * 0xBF58476D1CE4E5B9L;
+		hash ^= hash >>> 31;
+
+		return 60 + (int) ((hash & 0x7fffffffL) % 200);
+	}
+
+	@Override
+	public InputStream respond(String command) {
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTimeInMillis(clock);
+
+		if ("$serlnum?".equals(command))
+			return text(serial);
+		else if ("$swver?".equals(command))
+			return text(swver);
+		else if ("$date?".equals(command))
+			return text((calendar.get(Calendar.MONTH) + 1) + "," + calendar.get(Calendar.DAY_OF_MONTH) + "," + (calendar.get(Calendar.YEAR) % 100));
+		else if ("$time?".equals(command))
+			return text(calendar.get(Calendar.HOUR_OF_DAY) + "," + calendar.get(Calendar.MINUTE));
+		else if ("$ptname?".equals(command))
+			return text(ptname);
+		else if ("$ptid?".equals(command))
+			return text(ptid);
+		else if ("$result?".equals(command))
+			return new HistoryStream();
+
+		return null;
+	}
+
+	private static InputStream text(String value) {
+		return new ByteArrayInputStream((value + "\r\nCKSM:00000000\r\nCMD OK\r\n").getBytes(StandardCharsets.US_ASCII));
+	}
+
+	/**
+	 * Generates the result records while they are read.
+	 */
+	private class HistoryStream extends InputStream {
+		private final Calendar calendar = Calendar.getInstance();
+
+		private byte[] line;
+		private int position;
+		private int index;
+		private boolean terminated;
+
+		@Override
+		public int read() {
+			while (line == null || position == line.length) {
+				if (terminated)
+					return -1;
+
+				nextLine();
+			}
+
+			return line[position++] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] data, int offset, int length) {
+			if (length == 0)
+				return 0;
+
+			int count = 0;
+			while (count < length) {
+				if (line == null || position == line.length) {
+					if (terminated)
+						break;
+
+					nextLine();
+					continue;
+				}
+
+				int n = Math.min(length - count, line.length - position);
+				System.arraycopy(line, position, data, offset + count, n);
+
+				position += n;
+				count += n;
+			}
+
+			return count == 0 ? -1 : count;
+		}
+
+		private void nextLine() {
+			String text;
+
+			if (index < historySize) {
+				calendar.setTimeInMillis(getTimestamp(index));
+
+				text = "7," + (historySize - index) + "," +
+						(calendar.get(Calendar.MONTH) + 1) + "," +
+						calendar.get(Calendar.DAY_OF_MONTH) + "," +
+						(calendar.get(Calendar.YEAR) % 100) + "," +
+						calendar.get(Calendar.HOUR_OF_DAY) + "," +
+						calendar.get(Calendar.MINUTE) + ",0," +
+						getValue(index) + ",0,0,0\r\n";
+
+				index++;
+			}
+			else {
+				text = "CKSM:00000000\r\nCMD OK\r\n";
+				terminated = true;
+			}
+
+			line = text.getBytes(StandardCharsets.US_ASCII);
+			position = 0;
+		}
+	}
+}
@@ -0,0 +1,60 @@
+package com.thingtrack.transport;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * The usb transfers used by the parsers. Implemented over libusb for the real
+ * devices and in process for the simulated meters.
+ */
+public interface UsbTransport {
+	/**
+	 * Open the device and claim its interface.
+	 */
+	void open();
+
+	/**
+	 * Release the interface and close the device. The transport can be opened
+	 * again.
+	 */
+	void close();
+
+	/**
+	 * Free the resources of the transport, called once when the session ends.
+	 */
+	void dispose();
+
+	/**
+	 * Execute a control transfer.
+	 *
+	 * @return The number of bytes transferred, or a negative libusb error code.
+	 */
+	int controlTransfer(byte requestType, byte request, short value, short index, ByteBuffer data, long timeout);
+
+	/**
+	 * Execute a bulk transfer.
+	 *
+	 * @return The libusb result code.
+	 */
+	int bulkTransfer(byte endpoint, ByteBuffer data, IntBuffer transferred, long timeout);
+
+	/**
+	 * Clear the halt/stall condition of an endpoint.
+	 *
+	 * @return The libusb result code.
+	 */
+	int clearHalt(byte endpoint);
+
+	/**
+	 * Open a reader of an input endpoint that keeps several reads queued at
+	 * once.
+	 *
+	 * @param endpoint
+	 *            The input endpoint.
+	 * @param pool
+	 *            The pool of the report buffers.
+	 * @param depth
+	 *            The number of reads queued at once.
+	 */
+	ReportReader openReader(byte endpoint, ReportBufferPool pool, int depth);
+}
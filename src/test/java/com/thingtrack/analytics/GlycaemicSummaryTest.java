@@ -0,0 +1,99 @@
+package com.thingtrack.analytics;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class GlycaemicSummaryTest {
+	private static final long MINUTE = 60 * 1000L;
+	private static final long CLOCK = 1500000000000L;
+
+	@Test
+	public void countsRanges() {
+		GlycaemicSummary summary = new GlycaemicSummary();
+
+		// the bounds of the target range are in range
+		float[] values = { 50, 69.9f, 70, 120, 180, 180.1f, 300, 100 };
+		for (int i = 0; i < values.length; i++)
+			summary.add(CLOCK + i * 10 * MINUTE, values[i]);
+
+		assertEquals(8, summary.getCount());
+		assertEquals(2 / 8.0, summary.getTimeBelowRange(), 1e-9);
+		assertEquals(4 / 8.0, summary.getTimeInRange(), 1e-9);
+		assertEquals(2 / 8.0, summary.getTimeAboveRange(), 1e-9);
+
+		assertEquals(50, summary.getMin(), 0);
+		assertEquals(300, summary.getMax(), 0);
+		assertEquals(1070 / 8.0, summary.getMean(), 1e-4);
+	}
+
+	@Test
+	public void groupsEvents() {
+		GlycaemicSummary summary = new GlycaemicSummary();
+
+		// newest first, like the meter sends them
+		long time = CLOCK + 24 * 60 * MINUTE;
+
+		// one hypo of three readings an hour apart
+		summary.add(time, 60);
+		summary.add(time -= 60 * MINUTE, 55);
+		summary.add(time -= 60 * MINUTE, 65);
+
+		// a new one more than two hours later
+		summary.add(time -= 150 * MINUTE, 50);
+
+		// and another one after a reading in range, however close
+		summary.add(time -= 10 * MINUTE, 100);
+		summary.add(time -= 10 * MINUTE, 60);
+
+		// two hypers, an in range reading between them
+		summary.add(time -= 60 * MINUTE, 260);
+		summary.add(time -= 30 * MINUTE, 200);
+		summary.add(time -= 30 * MINUTE, 300);
+
+		assertEquals(3, summary.getHypoEvents());
+		assertEquals(2, summary.getHyperEvents());
+	}
+
+	@Test
+	public void computesPercentiles() {
+		GlycaemicSummary summary = new GlycaemicSummary();
+
+		// 1 to 100 mg/dL, out of order
+		for (int i = 0; i < 100; i++)
+			summary.add(CLOCK + i * MINUTE, 1 + (i * 37) % 100);
+
+		assertEquals(10, summary.getQuantile(0.10), 0);
+		assertEquals(25, summary.getQuantile(0.25), 0);
+		assertEquals(50, summary.getQuantile(0.50), 0);
+		assertEquals(90, summary.getQuantile(0.90), 0);
+
+		// clamped to the readings
+		assertEquals(1, summary.getQuantile(0), 0);
+		assertEquals(100, summary.getQuantile(1), 0);
+
+		assertEquals(0, new GlycaemicSummary().getQuantile(0.5), 0);
+	}
+
+	@Test
+	public void countsLowReadings() {
+		GlycaemicSummary summary = new GlycaemicSummary();
+
+		summary.add(CLOCK, 100);
+		summary.addLow(CLOCK - 30 * MINUTE);
+		summary.add(CLOCK - 60 * MINUTE, 65);
+		summary.add(CLOCK - 90 * MINUTE, 200);
+
+		// below range and one hypo with the reading next to it
+		assertEquals(4, summary.getCount());
+		assertEquals(1, summary.getLowCount());
+		assertEquals(2 / 4.0, summary.getTimeBelowRange(), 1e-9);
+		assertEquals(1, summary.getHypoEvents());
+
+		// but no value in the statistics
+		assertEquals(365 / 3.0, summary.getMean(), 1e-4);
+		assertEquals(65, summary.getMin(), 0);
+		assertEquals(65, summary.getQuantile(0), 0);
+		assertEquals(100, summary.getQuantile(0.5), 0);
+	}
+}
@@ -0,0 +1,68 @@
+package com.thingtrack.capture;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TrafficRecorderTest {
+	private File file;
+
+	@Before
+	public void setUp() throws IOException {
+		file = File.createTempFile("capture", CaptureFormat.EXTENSION);
+		file.delete();
+	}
+
+	@After
+	public void tearDown() {
+		file.delete();
+	}
+
+	@Test
+	public void reopensAfterLastSession() throws IOException {
+		TrafficRecorder recorder = new TrafficRecorder(file, 16);
+		try {
+			recorder.nextSession();
+			int session = recorder.nextSession();
+			recorder.record(session, CaptureFormat.BULK, (byte) 0x81, 0, ByteBuffer.wrap(new byte[] { 1, 2 }), 2);
+		} finally {
+			recorder.close();
+		}
+
+		// the sessions of the reopened capture never reuse the old numbers
+		TrafficRecorder reopened = new TrafficRecorder(file, 16);
+		try {
+			assertEquals(1, reopened.getRecords());
+			assertEquals(3, reopened.nextSession());
+			reopened.record(3, CaptureFormat.CONTROL, (byte) 0, 0, null, 0);
+		} finally {
+			reopened.close();
+		}
+
+		final List<Integer> sessions = new ArrayList<Integer>();
+		CaptureReader reader = new CaptureReader(file);
+		try {
+			reader.forEach(new CaptureReader.Visitor() {
+				@Override
+				public boolean visit(CaptureReader.Record record) {
+					sessions.add(record.getSession());
+					return true;
+				}
+			});
+		} finally {
+			reader.close();
+		}
+
+		assertEquals(2, sessions.size());
+		assertEquals(2, (int) sessions.get(0));
+		assertEquals(3, (int) sessions.get(1));
+	}
+}
@@ -0,0 +1,224 @@
+package com.thingtrack.delivery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.thingtrack.parser.MeasureSeries;
+
+/**
+ * The delivery to the stub sink, while it accepts, fails and rejects the
+ * batches.
+ */
+public class DeliveryPipelineTest {
+	private static final long CLOCK = 1500000000000L;
+	private static final Pattern SERIAL = Pattern.compile("\"serlnum\":\"(\\w+)\"");
+
+	/**
+	 * Keeps the serials of the batches the stub accepted, in delivery order.
+	 */
+	private static class RecordingSink implements DeliverySink {
+		private final DeliverySink sink;
+		private final List<List<String>> batches = Collections.synchronizedList(new ArrayList<List<String>>());
+
+		RecordingSink(DeliverySink sink) {
+			this.sink = sink;
+		}
+
+		@Override
+		public void deliver(byte[] batch) throws IOException {
+			sink.deliver(batch);
+
+			List<String> serials = new ArrayList<String>();
+			Matcher matcher = SERIAL.matcher(new String(batch, StandardCharsets.UTF_8));
+			while (matcher.find())
+				serials.add(matcher.group(1));
+
+			batches.add(serials);
+		}
+
+		List<String> serials() {
+			List<String> serials = new ArrayList<String>();
+			synchronized (batches) {
+				for (List<String> batch : batches)
+					serials.addAll(batch);
+			}
+
+			return serials;
+		}
+	}
+
+	private File directory;
+	private StubSinkServer stub;
+	private RecordingSink sink;
+	private DeliverySpool spool;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = Files.createTempDirectory("delivery").toFile();
+
+		stub = new StubSinkServer(0);
+		stub.start();
+
+		sink = new RecordingSink(new HttpSink(new URL("http://127.0.0.1:" + stub.getPort() + "/batches"), 5000));
+		spool = new DeliverySpool(directory);
+	}
+
+	@After
+	public void tearDown() {
+		stub.stop();
+
+		delete(directory);
+	}
+
+	@Test
+	public void batchesSessions() throws Exception {
+		DeliveryPipeline pipeline = new DeliveryPipeline(sink, spool, 64, 1000, 2000);
+		pipeline.start();
+
+		// closed by size, before the window
+		assertTrue(pipeline.submit(delivery("SN1", 600)));
+		assertTrue(pipeline.submit(delivery("SN2", 600)));
+		await(sink, 2, 1000);
+
+		assertEquals(1, stub.getBatches());
+		assertEquals(1, sink.batches.size());
+		assertEquals(list("SN1", "SN2"), sink.batches.get(0));
+
+		// closed on exit
+		assertTrue(pipeline.submit(delivery("SN3", 10)));
+		pipeline.stop(5000);
+
+		assertEquals(2, stub.getBatches());
+		assertEquals(list("SN1", "SN2", "SN3"), sink.serials());
+		assertEquals(0, spool.size());
+	}
+
+	@Test
+	public void replaysSpoolInOrder() throws Exception {
+		DeliveryPipeline pipeline = new DeliveryPipeline(sink, spool, 64, 1000, 100);
+		pipeline.start();
+
+		// a sink down spills the batches to the spool
+		stub.setStatus(503);
+		for (int i = 1; i <= 5; i++) {
+			pipeline.submit(delivery("SN" + i, 10));
+			Thread.sleep(200);
+		}
+
+		assertEquals(0, stub.getBatches());
+		assertTrue(spool.size() > 0);
+		assertTrue(pipeline.getSpooled() > 0);
+
+		// once back, the spool goes first and the new sessions after it
+		stub.setStatus(200);
+		pipeline.submit(delivery("SN6", 10));
+		await(sink, 6, 20000);
+		pipeline.stop(5000);
+
+		assertEquals(list("SN1", "SN2", "SN3", "SN4", "SN5", "SN6"), sink.serials());
+		assertEquals(0, spool.size());
+	}
+
+	@Test
+	public void keepsOrderWhenQueueFull() throws Exception {
+		stub.setDelay(300);
+
+		DeliveryPipeline pipeline = new DeliveryPipeline(sink, spool, 2, 10, 50);
+		pipeline.start();
+
+		// a slow sink fills the queue
+		int spilled = 0;
+		for (int i = 1; i <= 8; i++) {
+			if (!pipeline.submit(delivery("SN" + i, 10)))
+				spilled++;
+		}
+		assertTrue(spilled > 0);
+
+		// the spool is replayed before the exit
+		stub.setDelay(0);
+		pipeline.stop(20000);
+
+		List<String> expected = new ArrayList<String>();
+		for (int i = 1; i <= 8; i++)
+			expected.add("SN" + i);
+
+		assertEquals(expected, sink.serials());
+		assertEquals(0, spool.size());
+	}
+
+	@Test
+	public void rejectsBatchForGood() throws Exception {
+		DeliveryPipeline pipeline = new DeliveryPipeline(sink, spool, 64, 1000, 100);
+		pipeline.start();
+
+		stub.setStatus(400);
+		pipeline.submit(delivery("SN1", 10));
+		awaitRejected(pipeline, 1, 5000);
+
+		// the next batches are not held up
+		stub.setStatus(200);
+		pipeline.submit(delivery("SN2", 10));
+		await(sink, 1, 5000);
+		pipeline.stop(5000);
+
+		assertEquals(list("SN2"), sink.serials());
+		assertEquals(0, spool.size());
+		assertEquals(1, spool.getRejectedDirectory().list().length);
+	}
+
+	private static Delivery delivery(String serial, int readings) {
+		MeasureSeries measures = new MeasureSeries(readings);
+		for (int i = 0; i < readings; i++)
+			measures.add(CLOCK + i * 60 * 1000L, 100 + i, (byte) 0);
+
+		return new Delivery(serial, "NAME", "ID", measures);
+	}
+
+	private static List<String> list(String... serials) {
+		List<String> list = new ArrayList<String>();
+		Collections.addAll(list, serials);
+
+		return list;
+	}
+
+	private static void await(RecordingSink sink, int sessions, long timeout) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+		while (sink.serials().size() < sessions && System.currentTimeMillis() < deadline)
+			Thread.sleep(50);
+
+		assertEquals(sessions, sink.serials().size());
+	}
+
+	private static void awaitRejected(DeliveryPipeline pipeline, long rejected, long timeout) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+		while (pipeline.getRejected() < rejected && System.currentTimeMillis() < deadline)
+			Thread.sleep(50);
+
+		assertEquals(rejected, pipeline.getRejected());
+	}
+
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (File child : files)
+				delete(child);
+		}
+
+		file.delete();
+	}
+}
@@ -0,0 +1,209 @@
+package com.thingtrack.export;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.thingtrack.parser.MeasureSeries;
+
+public class BinaryExportTest {
+	private static final long MINUTE = 60 * 1000L;
+	private static final long CLOCK = 1500000000000L;
+
+	private File file;
+
+	@Before
+	public void setUp() throws IOException {
+		file = File.createTempFile("export", BinaryExportFormat.EXTENSION);
+	}
+
+	@After
+	public void tearDown() {
+		file.delete();
+	}
+
+	@Test
+	public void roundTripsHeader() throws IOException {
+		write(CLOCK, new MeasureSeries(), "LAGV041S04629", null, "J\u00fcrgen", "");
+
+		BinaryExportReader reader = new BinaryExportReader(file);
+		try {
+			assertEquals(CLOCK, reader.getClock());
+			assertEquals(0, reader.size());
+			assertEquals("LAGV041S04629", reader.getSerlnum());
+			assertNull(reader.getSwver());
+			assertEquals("J\u00fcrgen", reader.getPtname());
+			assertEquals("", reader.getPtid());
+			assertEquals(0, reader.read().size());
+		} finally {
+			reader.close();
+		}
+	}
+
+	@Test
+	public void roundTripsBlocks() throws IOException {
+		// newest first like a download, over several blocks, with gaps
+		MeasureSeries series = new MeasureSeries();
+		long timestamp = CLOCK;
+		for (int i = 0; i < 2 * BinaryExportFormat.BLOCK_SIZE + 10; i++) {
+			timestamp -= (i % 7 == 0 ? 100000 : 1 + i % 300) * MINUTE;
+
+			if (i % 50 == 49)
+				series.add(timestamp, 0, MeasureSeries.FLAG_ZERO);
+			else
+				series.add(timestamp, 20 + i % 580, (byte) 0);
+		}
+
+		assertRoundTrip(series);
+	}
+
+	@Test
+	public void roundTripsMilliseconds() throws IOException {
+		// a block with a time off the minute is written in milliseconds
+		MeasureSeries series = new MeasureSeries();
+		series.add(CLOCK, 100, (byte) 0);
+		series.add(CLOCK + 1, 101, (byte) 0);
+		series.add(CLOCK - 3 * MINUTE - 7, 102, (byte) 0);
+		series.add(Long.MIN_VALUE / 4, 103, (byte) 0);
+
+		assertRoundTrip(series);
+	}
+
+	@Test
+	public void quantizesValues() throws IOException {
+		MeasureSeries series = new MeasureSeries();
+		series.add(CLOCK, 123.44f, (byte) 0);
+		series.add(CLOCK + MINUTE, 123.46f, (byte) 0);
+		series.add(CLOCK + 2 * MINUTE, -5, (byte) 0);
+		series.add(CLOCK + 3 * MINUTE, 10000, (byte) 0);
+
+		write(CLOCK, series, "SN", "1.43", "NAME", "ID");
+
+		MeasureSeries read = read();
+		assertEquals(123.4f, read.getValue(0), 0);
+		assertEquals(123.5f, read.getValue(1), 0);
+		assertEquals(0, read.getValue(2), 0);
+		assertEquals(BinaryExportFormat.MAX_VALUE, read.getValue(3), 0);
+	}
+
+	@Test
+	public void rejectsTruncatedExport() throws IOException {
+		write(CLOCK, series(2000), "SN", "1.43", "NAME", "ID");
+
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+		try {
+			channel.truncate(channel.size() - 100);
+		} finally {
+			channel.close();
+		}
+
+		assertCorrupted();
+	}
+
+	@Test
+	public void rejectsCorruptedBlockCount() throws IOException {
+		write(CLOCK, series(10), "SN", "1.43", "NAME", "ID");
+		assertEquals(10, ByteBuffer.wrap(Files.readAllBytes(file.toPath())).getInt((int) blockOffset()));
+
+		overwrite(blockOffset(), Integer.MAX_VALUE);
+		assertCorrupted();
+
+		overwrite(blockOffset(), -1);
+		assertCorrupted();
+	}
+
+	@Test
+	public void rejectsCorruptedDeltasSize() throws IOException {
+		write(CLOCK, series(10), "SN", "1.43", "NAME", "ID");
+
+		overwrite(blockOffset() + 16, -5);
+		assertCorrupted();
+
+		overwrite(blockOffset() + 16, 1 << 20);
+		assertCorrupted();
+	}
+
+	private static MeasureSeries series(int count) {
+		MeasureSeries series = new MeasureSeries(count);
+		for (int i = 0; i < count; i++)
+			series.add(CLOCK - i * MINUTE, 100 + i % 50, (byte) 0);
+
+		return series;
+	}
+
+	/**
+	 * Offset of the first block, after the header written by write.
+	 */
+	private static long blockOffset() {
+		return 4 + 2 + 8 + 4 + (2 + 2) + (2 + 4) + (2 + 4) + (2 + 2);
+	}
+
+	private void overwrite(long offset, int value) throws IOException {
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+		try {
+			ByteBuffer buffer = ByteBuffer.allocate(4);
+			buffer.putInt(value).flip();
+			channel.write(buffer, offset);
+		} finally {
+			channel.close();
+		}
+	}
+
+	private void assertCorrupted() throws IOException {
+		BinaryExportReader reader = new BinaryExportReader(file);
+		try {
+			reader.read();
+			fail("a corrupted export was read");
+		} catch (IOException e) {
+			assertTrue(e.getMessage().startsWith("Corrupted binary export"));
+		} finally {
+			reader.close();
+		}
+	}
+
+	private void assertRoundTrip(MeasureSeries series) throws IOException {
+		write(CLOCK, series, "SN", "1.43", "NAME", "ID");
+
+		MeasureSeries read = read();
+		assertEquals(series.size(), read.size());
+
+		for (int i = 0; i < series.size(); i++) {
+			assertEquals(series.getTimestamp(i), read.getTimestamp(i));
+			assertEquals(series.getValue(i), read.getValue(i), 0);
+			assertEquals(series.getFlags(i), read.getFlags(i));
+		}
+	}
+
+	private void write(long clock, MeasureSeries series, String serlnum, String swver, String ptname, String ptid) throws IOException {
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			BinaryExportWriter writer = new BinaryExportWriter(channel);
+			writer.writeHeader(clock, series.size(), serlnum, swver, ptname, ptid);
+			writer.writeMeasures(series);
+			writer.close();
+		} finally {
+			channel.close();
+		}
+	}
+
+	private MeasureSeries read() throws IOException {
+		BinaryExportReader reader = new BinaryExportReader(file);
+		try {
+			return reader.read();
+		} finally {
+			reader.close();
+		}
+	}
+}
@@ -0,0 +1,165 @@
+package com.thingtrack.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.file.Files;
+import java.util.Hashtable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.usb4java.LibUsb;
+
+import com.thingtrack.App;
+import com.thingtrack.store.MeterMetadataStore;
+import com.thingtrack.transport.SimulatedMeterTransport;
+import com.thingtrack.transport.SyntheticMeterTrace;
+
+/**
+ * The downloads that fail are reported and leave no export behind.
+ */
+public class FailedDownloadTest {
+	private File directory;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = Files.createTempDirectory("failed").toFile();
+
+		App.path = directory.getPath();
+		App.wait = 1000;
+		App.readyTimeout = 500;
+		App.adaptive = true;
+		App.depth = 0;
+		App.resync = false;
+		App.reportRetries = 1;
+		App.jsonExport = true;
+		App.binaryExport = true;
+		App.syncState = null;
+		App.measureLogs = null;
+		App.dedupIndexes = null;
+		App.metadataCache = null;
+		App.queryService = null;
+	}
+
+	@After
+	public void tearDown() {
+		File[] files = directory.listFiles();
+		for (File file : files)
+			file.delete();
+
+		directory.delete();
+	}
+
+	@Test
+	public void reportsDeadMeter() {
+		// a meter that never answers
+		SimulatedMeterTransport meter = new SimulatedMeterTransport(new SyntheticMeterTrace("SIM0003", 10, System.currentTimeMillis(), 1)) {
+			@Override
+			public int bulkTransfer(byte endpoint, ByteBuffer data, IntBuffer transferred, long timeout) {
+				return LibUsb.ERROR_NO_DEVICE;
+			}
+		};
+
+		AbstractUsbParser parser = new FreeStyleOptiumNeoParser();
+		try {
+			parser.execute(meter);
+			fail("the download of a dead meter succeeded");
+		} catch (IllegalStateException e) {
+			assertEquals(Boolean.FALSE, parser.getValues().get("complete"));
+		}
+	}
+
+	@Test
+	public void cancelsInterruptedDownload() throws Exception {
+		final CountDownLatch reading = new CountDownLatch(1);
+
+		// a meter that hangs while it sends the results
+		final SimulatedMeterTransport meter = new SimulatedMeterTransport(new SyntheticMeterTrace("SIM0003", 3000, System.currentTimeMillis(), 1)) {
+			private int reads;
+
+			@Override
+			public int bulkTransfer(byte endpoint, ByteBuffer data, IntBuffer transferred, long timeout) {
+				if (endpoint < 0 && ++reads > 100) {
+					reading.countDown();
+
+					try {
+						Thread.sleep(60000);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+
+						return LibUsb.ERROR_INTERRUPTED;
+					}
+				}
+
+				return super.bulkTransfer(endpoint, data, transferred, timeout);
+			}
+		};
+
+		final AbstractUsbParser parser = new FreeStyleOptiumNeoParser();
+		final Throwable[] failure = new Throwable[1];
+		final boolean[] interrupted = new boolean[1];
+
+		Thread session = new Thread() {
+			@Override
+			public void run() {
+				try {
+					parser.execute(meter);
+				} catch (IllegalStateException e) {
+					failure[0] = e.getCause();
+					interrupted[0] = isInterrupted();
+				}
+			}
+		};
+		session.start();
+
+		assertTrue(reading.await(10, TimeUnit.SECONDS));
+		session.interrupt();
+		session.join(10000);
+
+		// never taken as a cut response exported as partial
+		assertTrue(failure[0] instanceof InterruptedException);
+		assertTrue(interrupted[0]);
+		assertEquals(Boolean.FALSE, parser.getValues().get("complete"));
+	}
+
+	@Test
+	public void ignoresCacheFailure() throws IOException {
+		// a cache that can no longer be saved
+		File cache = new File(directory, "cache");
+		App.metadataCache = new MeterMetadataStore(cache);
+		App.metadataRefresh = 60 * 60 * 1000L;
+		cache.delete();
+
+		AbstractUsbParser parser = new FreeStyleOptiumNeoParser();
+		Hashtable<String, Object> values = parser.execute(new SimulatedMeterTransport(new SyntheticMeterTrace("SIM0003", 10, System.currentTimeMillis(), 1)));
+
+		assertEquals(Boolean.TRUE, values.get("complete"));
+		assertEquals("SIMULATED", values.get("ptname"));
+		assertEquals(10, ((MeasureSeries) values.get("measures")).size());
+	}
+
+	@Test
+	public void abortsExport() {
+		AbstractUsbParser parser = new FreeStyleOptiumNeoParser();
+		parser.execute(new SimulatedMeterTransport(new SyntheticMeterTrace("SIM0003", 10, System.currentTimeMillis(), 1)));
+
+		// the values the export needs are missing
+		parser.getValues().remove("measures");
+
+		try {
+			parser.export("");
+			fail("the export without measures succeeded");
+		} catch (RuntimeException e) {
+			// the temporary files are discarded
+			assertEquals(0, directory.listFiles().length);
+		}
+	}
+}
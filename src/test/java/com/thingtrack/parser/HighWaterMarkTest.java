@@ -0,0 +1,171 @@
+package com.thingtrack.parser;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Calendar;
+import java.util.Hashtable;
+import java.util.TimeZone;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.thingtrack.App;
+import com.thingtrack.query.QueryService;
+import com.thingtrack.store.DedupIndexStore;
+import com.thingtrack.store.MeasureLogStore;
+import com.thingtrack.store.SyncStateStore;
+import com.thingtrack.transport.MeterTrace;
+import com.thingtrack.transport.SimulatedMeterTransport;
+import com.thingtrack.transport.SyntheticMeterTrace;
+
+/**
+ * The results recorded after a download with times not after its newest one.
+ */
+public class HighWaterMarkTest {
+	private static final String SERIAL = "SIM0002";
+	private static final int HISTORY = 100;
+	private static final long INTERVAL = 4 * 60 * 60 * 1000L;
+
+	/**
+	 * A synthetic history with newer records on top.
+	 */
+	private static class RecordedTrace implements MeterTrace {
+		private final SyntheticMeterTrace trace;
+		private final StringBuilder records = new StringBuilder();
+		private int recno = HISTORY;
+
+		RecordedTrace(SyntheticMeterTrace trace) {
+			this.trace = trace;
+		}
+
+		/**
+		 * Record a measure, newer than the ones recorded before.
+		 */
+		void record(long timestamp, int value) {
+			Calendar calendar = Calendar.getInstance();
+			calendar.setTimeInMillis(timestamp);
+
+			records.insert(0, "7," + (++recno) + "," +
+					(calendar.get(Calendar.MONTH) + 1) + "," +
+					calendar.get(Calendar.DAY_OF_MONTH) + "," +
+					(calendar.get(Calendar.YEAR) % 100) + "," +
+					calendar.get(Calendar.HOUR_OF_DAY) + "," +
+					calendar.get(Calendar.MINUTE) + ",0," +
+					value + ",0,0,0\r\n");
+		}
+
+		@Override
+		public InputStream respond(String command) {
+			InputStream response = trace.respond(command);
+			if (!"$result?".equals(command))
+				return response;
+
+			return new SequenceInputStream(new ByteArrayInputStream(records.toString().getBytes(StandardCharsets.US_ASCII)), response);
+		}
+	}
+
+	private File directory;
+	private long clock;
+	private RecordedTrace trace;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = Files.createTempDirectory("high-water-mark").toFile();
+		clock = System.currentTimeMillis();
+		trace = new RecordedTrace(new SyntheticMeterTrace(SERIAL, HISTORY, clock, 7));
+
+		App.path = directory.getPath();
+		App.wait = 1000;
+		App.readyTimeout = 5000;
+		App.adaptive = true;
+		App.depth = 0;
+		App.resync = false;
+		App.reportRetries = 3;
+		App.jsonExport = true;
+		App.binaryExport = false;
+		App.metadataCache = null;
+
+		File state = new File(directory, ".glukose");
+		App.syncState = new SyncStateStore(state);
+		App.measureLogs = new MeasureLogStore(new File(state, "log"));
+		App.dedupIndexes = new DedupIndexStore(new File(state, "dedup"), App.measureLogs);
+		App.queryService = new QueryService(App.measureLogs, new File(state, "rollup"), TimeZone.getDefault());
+	}
+
+	@After
+	public void tearDown() {
+		App.measureLogs.close();
+		App.measureLogs = null;
+		App.queryService = null;
+		App.dedupIndexes = null;
+		App.syncState = null;
+
+		delete(directory);
+	}
+
+	@Test
+	public void exportsSameMinute() throws Exception {
+		assertEquals(HISTORY, download().size());
+
+		// another measure in the minute of the newest one exported
+		trace.record(clock - INTERVAL, 321);
+
+		MeasureSeries measures = download();
+		assertEquals(1, measures.size());
+		assertEquals(321, measures.getValue(0), 0);
+
+		assertEquals(HISTORY + 1, App.measureLogs.getLog(SERIAL).size());
+	}
+
+	@Test
+	public void exportsAfterClockSetBack() throws Exception {
+		assertEquals(HISTORY, download().size());
+
+		// the meter clock was set back a day
+		trace.record(clock - 6 * INTERVAL - 60 * 1000L, 111);
+		trace.record(clock - 6 * INTERVAL + 60 * 1000L, 222);
+
+		MeasureSeries measures = download();
+		assertEquals(2, measures.size());
+
+		assertEquals(HISTORY + 2, App.measureLogs.getLog(SERIAL).size());
+
+		// and the next download stops at them
+		assertEquals(0, download().size());
+		assertEquals(HISTORY + 2, App.measureLogs.getLog(SERIAL).size());
+	}
+
+	/**
+	 * Download the history of the meter.
+	 */
+	private MeasureSeries download() throws Exception {
+		SimulatedMeterTransport meter = new SimulatedMeterTransport(trace);
+
+		AbstractUsbParser parser = new FreeStyleOptiumNeoParser();
+		Hashtable<String, Object> values = parser.execute(meter);
+		parser.export("");
+
+		// the export files are named by the second
+		Thread.sleep(1100);
+
+		return (MeasureSeries) values.get("measures");
+	}
+
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (File child : files)
+				delete(child);
+		}
+
+		file.delete();
+	}
+}
@@ -0,0 +1,200 @@
+package com.thingtrack.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Calendar;
+import java.util.Hashtable;
+import java.util.TimeZone;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.thingtrack.App;
+import com.thingtrack.analytics.GlycaemicSummary;
+import com.thingtrack.transport.SimulatedMeterTransport;
+import com.thingtrack.transport.SyntheticMeterTrace;
+
+/**
+ * The result records decoded from the bytes of the reports.
+ */
+public class ResultRecordDecoderTest {
+	private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+	private static final String RECORDS =
+			"7,2,3,11,17,14,25,0,123,0,0,0\r\n" +
+			"7,1,12,31,16,23,59,0,5.5,0,0,0\r\n";
+
+	@Before
+	public void setUp() {
+		App.wait = 1000;
+		App.readyTimeout = 5000;
+		App.adaptive = true;
+		App.depth = 0;
+		App.resync = false;
+		App.reportRetries = 1;
+		App.jsonExport = false;
+		App.binaryExport = false;
+		App.syncState = null;
+		App.measureLogs = null;
+		App.dedupIndexes = null;
+		App.metadataCache = null;
+		App.queryService = null;
+	}
+
+	@Test
+	public void decodesRecords() {
+		MeasureSeries records = new MeasureSeries();
+		byte[] data = RECORDS.getBytes(StandardCharsets.US_ASCII);
+
+		assertTrue(new ResultRecordDecoder(collector(records), UTC).decode(data, 0, data.length));
+
+		assertEquals(2, records.size());
+		assertEquals(utc(2017, 3, 11, 14, 25), records.getTimestamp(0));
+		assertEquals(123, records.getValue(0), 0);
+		assertEquals(utc(2016, 12, 31, 23, 59), records.getTimestamp(1));
+		assertEquals(5.5, records.getValue(1), 0.0001);
+	}
+
+	@Test
+	public void decodesMeterClock() {
+		TimeZone zone = TimeZone.getTimeZone("Europe/Paris");
+
+		MeasureSeries records = new MeasureSeries();
+		byte[] data = RECORDS.getBytes(StandardCharsets.US_ASCII);
+		new ResultRecordDecoder(collector(records), zone).decode(data, 0, data.length);
+
+		// the offset of the zone at the date of each record
+		Calendar calendar = Calendar.getInstance(zone);
+		calendar.clear();
+		calendar.set(2017, Calendar.MARCH, 11, 14, 25);
+		assertEquals(calendar.getTimeInMillis(), records.getTimestamp(0));
+		calendar.set(2016, Calendar.DECEMBER, 31, 23, 59);
+		assertEquals(calendar.getTimeInMillis(), records.getTimestamp(1));
+	}
+
+	@Test
+	public void splitsRecordsBetweenReports() {
+		byte[] data = RECORDS.getBytes(StandardCharsets.US_ASCII);
+
+		for (int chunk = 1; chunk <= data.length; chunk++) {
+			MeasureSeries records = new MeasureSeries();
+			ResultRecordDecoder decoder = new ResultRecordDecoder(collector(records), UTC);
+
+			// the records cut anywhere, in reports with a header before the data
+			for (int offset = 0; offset < data.length; offset += chunk) {
+				int length = Math.min(chunk, data.length - offset);
+
+				ByteBuffer report = ByteBuffer.allocate(2 + length);
+				report.put(new byte[] { 0x06, (byte) length });
+				report.put(data, offset, length);
+
+				assertTrue(decoder.decode(report, 2, length));
+			}
+
+			assertEquals(2, records.size());
+			assertEquals(utc(2017, 3, 11, 14, 25), records.getTimestamp(0));
+			assertEquals(123, records.getValue(0), 0);
+			assertEquals(utc(2016, 12, 31, 23, 59), records.getTimestamp(1));
+			assertEquals(5.5, records.getValue(1), 0.0001);
+		}
+	}
+
+	@Test
+	public void skipsMalformedRecords() {
+		String text =
+				"CMD OK\r\n" +
+				"CKSM:00012F4A\r\n" +
+				"7,1,3,11,17\r\n" +
+				"7,1,X,11,17,14,25,0,123,0,0,0\r\n" +
+				"7,1,0,11,17,14,25,0,123,0,0,0\r\n" +
+				"7,1,3,11,17,,25,0,123,0,0,0\r\n" +
+				"7,1,3,11,17,14,25,0,,0,0,0\r\n" +
+				"7,1,3,11,17,14,25,0,-5,0,0,0\r\n" +
+				"7,1,3,11,17,14,25,0,1.2.3,0,0,0\r\n" +
+				"7,1,3,11,17,14,26,0,99\r\n";
+
+		MeasureSeries records = new MeasureSeries();
+		byte[] data = text.getBytes(StandardCharsets.US_ASCII);
+		new ResultRecordDecoder(collector(records), UTC).decode(data, 0, data.length);
+
+		// only the last one, with just the 9 fields needed
+		assertEquals(1, records.size());
+		assertEquals(utc(2017, 3, 11, 14, 26), records.getTimestamp(0));
+		assertEquals(99, records.getValue(0), 0);
+	}
+
+	@Test
+	public void stopsWhenAsked() {
+		final MeasureSeries records = new MeasureSeries();
+		ResultRecordDecoder decoder = new ResultRecordDecoder(new ResultRecordHandler() {
+			@Override
+			public boolean onRecord(long timestamp, float value) {
+				records.add(timestamp, value, (byte) 0);
+
+				return false;
+			}
+		}, UTC);
+
+		byte[] data = RECORDS.getBytes(StandardCharsets.US_ASCII);
+		assertFalse(decoder.decode(data, 0, data.length));
+		assertTrue(decoder.isStopped());
+
+		// nothing more is decoded
+		assertFalse(decoder.decode(data, 0, data.length));
+		assertEquals(1, records.size());
+	}
+
+	@Test
+	public void mapsLoReadings() {
+		// the records are of the minute
+		long clock = System.currentTimeMillis() / 60000 * 60000;
+		SyntheticMeterTrace trace = new SyntheticMeterTrace("SIM0005", 120, clock, 5);
+
+		AbstractUsbParser parser = new FreeStyleOptiumNeoParser();
+		Hashtable<String, Object> values = parser.execute(new SimulatedMeterTransport(trace));
+
+		MeasureSeries measures = (MeasureSeries) values.get("measures");
+		assertEquals(120, measures.size());
+
+		// the meter reports LO as 1, exported as 0 with the zero flag
+		int lows = 0;
+		for (int i = 0; i < measures.size(); i++) {
+			assertEquals(trace.getTimestamp(i), measures.getTimestamp(i));
+
+			if (trace.getValue(i) == 1) {
+				assertEquals(0, measures.getValue(i), 0);
+				assertEquals(MeasureSeries.FLAG_ZERO, measures.getFlags(i));
+				lows++;
+			} else {
+				assertEquals(trace.getValue(i), measures.getValue(i), 0);
+				assertEquals(0, measures.getFlags(i));
+			}
+		}
+
+		assertTrue(lows > 0);
+		assertEquals(lows, ((GlycaemicSummary) values.get("summary")).getLowCount());
+	}
+
+	private static long utc(int year, int month, int day, int hour, int minute) {
+		Calendar calendar = Calendar.getInstance(UTC);
+		calendar.clear();
+		calendar.set(year, month - 1, day, hour, minute);
+
+		return calendar.getTimeInMillis();
+	}
+
+	private static ResultRecordHandler collector(final MeasureSeries records) {
+		return new ResultRecordHandler() {
+			@Override
+			public boolean onRecord(long timestamp, float value) {
+				records.add(timestamp, value, (byte) 0);
+
+				return true;
+			}
+		};
+	}
+}
@@ -0,0 +1,184 @@
+package com.thingtrack.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.file.Files;
+import java.util.Hashtable;
+import java.util.TimeZone;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.usb4java.LibUsb;
+
+import com.thingtrack.App;
+import com.thingtrack.query.QueryService;
+import com.thingtrack.query.Rollup;
+import com.thingtrack.query.RollupIndex;
+import com.thingtrack.store.DedupIndexStore;
+import com.thingtrack.store.MeasureLogStore;
+import com.thingtrack.store.SyncStateStore;
+import com.thingtrack.transport.ReportBufferPool;
+import com.thingtrack.transport.ReportReader;
+import com.thingtrack.transport.SimulatedMeterTransport;
+import com.thingtrack.transport.SyntheticMeterTrace;
+import com.thingtrack.transport.UsbTransport;
+
+/**
+ * A download cut when the meter is unplugged, then resumed.
+ */
+public class ResumeDownloadTest {
+	private static final String SERIAL = "SIM0001";
+	private static final int HISTORY = 3000;
+
+	/**
+	 * Unplugs the meter after a number of bulk reads.
+	 */
+	private static class UnpluggedTransport implements UsbTransport {
+		private final UsbTransport transport;
+		private final int reads;
+		private int read;
+
+		UnpluggedTransport(UsbTransport transport, int reads) {
+			this.transport = transport;
+			this.reads = reads;
+		}
+
+		private boolean unplugged() {
+			return read >= reads;
+		}
+
+		public void open() {
+			transport.open();
+		}
+
+		public void close() {
+			transport.close();
+		}
+
+		public void dispose() {
+			transport.dispose();
+		}
+
+		public int controlTransfer(byte requestType, byte request, short value, short index, ByteBuffer data, long timeout) {
+			return unplugged() ? LibUsb.ERROR_NO_DEVICE : transport.controlTransfer(requestType, request, value, index, data, timeout);
+		}
+
+		public int bulkTransfer(byte endpoint, ByteBuffer data, IntBuffer transferred, long timeout) {
+			return ++read > reads ? LibUsb.ERROR_NO_DEVICE : transport.bulkTransfer(endpoint, data, transferred, timeout);
+		}
+
+		public int clearHalt(byte endpoint) {
+			return transport.clearHalt(endpoint);
+		}
+
+		public ReportReader openReader(byte endpoint, ReportBufferPool pool, int depth) {
+			return null;
+		}
+	}
+
+	private File directory;
+	private long clock;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = Files.createTempDirectory("resume").toFile();
+		clock = System.currentTimeMillis();
+
+		App.path = directory.getPath();
+		App.wait = 1000;
+		App.readyTimeout = 5000;
+		App.adaptive = true;
+		App.depth = 0;
+		App.resync = false;
+		App.reportRetries = 3;
+		App.jsonExport = true;
+		App.binaryExport = false;
+		App.metadataCache = null;
+
+		File state = new File(directory, ".glukose");
+		App.syncState = new SyncStateStore(state);
+		App.measureLogs = new MeasureLogStore(new File(state, "log"));
+		App.dedupIndexes = new DedupIndexStore(new File(state, "dedup"), App.measureLogs);
+		App.queryService = new QueryService(App.measureLogs, new File(state, "rollup"), TimeZone.getDefault());
+	}
+
+	@After
+	public void tearDown() {
+		App.measureLogs.close();
+		App.measureLogs = null;
+		App.queryService = null;
+		App.dedupIndexes = null;
+		App.syncState = null;
+
+		delete(directory);
+	}
+
+	@Test
+	public void resumesCutDownload() throws Exception {
+		Hashtable<String, Object> partial = download(400);
+		assertEquals(Boolean.FALSE, partial.get("complete"));
+		assertNotNull(App.syncState.getCheckpoint(SERIAL));
+
+		long logged = App.measureLogs.getLog(SERIAL).size();
+		assertTrue(logged > 0 && logged < HISTORY);
+
+		// the next download gets the older range the cut one missed
+		Hashtable<String, Object> resumed = download(Integer.MAX_VALUE);
+		assertEquals(Boolean.TRUE, resumed.get("complete"));
+		assertNull(App.syncState.getCheckpoint(SERIAL));
+
+		assertEquals(HISTORY, App.measureLogs.getLog(SERIAL).size());
+
+		MeasureSeries readings = App.queryService.getReadings(SERIAL, Long.MIN_VALUE, Long.MAX_VALUE);
+		assertEquals(HISTORY, readings.size());
+		for (int i = 1; i < readings.size(); i++)
+			assertTrue(readings.getTimestamp(i - 1) < readings.getTimestamp(i));
+
+		// the rollups count every valid measure once
+		long counted = 0;
+		for (Rollup rollup : App.queryService.getRollups(SERIAL, RollupIndex.Period.DAY, Long.MIN_VALUE, Long.MAX_VALUE))
+			counted += rollup.getCount();
+
+		long valid = 0;
+		for (int i = 0; i < readings.size(); i++) {
+			if ((readings.getFlags(i) & MeasureSeries.FLAG_ZERO) == 0)
+				valid++;
+		}
+		assertEquals(valid, counted);
+	}
+
+	/**
+	 * Download the history of the meter, unplugged after a number of reads.
+	 */
+	private Hashtable<String, Object> download(int reads) throws Exception {
+		SimulatedMeterTransport meter = new SimulatedMeterTransport(new SyntheticMeterTrace(SERIAL, HISTORY, clock, 42));
+		meter.setFragmentSize(17);
+
+		AbstractUsbParser parser = new FreeStyleOptiumNeoParser();
+		Hashtable<String, Object> values = parser.execute(new UnpluggedTransport(meter, reads));
+		parser.export("");
+
+		// the export files are named by the second
+		Thread.sleep(1100);
+
+		return values;
+	}
+
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (File child : files)
+				delete(child);
+		}
+
+		file.delete();
+	}
+}
@@ -0,0 +1,131 @@
+package com.thingtrack.query;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Calendar;
+import java.util.List;
+import java.util.TimeZone;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.thingtrack.parser.MeasureSeries;
+
+public class RollupIndexTest {
+	private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+	private static final TimeZone NEW_YORK = TimeZone.getTimeZone("America/New_York");
+
+	private File file;
+
+	@Before
+	public void setUp() throws IOException {
+		file = File.createTempFile("rollup", ".rollup");
+		file.delete();
+	}
+
+	@After
+	public void tearDown() {
+		file.delete();
+	}
+
+	@Test
+	public void startsWeeksOnMonday() {
+		RollupIndex index = new RollupIndex(file, UTC);
+
+		// sunday 2017-01-01 and monday 2017-01-02
+		index.visit(time(UTC, 2017, 1, 1, 23, 59), 100, (byte) 0);
+		index.visit(time(UTC, 2017, 1, 2, 0, 0), 200, (byte) 0);
+		index.visit(time(UTC, 2017, 1, 8, 23, 59), 300, (byte) 0);
+
+		List<Rollup> weeks = index.getRollups(RollupIndex.Period.WEEK, Long.MIN_VALUE, Long.MAX_VALUE);
+		assertEquals(2, weeks.size());
+
+		assertEquals(time(UTC, 2016, 12, 26, 0, 0), weeks.get(0).getStart());
+		assertEquals(time(UTC, 2017, 1, 2, 0, 0), weeks.get(0).getEnd());
+		assertEquals(1, weeks.get(0).getCount());
+
+		assertEquals(time(UTC, 2017, 1, 2, 0, 0), weeks.get(1).getStart());
+		assertEquals(time(UTC, 2017, 1, 9, 0, 0), weeks.get(1).getEnd());
+		assertEquals(2, weeks.get(1).getCount());
+		assertEquals(250, weeks.get(1).getMean(), 0);
+	}
+
+	@Test
+	public void startsWeeksBefore1970() {
+		RollupIndex index = new RollupIndex(file, UTC);
+
+		// sunday 1969-12-28 and monday 1969-12-29, a week across the epoch
+		index.visit(time(UTC, 1969, 12, 28, 12, 0), 100, (byte) 0);
+		index.visit(time(UTC, 1969, 12, 29, 12, 0), 100, (byte) 0);
+		index.visit(time(UTC, 1970, 1, 4, 12, 0), 100, (byte) 0);
+
+		List<Rollup> weeks = index.getRollups(RollupIndex.Period.WEEK, Long.MIN_VALUE, Long.MAX_VALUE);
+		assertEquals(2, weeks.size());
+		assertEquals(time(UTC, 1969, 12, 22, 0, 0), weeks.get(0).getStart());
+		assertEquals(time(UTC, 1969, 12, 29, 0, 0), weeks.get(1).getStart());
+		assertEquals(2, weeks.get(1).getCount());
+	}
+
+	@Test
+	public void startsWeeksOnLocalMonday() {
+		RollupIndex index = new RollupIndex(file, NEW_YORK);
+
+		// sunday evening and monday morning in New York, both monday in UTC
+		index.visit(time(NEW_YORK, 2017, 1, 1, 23, 30), 100, (byte) 0);
+		index.visit(time(NEW_YORK, 2017, 1, 2, 1, 0), 100, (byte) 0);
+
+		List<Rollup> weeks = index.getRollups(RollupIndex.Period.WEEK, Long.MIN_VALUE, Long.MAX_VALUE);
+		assertEquals(2, weeks.size());
+		assertEquals(time(NEW_YORK, 2016, 12, 26, 0, 0), weeks.get(0).getStart());
+		assertEquals(time(NEW_YORK, 2017, 1, 2, 0, 0), weeks.get(1).getStart());
+	}
+
+	@Test
+	public void selectsWholeWeeks() {
+		RollupIndex index = new RollupIndex(file, UTC);
+
+		for (int day = 2; day <= 15; day++)
+			index.visit(time(UTC, 2017, 1, day, 12, 0), 100, (byte) 0);
+
+		// a range from a wednesday to a tuesday has the two whole weeks
+		List<Rollup> weeks = index.getRollups(RollupIndex.Period.WEEK, time(UTC, 2017, 1, 4, 0, 0), time(UTC, 2017, 1, 10, 0, 0));
+		assertEquals(2, weeks.size());
+		assertEquals(7, weeks.get(0).getCount());
+		assertEquals(7, weeks.get(1).getCount());
+
+		List<Rollup> days = index.getRollups(RollupIndex.Period.DAY, time(UTC, 2017, 1, 4, 0, 0), time(UTC, 2017, 1, 10, 0, 0));
+		assertEquals(6, days.size());
+	}
+
+	@Test
+	public void savesRollups() throws IOException {
+		RollupIndex index = new RollupIndex(file, UTC);
+		index.visit(time(UTC, 2017, 1, 2, 12, 0), 60, (byte) 0);
+		index.visit(time(UTC, 2017, 1, 2, 13, 0), 0, MeasureSeries.FLAG_ZERO);
+		index.visit(time(UTC, 2017, 1, 3, 12, 0), 120, (byte) 0);
+		index.save();
+
+		RollupIndex loaded = new RollupIndex(file, UTC);
+		assertTrue(loaded.load());
+		assertEquals(3, loaded.getRecords());
+
+		List<Rollup> weeks = loaded.getRollups(RollupIndex.Period.WEEK, Long.MIN_VALUE, Long.MAX_VALUE);
+		assertEquals(1, weeks.size());
+		assertEquals(2, weeks.get(0).getCount());
+		assertEquals(60, weeks.get(0).getMin(), 0);
+		assertEquals(120, weeks.get(0).getMax(), 0);
+		assertEquals(0.5f, weeks.get(0).getTimeInRange(), 0);
+	}
+
+	private static long time(TimeZone timeZone, int year, int month, int day, int hour, int minute) {
+		Calendar calendar = Calendar.getInstance(timeZone);
+		calendar.clear();
+		calendar.set(year, month - 1, day, hour, minute);
+
+		return calendar.getTimeInMillis();
+	}
+}
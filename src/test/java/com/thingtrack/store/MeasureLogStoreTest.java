@@ -0,0 +1,119 @@
+package com.thingtrack.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MeasureLogStoreTest {
+	private File directory;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = Files.createTempDirectory("measure-logs").toFile();
+	}
+
+	@After
+	public void tearDown() {
+		MeasureLogTest.delete(directory);
+	}
+
+	@Test
+	public void listsRealSerials() throws IOException {
+		MeasureLogStore store = new MeasureLogStore(directory);
+		try {
+			MeasureLog log = store.getLog("AB/12 3");
+			store.getLog("CD-45");
+
+			assertSame(log, store.getLog("AB/12 3"));
+			assertEquals(Arrays.asList("AB/12 3", "CD-45"), store.getSerials());
+		} finally {
+			store.close();
+		}
+
+		MeasureLogStore reopened = new MeasureLogStore(directory);
+		try {
+			assertEquals(Arrays.asList("AB/12 3", "CD-45"), reopened.getSerials());
+			reopened.getLog("AB/12 3");
+		} finally {
+			reopened.close();
+		}
+	}
+
+	@Test
+	public void rejectsCollidingSerial() throws IOException {
+		MeasureLogStore store = new MeasureLogStore(directory);
+		try {
+			store.getLog("AB/12");
+
+			// the same directory name as the first one
+			try {
+				store.getLog("AB:12");
+				fail("two meters share the log directory AB_12");
+			} catch (SerialConflictException e) {
+				assertEquals(Arrays.asList("AB/12"), store.getSerials());
+			}
+
+			// and so does the dedup index named after it
+			DedupIndexStore indexes = new DedupIndexStore(new File(directory, "dedup"), store);
+			indexes.getIndex("AB/12");
+			try {
+				indexes.getIndex("AB:12");
+				fail("two meters share the dedup index AB_12");
+			} catch (SerialConflictException e) {
+				// expected
+			}
+		} finally {
+			store.close();
+		}
+	}
+
+	@Test
+	public void findsOnlyKnownLogs() throws IOException {
+		MeasureLogStore store = new MeasureLogStore(directory);
+		try {
+			MeasureLog log = store.getLog("AB/12");
+
+			assertSame(log, store.findLog("AB/12"));
+			assertNull(store.findLog("AB:12"));
+
+			// no directory for a serial number never downloaded
+			assertNull(store.findLog("XY99"));
+			assertFalse(new File(directory, "XY99").exists());
+		} finally {
+			store.close();
+		}
+	}
+
+	@Test
+	public void claimsLegacyDirectory() throws IOException {
+		// a log written before the serial files
+		assertEquals(true, new File(directory, "AB_12").mkdirs());
+
+		MeasureLogStore store = new MeasureLogStore(directory);
+		try {
+			assertEquals(Arrays.asList("AB_12"), store.getSerials());
+
+			// found by the name it is listed with, not claimed
+			MeasureLog log = store.findLog("AB_12");
+			assertNotNull(log);
+			assertFalse(new File(directory, "AB_12/" + MeasureLogStore.SERIAL_FILE).exists());
+
+			assertSame(log, store.getLog("AB/12"));
+			assertEquals(Arrays.asList("AB/12"), store.getSerials());
+		} finally {
+			store.close();
+		}
+	}
+}
@@ -0,0 +1,348 @@
+package com.thingtrack.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.thingtrack.parser.MeasureSeries;
+
+public class MeasureLogTest {
+	private static final long MINUTE = 60 * 1000L;
+	private static final long CLOCK = 1500000000000L;
+
+	private File directory;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = Files.createTempDirectory("measure-log").toFile();
+	}
+
+	@After
+	public void tearDown() {
+		delete(directory);
+	}
+
+	@Test
+	public void appendsAndScans() throws IOException {
+		int records = MeasureLog.SEGMENT_RECORDS + 1000;
+
+		MeasureLog log = new MeasureLog(directory);
+		try {
+			assertEquals(0, log.size());
+			assertEquals(Long.MIN_VALUE, log.getLastTimestamp());
+
+			// in two appends, the last one rolls a segment
+			assertEquals(1000, log.append(series(0, 1000)));
+			assertEquals(records - 1000, log.append(series(1000, records - 1000)));
+			assertEquals(0, log.append(new MeasureSeries()));
+
+			assertEquals(records, log.size());
+			assertEquals(CLOCK + (records - 1) * MINUTE, log.getLastTimestamp());
+
+			// the from time is inclusive, the to time exclusive
+			assertSequence(log.read(CLOCK + 10 * MINUTE, CLOCK + 20 * MINUTE), 10, 10);
+			assertSequence(log.read(CLOCK + 10 * MINUTE + 1, CLOCK + 20 * MINUTE + 1), 11, 10);
+
+			// across the segments, from a time between two index entries
+			int from = MeasureLog.SEGMENT_RECORDS - MeasureLog.INDEX_INTERVAL / 2;
+			assertSequence(log.read(CLOCK + from * MINUTE, CLOCK + (from + 500) * MINUTE), from, 500);
+
+			assertSequence(log.read(Long.MIN_VALUE, Long.MAX_VALUE), 0, records);
+			assertEquals(0, log.read(CLOCK - 10 * MINUTE, CLOCK).size());
+			assertEquals(0, log.read(CLOCK + records * MINUTE, Long.MAX_VALUE).size());
+		} finally {
+			log.close();
+		}
+
+		MeasureLog reopened = new MeasureLog(directory);
+		try {
+			assertEquals(records, reopened.size());
+			assertSequence(reopened.read(Long.MIN_VALUE, Long.MAX_VALUE), 0, records);
+
+			// the appends go on after the old records
+			reopened.append(series(records, 10));
+			assertSequence(reopened.read(Long.MIN_VALUE, Long.MAX_VALUE), 0, records + 10);
+		} finally {
+			reopened.close();
+		}
+	}
+
+	@Test
+	public void sortsAppendedMeasures() throws IOException {
+		MeasureLog log = new MeasureLog(directory);
+		try {
+			// newest first, like a download
+			MeasureSeries series = new MeasureSeries();
+			for (int i = 99; i >= 0; i--)
+				series.add(CLOCK + i * MINUTE, value(i), (byte) 0);
+
+			assertEquals(100, log.append(series));
+			assertSequence(log.read(Long.MIN_VALUE, Long.MAX_VALUE), 0, 100);
+
+			// the series appended is not changed
+			assertEquals(CLOCK + 99 * MINUTE, series.getTimestamp(0));
+		} finally {
+			log.close();
+		}
+	}
+
+	@Test
+	public void recoversTornTail() throws IOException {
+		MeasureLog log = new MeasureLog(directory);
+		log.append(series(0, 100));
+		log.close();
+
+		// a crash in the middle of the next record
+		File segment = new File(directory, String.format("%020d", 0) + MeasureLog.SEGMENT_SUFFIX);
+		FileChannel channel = FileChannel.open(segment.toPath(), StandardOpenOption.WRITE);
+		try {
+			channel.write(ByteBuffer.wrap(new byte[MeasureLog.RECORD_SIZE / 2]), 100L * MeasureLog.RECORD_SIZE);
+		} finally {
+			channel.close();
+		}
+
+		MeasureLog reopened = new MeasureLog(directory);
+		try {
+			assertEquals(100, reopened.size());
+			assertEquals(100L * MeasureLog.RECORD_SIZE, segment.length());
+
+			reopened.append(series(100, 10));
+			assertSequence(reopened.read(Long.MIN_VALUE, Long.MAX_VALUE), 0, 110);
+		} finally {
+			reopened.close();
+		}
+	}
+
+	@Test
+	public void recoversCorruptedRecord() throws IOException {
+		MeasureLog log = new MeasureLog(directory);
+		log.append(series(0, 100));
+		log.close();
+
+		// a record written but not forced when the machine crashed
+		File segment = new File(directory, String.format("%020d", 0) + MeasureLog.SEGMENT_SUFFIX);
+		FileChannel channel = FileChannel.open(segment.toPath(), StandardOpenOption.WRITE);
+		try {
+			channel.write(ByteBuffer.wrap(new byte[] { 0x55 }), 90L * MeasureLog.RECORD_SIZE + 9);
+		} finally {
+			channel.close();
+		}
+
+		MeasureLog reopened = new MeasureLog(directory);
+		try {
+			// the log is cut at the corrupted record
+			assertEquals(90, reopened.size());
+			assertSequence(reopened.read(Long.MIN_VALUE, Long.MAX_VALUE), 0, 90);
+		} finally {
+			reopened.close();
+		}
+	}
+
+	@Test
+	public void rebuildsMissingIndex() throws IOException {
+		int records = MeasureLog.SEGMENT_RECORDS + 10;
+
+		MeasureLog log = new MeasureLog(directory);
+		log.append(series(0, records));
+		log.close();
+
+		File index = new File(directory, String.format("%020d", 0) + MeasureLog.INDEX_SUFFIX);
+		assertTrue(index.delete());
+
+		MeasureLog reopened = new MeasureLog(directory);
+		try {
+			assertTrue(index.exists());
+			assertEquals(records, reopened.size());
+
+			long from = CLOCK + 1000 * MINUTE;
+			assertSequence(reopened.read(from, from + 10 * MINUTE), 1000, 10);
+		} finally {
+			reopened.close();
+		}
+	}
+
+	@Test
+	public void mergesOlderRange() throws IOException {
+		MeasureLog log = new MeasureLog(directory);
+		try {
+			// a partial download got the newest half, the resumed one all the history
+			log.append(series(500, 500));
+
+			MeasureSeries added = new MeasureSeries();
+			assertEquals(500, log.append(series(0, 1000), collector(added)));
+			assertEquals(500, added.size());
+			assertEquals(CLOCK, added.getTimestamp(0));
+
+			assertEquals(1000, log.size());
+			assertEquals(CLOCK + 999 * MINUTE, log.getLastTimestamp());
+			assertSequence(log.read(Long.MIN_VALUE, Long.MAX_VALUE), 0, 1000);
+		} finally {
+			log.close();
+		}
+
+		MeasureLog reopened = new MeasureLog(directory);
+		try {
+			assertEquals(1000, reopened.size());
+			assertSequence(reopened.read(Long.MIN_VALUE, Long.MAX_VALUE), 0, 1000);
+		} finally {
+			reopened.close();
+		}
+	}
+
+	@Test
+	public void mergesAcrossSegments() throws IOException {
+		int records = MeasureLog.SEGMENT_RECORDS + 1000;
+
+		MeasureLog log = new MeasureLog(directory);
+		try {
+			// every other minute, then the minutes between
+			MeasureSeries even = new MeasureSeries();
+			MeasureSeries odd = new MeasureSeries();
+			for (int i = 0; i < records; i++)
+				(i % 2 == 0 ? even : odd).add(CLOCK + i * MINUTE, value(i), (byte) 0);
+
+			log.append(even);
+			assertEquals(odd.size(), log.append(odd));
+
+			assertEquals(records, log.size());
+			assertSequence(log.read(Long.MIN_VALUE, Long.MAX_VALUE), 0, records);
+
+			// the scans from a time still find it in the rewritten segments
+			long from = CLOCK + (MeasureLog.SEGMENT_RECORDS - 10) * MINUTE;
+			assertSequence(log.read(from, from + 20 * MINUTE), MeasureLog.SEGMENT_RECORDS - 10, 20);
+		} finally {
+			log.close();
+		}
+
+		MeasureLog reopened = new MeasureLog(directory);
+		try {
+			assertEquals(records, reopened.size());
+			assertSequence(reopened.read(Long.MIN_VALUE, Long.MAX_VALUE), 0, records);
+		} finally {
+			reopened.close();
+		}
+	}
+
+	@Test
+	public void skipsRecordsInTheLog() throws IOException {
+		MeasureLog log = new MeasureLog(directory);
+		try {
+			log.append(series(0, 100));
+
+			assertEquals(0, log.append(series(20, 50)));
+			assertEquals(100, log.size());
+
+			// a new value at a known time is kept
+			MeasureSeries changed = new MeasureSeries();
+			changed.add(CLOCK + 30 * MINUTE, 999, (byte) 0);
+			assertEquals(1, log.append(changed));
+			assertEquals(101, log.size());
+		} finally {
+			log.close();
+		}
+	}
+
+	@Test
+	public void dropsMergeBeforeMarker() throws IOException {
+		MeasureLog log = new MeasureLog(directory);
+		log.append(series(0, 100));
+		log.close();
+
+		// a merge interrupted before its marker
+		File merge = new File(directory, String.format("%020d", 0) + MeasureLog.MERGE_SUFFIX);
+		Files.write(merge.toPath(), new byte[MeasureLog.RECORD_SIZE * 3]);
+
+		MeasureLog reopened = new MeasureLog(directory);
+		try {
+			assertFalse(merge.exists());
+			assertEquals(100, reopened.size());
+			assertSequence(reopened.read(Long.MIN_VALUE, Long.MAX_VALUE), 0, 100);
+		} finally {
+			reopened.close();
+		}
+	}
+
+	@Test
+	public void finishesMergeAfterMarker() throws IOException {
+		File other = Files.createTempDirectory("measure-log").toFile();
+		try {
+			// the merged segment is written by another log
+			MeasureLog merged = new MeasureLog(other);
+			merged.append(series(0, 200));
+			merged.close();
+
+			MeasureLog log = new MeasureLog(directory);
+			log.append(series(100, 100));
+			log.close();
+
+			File segment = new File(other, String.format("%020d", 0) + MeasureLog.SEGMENT_SUFFIX);
+			Files.copy(segment.toPath(), new File(directory, String.format("%020d", 0) + MeasureLog.MERGE_SUFFIX).toPath());
+			Files.write(new File(directory, MeasureLog.MERGE_MARKER).toPath(), new byte[0]);
+
+			MeasureLog reopened = new MeasureLog(directory);
+			try {
+				assertFalse(new File(directory, MeasureLog.MERGE_MARKER).exists());
+				assertEquals(200, reopened.size());
+				assertSequence(reopened.read(Long.MIN_VALUE, Long.MAX_VALUE), 0, 200);
+			} finally {
+				reopened.close();
+			}
+		} finally {
+			delete(other);
+		}
+	}
+
+	/**
+	 * Measures of consecutive minutes.
+	 */
+	static MeasureSeries series(int first, int count) {
+		MeasureSeries series = new MeasureSeries(count);
+		for (int i = first; i < first + count; i++)
+			series.add(CLOCK + i * MINUTE, value(i), (byte) 0);
+
+		return series;
+	}
+
+	static float value(int i) {
+		return 60 + i % 200;
+	}
+
+	static void assertSequence(MeasureSeries series, int first, int count) {
+		assertEquals(count, series.size());
+
+		for (int i = 0; i < count; i++) {
+			assertEquals(CLOCK + (first + i) * MINUTE, series.getTimestamp(i));
+			assertEquals(value(first + i), series.getValue(i), 0);
+		}
+	}
+
+	static MeasureSeries.Visitor collector(final MeasureSeries series) {
+		return new MeasureSeries.Visitor() {
+			@Override
+			public void visit(long timestamp, float value, byte flags) {
+				series.add(timestamp, value, flags);
+			}
+		};
+	}
+
+	static void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (File child : files)
+				delete(child);
+		}
+
+		assertTrue(file.delete());
+	}
+}
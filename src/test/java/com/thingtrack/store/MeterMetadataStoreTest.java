@@ -0,0 +1,55 @@
+package com.thingtrack.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MeterMetadataStoreTest {
+	private static final long HOUR = 60 * 60 * 1000L;
+
+	private File directory;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = Files.createTempDirectory("metadata").toFile();
+	}
+
+	@After
+	public void tearDown() {
+		MeasureLogTest.delete(directory);
+	}
+
+	@Test
+	public void savesMetadata() throws IOException {
+		new MeterMetadataStore(directory).put("SN1", "1.43", "NAME", "ID");
+
+		MeterMetadataStore.Metadata metadata = new MeterMetadataStore(directory).getFresh("SN1", HOUR);
+		assertEquals("1.43", metadata.getSwver());
+		assertEquals("NAME", metadata.getPtname());
+		assertEquals("ID", metadata.getPtid());
+
+		assertNull(new MeterMetadataStore(directory).getFresh("SN1", 0));
+		assertNull(new MeterMetadataStore(directory).getFresh("SN2", HOUR));
+	}
+
+	@Test
+	public void skipsMissingFields() throws IOException {
+		MeterMetadataStore store = new MeterMetadataStore(directory);
+		store.put("SN1", "1.43", "NAME", "ID");
+
+		// the meter did not answer the patient fields this time
+		store.put("SN1", "1.44", null, null);
+
+		MeterMetadataStore.Metadata metadata = new MeterMetadataStore(directory).getFresh("SN1", HOUR);
+		assertEquals("1.44", metadata.getSwver());
+		assertNull(metadata.getPtname());
+		assertNull(metadata.getPtid());
+	}
+}
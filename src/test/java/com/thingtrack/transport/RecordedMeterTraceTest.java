@@ -0,0 +1,90 @@
+package com.thingtrack.transport;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Hashtable;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.thingtrack.App;
+import com.thingtrack.parser.AbstractUsbParser;
+import com.thingtrack.parser.FreeStyleOptiumNeoParser;
+import com.thingtrack.parser.MeasureSeries;
+
+/**
+ * A meter replayed from a trace file, in the format printed by CaptureDump.
+ */
+public class RecordedMeterTraceTest {
+	private static final String[] COMMANDS = { "$serlnum?", "$swver?", "$date?", "$time?", "$ptname?", "$ptid?", "$result?" };
+
+	private File directory;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = Files.createTempDirectory("trace").toFile();
+
+		App.path = directory.getPath();
+		App.wait = 1000;
+		App.readyTimeout = 5000;
+		App.adaptive = true;
+		App.depth = 0;
+		App.resync = false;
+		App.reportRetries = 1;
+		App.jsonExport = false;
+		App.binaryExport = false;
+		App.syncState = null;
+		App.measureLogs = null;
+		App.dedupIndexes = null;
+		App.metadataCache = null;
+		App.queryService = null;
+	}
+
+	@After
+	public void tearDown() {
+		File[] files = directory.listFiles();
+		for (File file : files)
+			file.delete();
+
+		directory.delete();
+	}
+
+	@Test
+	public void replaysTrace() throws IOException {
+		SyntheticMeterTrace synthetic = new SyntheticMeterTrace("SIM0004", 200, System.currentTimeMillis(), 4);
+
+		// the trace of the synthetic meter, with a comment
+		File file = new File(directory, "meter.trace");
+		PrintWriter out = new PrintWriter(file, "US-ASCII");
+		try {
+			out.println("# recorded from SIM0004");
+			for (String command : COMMANDS) {
+				out.println("> " + command);
+
+				BufferedReader reader = new BufferedReader(new InputStreamReader(synthetic.respond(command), StandardCharsets.US_ASCII));
+				String line;
+				while ((line = reader.readLine()) != null)
+					out.println("< " + line);
+			}
+		} finally {
+			out.close();
+		}
+
+		RecordedMeterTrace trace = RecordedMeterTrace.load(file);
+
+		AbstractUsbParser parser = new FreeStyleOptiumNeoParser();
+		Hashtable<String, Object> values = parser.execute(new SimulatedMeterTransport(trace));
+
+		assertEquals(Boolean.TRUE, values.get("complete"));
+		assertEquals("SIM0004", values.get("serlnum"));
+		assertEquals(200, ((MeasureSeries) values.get("measures")).size());
+	}
+}